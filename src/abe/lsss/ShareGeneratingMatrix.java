@@ -6,7 +6,15 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -246,6 +254,206 @@ public class ShareGeneratingMatrix {
 		this.reconstructionCoefficients = coefficients;
 	}
 	
+	/**
+	 * Computes the reconstruction coefficients using exactly the passed rows,
+	 * which must be linearly independent, as those returned by
+	 * chooseSatisfyingRows() are; every other row's coefficient is 0.  The
+	 * elimination is exact, over the integers.
+	 * 
+	 * @param rows indices of the rows to use
+	 * @return false, leaving the coefficients unchanged, if the rows do not
+	 * reconstruct the secret with integer coefficients
+	 * @throws IllegalStateException if matrix has not yet been written
+	 */
+	public boolean solveReconstructionCoefficients(Set<Integer> rows){
+		if(this.matrix == null){
+			throw new IllegalStateException("Cannot compute reconstruction "+
+					"coefficients when matrix has not been written.");
+		}
+		
+		// Solve M_S^{T}w = (1, 0, 0 . . . )^{T} for the rows S, one equation
+		// per column of the matrix, by Gauss-Jordan elimination.
+		List<Integer> used = new ArrayList<Integer>(rows);
+		int k = used.size();
+		int columns = matrix[0].length;
+		BigInteger[][] equations = new BigInteger[columns][k + 1];
+		for(int j = 0; j < columns; j++){
+			for(int i = 0; i < k; i++){
+				equations[j][i] = BigInteger.valueOf(matrix[used.get(i)][j]);
+			}
+			equations[j][k] = j == 0 ? BigInteger.ONE : BigInteger.ZERO;
+		}
+		
+		for(int c = 0; c < k; c++){
+			int p = c;
+			while(p < columns && equations[p][c].signum() == 0) p++;
+			if(p == columns){
+				return false; // rows are dependent
+			}
+			BigInteger[] tmp = equations[p];
+			equations[p] = equations[c];
+			equations[c] = tmp;
+			
+			for(int q = 0; q < columns; q++){
+				if(q == c || equations[q][c].signum() == 0) continue;
+				
+				BigInteger scale = equations[q][c];
+				BigInteger g = BigInteger.ZERO;
+				for(int j = 0; j <= k; j++){
+					equations[q][j] = equations[q][j].multiply(equations[c][c]).
+							subtract(equations[c][j].multiply(scale));
+					g = g.gcd(equations[q][j]);
+				}
+				if(g.compareTo(BigInteger.ONE) > 0){
+					for(int j = 0; j <= k; j++){
+						equations[q][j] = equations[q][j].divide(g);
+					}
+				}
+			}
+		}
+		
+		// equations beyond the pivots must now read 0 = 0
+		for(int q = k; q < columns; q++){
+			if(equations[q][k].signum() != 0) return false;
+		}
+		
+		int[] coefficients = new int[matrix.length];
+		for(int c = 0; c < k; c++){
+			BigInteger[] qr = equations[c][k].divideAndRemainder(equations[c][c]);
+			if(qr[1].signum() != 0 || qr[0].bitLength() > 31){
+				return false;
+			}
+			coefficients[used.get(c)] = qr[0].intValue();
+		}
+		
+		this.reconstructionCoefficients = coefficients;
+		return true;
+	}
+	
+	/**
+	 * Chooses, among the passed rows, a set from which the secret can be
+	 * reconstructed and from which no row can be removed; rows outside it need
+	 * not be used in decryption.  For a policy such as (a OR b OR c) this is a
+	 * single row.
+	 * 
+	 * Rows with more non-zero entries come from deeper AND gates and are
+	 * dropped first, so that shallower alternatives are kept.
+	 * 
+	 * @param available indices of rows whose attributes are held
+	 * @return indices of the chosen rows, or all of the available rows if they
+	 * cannot be shown to reconstruct the secret
+	 * @throws IllegalStateException if matrix has not yet been written
+	 */
+	public Set<Integer> chooseSatisfyingRows(Set<Integer> available){
+		if(this.matrix == null){
+			throw new IllegalStateException("Cannot choose rows when matrix has not "+
+					"been written.");
+		}
+		
+		if(!spansTarget(available)){
+			return new HashSet<Integer>(available);
+		}
+		
+		List<Integer> order = new ArrayList<Integer>(available);
+		Collections.sort(order, new Comparator<Integer>(){
+			public int compare(Integer a, Integer b){
+				return nonZeroEntries(matrix[b]) - nonZeroEntries(matrix[a]);
+			}
+		});
+		
+		Set<Integer> chosen = new LinkedHashSet<Integer>(order);
+		for(Integer row : order){
+			chosen.remove(row);
+			if(!spansTarget(chosen)){
+				chosen.add(row);
+			}
+		}
+		
+		return chosen;
+	}
+	
+	private static int nonZeroEntries(int[] row){
+		int n = 0;
+		for(int v : row){
+			if(v != 0) n++;
+		}
+		return n;
+	}
+	
+	/**
+	 * Returns true if (1, 0, 0 . . .) lies in the span of the passed rows.
+	 * Elimination is exact, over the integers; should it overflow, the rows
+	 * are treated as not spanning.
+	 */
+	private boolean spansTarget(Collection<Integer> rows){
+		// echelon basis of the rows, each with the column of its leading entry
+		List<long[]> basis = new ArrayList<long[]>();
+		List<Integer> pivots = new ArrayList<Integer>();
+		
+		int columns = matrix[0].length;
+		try{
+			for(int row : rows){
+				long[] r = new long[columns];
+				for(int j = 0; j < columns; j++){
+					r[j] = matrix[row][j];
+				}
+				
+				int pivot = reduce(r, basis, pivots);
+				if(pivot >= 0){
+					basis.add(r);
+					pivots.add(pivot);
+				}
+			}
+			
+			long[] target = new long[columns];
+			target[0] = 1;
+			return reduce(target, basis, pivots) < 0;
+		} catch(ArithmeticException e){
+			return false;
+		}
+	}
+	
+	/**
+	 * Eliminates the basis' pivot columns from a vector, in place.
+	 * @return the column of the reduced vector's leading entry, or -1 if the
+	 * vector lies in the span of the basis
+	 */
+	private static int reduce(long[] r, List<long[]> basis, List<Integer> pivots){
+		for(int i = 0; i < basis.size(); i++){
+			long[] b = basis.get(i);
+			int p = pivots.get(i);
+			if(r[p] == 0) continue;
+			
+			// r = r * b[p] - b * r[p], then divided through by the gcd of its entries
+			long scale = r[p];
+			long g = 0;
+			for(int j = 0; j < r.length; j++){
+				r[j] = Math.subtractExact(Math.multiplyExact(r[j], b[p]),
+						Math.multiplyExact(b[j], scale));
+				g = gcd(g, r[j]);
+			}
+			if(g > 1){
+				for(int j = 0; j < r.length; j++){
+					r[j] /= g;
+				}
+			}
+		}
+		
+		for(int j = 0; j < r.length; j++){
+			if(r[j] != 0) return j;
+		}
+		return -1;
+	}
+	
+	private static long gcd(long a, long b){
+		while(b != 0){
+			long t = a % b;
+			a = b;
+			b = t;
+		}
+		return Math.abs(a);
+	}
+	
 	/**
 	 * Converts this share generating matrix to an array of bytes.
 	 */
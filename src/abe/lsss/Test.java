@@ -1,11 +1,20 @@
 package abe.lsss;
 
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
 public class Test {
+	
+	// random policies checked against a brute-force search over held rows
+	private static final int POLICIES = 2000;
+	private static final int MAX_LEAVES = 12;
+	
 	public static void main(String[] args){
 		LSSSNode n = new LSSSAndNode(new LSSSLeafNode(1), new LSSSLeafNode(2));
 		n = new LSSSOrNode(new LSSSLeafNode(3), n);
 		n = new LSSSAndNode(new LSSSLeafNode(0), n);
-
+		
 		ShareGeneratingMatrix m = n.getMatrix();
 		
 		for(int i = 0; i < m.matrix.length; i++){
@@ -15,12 +24,126 @@ public class Test {
 			System.out.print("\n");
 		}
 		System.out.println(" ");
-		m.computeReconstructionCoefficients();
+		m.computeReconstructionCoefficients(new HashSet<Integer>());
 		
 		int[] rrs = m.getReconstructionCoefficients();
 		
 		for(int i = 0; i < rrs.length; i++){
 			System.out.println(rrs[i]);
 		}
+		
+		// Rows chosen from random held sets must reconstruct (1, 0, . . .) by
+		// themselves and lose that if any one of them is dropped.
+		Random rng = new Random(5);
+		int satisfiable = 0;
+		int minimum = 0;
+		int failures = 0;
+		for(int t = 0; t < POLICIES; t++){
+			int leaves = 1 + rng.nextInt(MAX_LEAVES);
+			ShareGeneratingMatrix policy = randomPolicy(0, leaves, rng).getMatrix();
+			int rows = policy.getMatrix().length;
+			
+			Set<Integer> held = new HashSet<Integer>();
+			for(int i = 0; i < rows; i++){
+				if(rng.nextInt(4) != 0) held.add(i);
+			}
+			
+			int smallest = smallestSatisfyingSubset(policy, held);
+			Set<Integer> chosen = policy.chooseSatisfyingRows(held);
+			
+			if(smallest < 0){
+				// nothing held satisfies the policy, so no coefficients exist
+				if(policy.solveReconstructionCoefficients(chosen)){
+					System.out.println("Unsatisfiable rows "+held+" solved.");
+					failures++;
+				}
+				continue;
+			}
+			satisfiable++;
+			
+			if(!held.containsAll(chosen) || !policy.solveReconstructionCoefficients(chosen) ||
+					!reconstructs(policy, chosen)){
+				System.out.println("Rows "+chosen+" chosen from "+held+" do not reconstruct.");
+				failures++;
+				continue;
+			}
+			
+			for(Integer row : chosen){
+				Set<Integer> fewer = new HashSet<Integer>(chosen);
+				fewer.remove(row);
+				if(smallestSatisfyingSubset(policy, fewer) >= 0){
+					System.out.println("Rows "+chosen+" chosen from "+held+
+							" are not minimal; "+row+" may be dropped.");
+					failures++;
+					break;
+				}
+			}
+			
+			if(chosen.size() == smallest) minimum++;
+		}
+		
+		System.out.println(satisfiable+" satisfiable random policies, "+failures+
+				" failures; "+minimum+" chosen sets of the smallest possible size.");
+		if(failures > 0){
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Builds a random tree of AND and OR nodes over the attributes first to
+	 * first + count - 1.
+	 */
+	private static LSSSNode randomPolicy(int first, int count, Random rng){
+		if(count == 1){
+			return new LSSSLeafNode(first);
+		}
+		int split = 1 + rng.nextInt(count - 1);
+		LSSSNode left = randomPolicy(first, split, rng);
+		LSSSNode right = randomPolicy(first + split, count - split, rng);
+		return rng.nextBoolean() ? new LSSSAndNode(left, right) : new LSSSOrNode(left, right);
+	}
+	
+	/**
+	 * Returns the size of the smallest subset of the passed rows which
+	 * reconstructs the secret, found by trying every subset, or -1 if there
+	 * is none.
+	 */
+	private static int smallestSatisfyingSubset(ShareGeneratingMatrix policy, 
+			Set<Integer> rows){
+		Integer[] candidates = rows.toArray(new Integer[rows.size()]);
+		int smallest = -1;
+		for(int mask = 1; mask < (1 << candidates.length); mask++){
+			int size = Integer.bitCount(mask);
+			if(smallest >= 0 && size >= smallest) continue;
+			
+			Set<Integer> subset = new HashSet<Integer>();
+			for(int i = 0; i < candidates.length; i++){
+				if((mask >> i & 1) == 1) subset.add(candidates[i]);
+			}
+			if(policy.solveReconstructionCoefficients(subset) && reconstructs(policy, subset)){
+				smallest = size;
+			}
+		}
+		return smallest;
+	}
+	
+	/**
+	 * Returns true if the policy's coefficients use only the passed rows and
+	 * combine them into (1, 0, 0 . . .).
+	 */
+	private static boolean reconstructs(ShareGeneratingMatrix policy, Set<Integer> rows){
+		int[][] matrix = policy.getMatrix();
+		int[] w = policy.getReconstructionCoefficients();
+		for(int i = 0; i < matrix.length; i++){
+			if(w[i] != 0 && !rows.contains(i)) return false;
+		}
+		for(int j = 0; j < matrix[0].length; j++){
+			long sum = 0;
+			for(int i = 0; i < matrix.length; i++){
+				sum += (long) w[i] * matrix[i][j];
+			}
+			if(sum != (j == 0 ? 1 : 0)) return false;
+		}
+		return true;
 	}
 }
@@ -8,7 +8,11 @@ import java.io.ByteArrayInputStream;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import abe.Ciphertext;
 import abe.lsss.LSSSAndNode;
@@ -27,15 +31,14 @@ public class Test {
 			
 			System.out.println("MSK, MPP generated");
 			
-			p.registerNewAttribute("attribute_1");
-			p.registerNewAttribute("attribute_2");
-			p.registerNewAttribute("attribute_3");
-			p.registerNewAttribute("attribute_4");
+			for(int i = 1; i <= 100; i++){
+				p.registerNewAttribute("attribute_"+i);
+			}
 			
 			p.writeToFile("public.parameters");
 			
 			Waters08MasterPublicParameters p2 = new Waters08MasterPublicParameters();
-
+			
 			p2.initializeFromFile("public.parameters");
 			
 			msk.writeToFile("master.key");
@@ -91,8 +94,93 @@ public class Test {
 			BigInteger recons = new BigInteger(pt);
 			
 			System.out.println(recons.toString());
+			
+			// Folded decryption against the per-row product of pairings, over
+			// random policies of growing size
+			List<String> all = new ArrayList<String>();
+			for(int i = 1; i <= 100; i++){
+				all.add("attribute_"+i);
+			}
+			Waters08PrivateKey allKey = (Waters08PrivateKey) scheme.generatePrivateKey(all);
+			Random rng = new Random(1);
+			int[] sizes = {1, 2, 5, 10, 20, 50, 100};
+			for(int size : sizes){
+				List<Integer> ids = new ArrayList<Integer>();
+				for(int i = 0; i < size; i++){
+					ids.add(p2.getAttribute("attribute_"+(i + 1)).getIdentifier());
+				}
+				Collections.shuffle(ids, rng);
+				ShareGeneratingMatrix policy = randomPolicy(ids, rng).getMatrix();
+				
+				Waters08AuxiliaryCiphertext aux = (Waters08AuxiliaryCiphertext)
+						scheme.computeAuxiliaryCiphertext(policy, rng);
+				Element expected = aux.getMultiplierElement().duplicate();
+				
+				// the key holds every attribute, so decryption solves over the
+				// rows chosen from all of them and leaves the rest at 0
+				HashSet<Integer> rows = new HashSet<Integer>();
+				for(int i = 0; i < policy.getMatrix().length; i++){
+					rows.add(i);
+				}
+				if(!policy.solveReconstructionCoefficients(policy.chooseSatisfyingRows(rows))){
+					System.out.println(size+" attributes: no reconstruction coefficients.");
+					continue;
+				}
+				
+				long folded = System.currentTimeMillis();
+				Element multiplier = scheme.computeMultiplier(aux, allKey);
+				folded = System.currentTimeMillis() - folded;
+				
+				scheme.setPairingPool(ForkJoinPool.commonPool());
+				long parallel = System.currentTimeMillis();
+				Element parallelMultiplier = scheme.computeMultiplier(aux, allKey);
+				parallel = System.currentTimeMillis() - parallel;
+				scheme.setPairingPool(null);
+				
+				long perRow = System.currentTimeMillis();
+				Element reference = perRowMultiplier(pa, aux, allKey);
+				perRow = System.currentTimeMillis() - perRow;
+				
+				System.out.println(size+" attributes: folded "+folded+"ms, parallel "+parallel+
+						"ms, per row "+perRow+"ms, folded match "+multiplier.isEqual(reference)+
+						", parallel match "+parallelMultiplier.isEqual(reference)+
+						", reference match "+reference.isEqual(expected));
+			}
 		} catch(Exception e){
 			e.printStackTrace();
 		}
 	}
+	
+	/**
+	 * Builds a random tree of AND and OR nodes over the passed attributes.
+	 */
+	private static LSSSNode randomPolicy(List<Integer> ids, Random rng){
+		if(ids.size() == 1){
+			return new LSSSLeafNode(ids.get(0));
+		}
+		int split = 1 + rng.nextInt(ids.size() - 1);
+		LSSSNode left = randomPolicy(ids.subList(0, split), rng);
+		LSSSNode right = randomPolicy(ids.subList(split, ids.size()), rng);
+		return rng.nextBoolean() ? new LSSSAndNode(left, right) : new LSSSOrNode(left, right);
+	}
+	
+	/**
+	 * Computes the multiplier with two pairings per row, as in section 3 of the
+	 * paper.
+	 */
+	private static Element perRowMultiplier(Pairing pa, Waters08AuxiliaryCiphertext aux,
+			Waters08PrivateKey key){
+		Element denominator = pa.getGT().newOneElement();
+		int[] w = aux.getAccessStructure().getReconstructionCoefficients();
+		for(int i = 0; i < aux.getPairs().length; i++){
+			if(w[i] == 0) continue; // row not used
+			
+			int id = aux.getAccessStructure().getAttributeIDForRow(i);
+			Element r = pa.pairing(aux.getPairs()[i].C, key.getL()).mul(
+					pa.pairing(aux.getPairs()[i].D, key.getAttributeKey(id)));
+			Element ri = r.pow(BigInteger.valueOf(w[i]).abs());
+			denominator = w[i] < 0 ? denominator.div(ri) : denominator.mul(ri);
+		}
+		return pa.pairing(aux.getCPrime(), key.getK()).div(denominator);
+	}
 }
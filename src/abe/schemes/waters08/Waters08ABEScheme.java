@@ -7,9 +7,14 @@ import it.unisa.dia.gas.jpbc.Pairing;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 import misc.numbers.BigIntegerUtilities;
 import abe.ABEScheme;
@@ -36,9 +41,28 @@ import abe.schemes.waters08.Waters08AuxiliaryCiphertext.Waters08AuxiliaryPair;
  */
 public class Waters08ABEScheme extends ABEScheme {
 	
+	// Smallest number of distinct attributes paired in a decryption for the
+	// pairings to be split across the pairing pool, and the number of
+	// attribute pairings computed together by one task.
+	public static final int PARALLEL_PAIRING_THRESHOLD = 8;
+	public static final int PAIRINGS_PER_TASK = 4;
+	
 	private Waters08MasterPublicParameters publicParameters = null;
 	private Waters08MasterSecretKey masterSecretKey = null;
 	
+	// pool on which the pairings of large decryptions are computed, if any
+	private ForkJoinPool pairingPool = null;
+	
+	/**
+	 * Has decryptions pairing at least PARALLEL_PAIRING_THRESHOLD distinct
+	 * attributes split their pairings across a pool; by default all pairings
+	 * are computed on the calling thread.
+	 * @param pool pool on which to compute pairings, or null for none
+	 */
+	public void setPairingPool(ForkJoinPool pool){
+		this.pairingPool = pool;
+	}
+	
 	@Override
 	public Ciphertext encrypt(ShareGeneratingMatrix accessStructure, byte[] plaintext,
 			Random rng){
@@ -70,18 +94,25 @@ public class Waters08ABEScheme extends ABEScheme {
 		Waters08PrivateKey key = (Waters08PrivateKey) k;
 		
 		// Calculate reconstruction coefficients within the access structure
-		// according to the actual held coefficients.
+		// according to the actual held coefficients, using only as many of the
+		// held rows as are needed so that no pairing is spent on the others.
 		ShareGeneratingMatrix m = aux.getAccessStructure();
+		Set<Integer> held = new HashSet<Integer>();
 		Set<Integer> missed = new HashSet<Integer>();
 		int[][] mat = m.getMatrix();
 		for(int i = 0; i < mat.length; i++){
 			int attID = m.getAttributeIDForRow(i);
 			if(key.getAttributeKey(attID)==null){
 				missed.add(i);
+			} else{
+				held.add(i);
 			}
 		}
-
-		m.computeReconstructionCoefficients(missed);
+		
+		// rows outside the chosen set get a coefficient of 0 and are skipped
+		if(!m.solveReconstructionCoefficients(m.chooseSatisfyingRows(held))){
+			m.computeReconstructionCoefficients(missed);
+		}
 		
 		// Compute the multiplier
 		Element multiplier = computeMultiplier(aux, k);
@@ -130,7 +161,7 @@ public class Waters08ABEScheme extends ABEScheme {
 		}
 		
 		// C' = g^{s}
-		Element Cp = publicParameters.getGenerator().duplicate().pow(v[0]);
+		Element Cp = publicParameters.powGenerator(v[0]);
 		
 		Waters08AuxiliaryPair[] pairs = new Waters08AuxiliaryPair[l];
 		
@@ -139,19 +170,12 @@ public class Waters08ABEScheme extends ABEScheme {
 			Waters08EntityAttribute attribute = publicParameters.getAttribute(id);
 			
 					     // g^{a * lambda_i} * h^{-r_i}
-			Element Cl = null;
-			
-			if(lambda[i].compareTo(BigInteger.ZERO) > 0){
-				Cl = publicParameters.getGPowA().duplicate().pow(lambda[i]).
-					div(attribute.geth().duplicate().pow(r[i]));
-			} else{
-				Cl = publicParameters.getGroup().newOneElement().div(
-						publicParameters.getGPowA().duplicate().pow(lambda[i].abs())).
-						div(attribute.geth().duplicate().pow(r[i]));
-			}
+			// (exponents are taken mod p, so a negative lambda_i needs no inverse)
+			Element Cl = publicParameters.powGPowA(lambda[i]).
+					div(publicParameters.powAttribute(attribute, r[i]));
 			
 			// g^{r_i}
-			Element Dl = publicParameters.getGenerator().duplicate().pow(r[i]);
+			Element Dl = publicParameters.powGenerator(r[i]);
 			
 			pairs[i] = new Waters08AuxiliaryPair(Cl, Dl);
 		} 
@@ -160,8 +184,7 @@ public class Waters08ABEScheme extends ABEScheme {
 				Cp, pairs);
 		
 		// C = M * e(g,g)^{alpha * s}
-		Element multiplier = 
-				publicParameters.getPairingAlpha().duplicate().pow(v[0]);
+		Element multiplier = publicParameters.powPairingAlpha(v[0]);
 		
 		aux.setMultiplierElement(multiplier);
 		
@@ -181,48 +204,146 @@ public class Waters08ABEScheme extends ABEScheme {
 		
 		Pairing pairingOperator = publicParameters.getPairing();
 		
-		Element numerator = pairingOperator.pairing(aux.getCPrime(), k.getK()); // e(C',K)
+		// K and L are preprocessed once per key, as each is paired once in every
+		// decryption; the pairing is symmetric, so e(C',K) = e(K,C')
+		Element numerator = k.pairK(pairingOperator, aux.getCPrime()); // e(C',K)
 		Waters08AuxiliaryPair[] pairs = aux.getPairs();
-		Element denominator = null;
+		
+		// By bilinearity, prod (e(C_i, L) * e(D_i, K_{f(i)}))^{w_i} is
+		//   e(prod C_i^{w_i}, L) * prod_x e(prod_{f(i)=x} D_i^{w_i}, K_x),
+		// so the w_i are applied in G1 and only one pairing is needed for L and
+		// one for each distinct attribute.
+		Element cProduct = null;
+		Map<Integer, Element> dProducts = new LinkedHashMap<Integer, Element>();
 		
 		int[] w = aux.getAccessStructure().getReconstructionCoefficients(); // w_i
-		int i = 0;
-		do{
+		for(int i = 0; i < pairs.length; i++){
 			int attributeID = aux.getAccessStructure().getAttributeIDForRow(i);
 			
-			if(k.getAttributeKey(attributeID) == null){
-				i++; continue; // skip if attribute not held
+			if(k.getAttributeKey(attributeID) == null || w[i] == 0){
+				continue; // skip if attribute not held or row not used
 			}
 			
-			Element a = pairingOperator.pairing(pairs[i].C, k.getL()); // e(C_i, L)
-			Element b = pairingOperator.pairing(pairs[i].D, k.getAttributeKey(attributeID));
-					// e(D_i, K_{f(i)})
-			Element r = a.mul(b);
-			
-			BigInteger wi = BigInteger.valueOf(w[i]);
-			
-			if(denominator == null){
-				if(wi.compareTo(BigInteger.ZERO) < 0){
-					denominator = pairingOperator.getGT().newOneElement().div(r.pow(wi.abs()));
-				} else{
-					denominator = r.pow(wi);
-				}
-			} else{
-				if(wi.compareTo(BigInteger.ZERO) < 0){
-					denominator = denominator.div(r.pow(wi.abs()));
-				} else{
-					denominator = denominator.mul(r.pow(wi));
-				}
-			}
+			Element ci = raise(pairs[i].C, w[i]); // C_i^{w_i}
+			cProduct = cProduct == null ? ci : cProduct.mul(ci);
 			
-			i++;
-		} while(i < pairs.length);
+			Element di = raise(pairs[i].D, w[i]); // D_i^{w_i}
+			Element dProduct = dProducts.get(attributeID);
+			dProducts.put(attributeID, dProduct == null ? di : dProduct.mul(di));
+		}
+		
+		if(cProduct == null){
+			throw new InvalidPrivateKeyException("Private key satisfies no row of the "+
+					"access structure.");
+		}
+		
+		int[] ids = new int[dProducts.size()];
+		Element[] ds = new Element[dProducts.size()];
+		int j = 0;
+		for(Map.Entry<Integer, Element> entry : dProducts.entrySet()){
+			ids[j] = entry.getKey();
+			ds[j] = entry.getValue();
+			j++;
+		}
+		
+		// Large decryptions compute the attribute pairings on the pool, in a
+		// tree of tasks whose partial products are combined as they join, while
+		// this thread computes the pairing with L.
+		ForkJoinTask<Element> attributePairings = null;
+		if(pairingPool != null && ids.length >= PARALLEL_PAIRING_THRESHOLD){
+			attributePairings = pairingPool.submit(
+					new AttributePairingTask(pairingOperator, k, ids, ds, 0, ids.length));
+		}
+		
+		Element denominator = k.pairL(pairingOperator, cProduct); // e(prod C_i^{w_i}, L)
+		if(attributePairings != null){
+			denominator.mul(attributePairings.join());
+		} else{
+			denominator.mul(pairAttributeKeys(pairingOperator, k, ids, ds, 0, ids.length));
+		}
 		
 		Element multiplier = numerator.div(denominator);
 		
 		return multiplier;
 	}
 	
+	/**
+	 * Returns e^{w} for a small, non-zero w.
+	 */
+	private static Element raise(Element e, int w){
+		Element r = e.duplicate();
+		if(Math.abs(w) != 1){
+			r.pow(BigInteger.valueOf(Math.abs(w)));
+		}
+		return w < 0 ? r.invert() : r;
+	}
+	
+	/**
+	 * Returns the product of e(D_x, K_x) over the passed elements D_x and
+	 * attribute IDs x, from index from up to index to.  This product pairing,
+	 * sharing one final exponentiation, is the fast path for the attribute
+	 * keys, which the key does not preprocess; pairings are only computed one
+	 * at a time if the pairing does not support products.
+	 */
+	private static Element pairAttributeKeys(Pairing pairingOperator, Waters08PrivateKey k,
+			int[] ids, Element[] ds, int from, int to){
+		if(to - from > 1 && pairingOperator.isProductPairingSupported()){
+			Element[] in1 = new Element[to - from];
+			Element[] in2 = new Element[to - from];
+			for(int j = from; j < to; j++){
+				in1[j - from] = ds[j];
+				in2[j - from] = k.getAttributeKey(ids[j]);
+			}
+			return pairingOperator.pairing(in1, in2);
+		}
+		
+		Element product = pairingOperator.getGT().newOneElement();
+		for(int j = from; j < to; j++){
+			product.mul(pairingOperator.pairing(ds[j], k.getAttributeKey(ids[j])));
+		}
+		return product;
+	}
+	
+	/**
+	 * Computes the product of the attribute pairings in a range by splitting it
+	 * in halves until each holds at most PAIRINGS_PER_TASK pairings.
+	 */
+	private static class AttributePairingTask extends RecursiveTask<Element> {
+		private static final long serialVersionUID = 1L;
+		
+		private Pairing pairingOperator;
+		private Waters08PrivateKey k;
+		private int[] ids;
+		private Element[] ds;
+		private int from;
+		private int to;
+		
+		public AttributePairingTask(Pairing pairingOperator, Waters08PrivateKey k,
+				int[] ids, Element[] ds, int from, int to){
+			this.pairingOperator = pairingOperator;
+			this.k = k;
+			this.ids = ids;
+			this.ds = ds;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected Element compute(){
+			if(to - from <= PAIRINGS_PER_TASK){
+				return pairAttributeKeys(pairingOperator, k, ids, ds, from, to);
+			}
+			
+			int middle = (from + to) >>> 1;
+			AttributePairingTask left = 
+					new AttributePairingTask(pairingOperator, k, ids, ds, from, middle);
+			left.fork();
+			Element right = 
+					new AttributePairingTask(pairingOperator, k, ids, ds, middle, to).compute();
+			return left.join().mul(right);
+		}
+	}
+	
 	@Override
 	public PrivateKey generatePrivateKeyInternal(List<? extends EntityAttribute>
 			attributes) throws InvalidAttributeException{
@@ -241,8 +362,8 @@ public class Waters08ABEScheme extends ABEScheme {
 				publicParameters.getGroup().getOrder()); // Choose t
 		
 		Element k = masterSecretKey.getGPowAlpha().duplicate(). // g^{alpha} 
-					mul(publicParameters.getGPowA().duplicate().pow(tSecret)); // * g^(at)
-		Element l = publicParameters.getGenerator().duplicate().pow(tSecret); // g^t
+					mul(publicParameters.powGPowA(tSecret)); // * g^(at)
+		Element l = publicParameters.powGenerator(tSecret); // g^t
 		
 		Waters08PrivateKey key = new Waters08PrivateKey(k, l);
 		
@@ -252,7 +373,7 @@ public class Waters08ABEScheme extends ABEScheme {
 			}
 			
 			Waters08EntityAttribute a = (Waters08EntityAttribute) att;
-			Element hPowT = a.geth().duplicate().pow(tSecret); // (h_x)^{t}
+			Element hPowT = publicParameters.powAttribute(a, tSecret); // (h_x)^{t}
 			
 			key.addAttributeKey(a.getIdentifier(), hPowT);
 		}
@@ -1,6 +1,7 @@
 package abe.schemes.waters08;
 
 import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.ElementPowPreProcessing;
 import it.unisa.dia.gas.jpbc.Field;
 import it.unisa.dia.gas.jpbc.Pairing;
 import it.unisa.dia.gas.jpbc.PairingParameters;
@@ -22,6 +23,7 @@ import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import misc.io.StreamUtils;
@@ -44,6 +46,10 @@ import abe.MasterSecretKey;
  * @author Aubrey Alston (ada2145@columbia.edu)
  */
 public class Waters08MasterPublicParameters extends MasterPublicParameters{
+	
+	// Largest number of attributes whose exponentiation tables are kept; each
+	// table holds a few thousand group elements.
+	public static final int MAX_ATTRIBUTE_TABLES = 64;
 
 	private int systemBitLength; // bit-length of the system
 	
@@ -62,6 +68,13 @@ public class Waters08MasterPublicParameters extends MasterPublicParameters{
 	private Map<String, Waters08EntityAttribute> stringToAttributeMap;
 	private Map<Integer, Waters08EntityAttribute> idToAttributeMap;
 	
+	// Fixed-base exponentiation tables for g, g^{a}, and e(g,g)^{alpha}, built
+	// when first used, and for the most recently used attributes' h_{i}.
+	private ElementPowPreProcessing generatorTable;
+	private ElementPowPreProcessing generatorATable;
+	private ElementPowPreProcessing pairingAlphaTable;
+	private LinkedHashMap<Integer, ElementPowPreProcessing> attributeTables;
+	
 	private volatile int nextUnusedIdentifier = 0; // Next unused attribute identifier
 												   // declared volatile and to be used within
 												   // synchronized blocks to prevent race
@@ -71,6 +84,14 @@ public class Waters08MasterPublicParameters extends MasterPublicParameters{
 	public Waters08MasterPublicParameters(){
 		stringToAttributeMap = new HashMap<String, Waters08EntityAttribute>();
 		idToAttributeMap = new HashMap<Integer, Waters08EntityAttribute>();
+		attributeTables = new LinkedHashMap<Integer, ElementPowPreProcessing>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, ElementPowPreProcessing> e){
+				return size() > MAX_ATTRIBUTE_TABLES;
+			}
+		};
 	}
 	
 	public int getOperableBitLength(){
@@ -99,6 +120,78 @@ public class Waters08MasterPublicParameters extends MasterPublicParameters{
 		return generator;
 	}
 	
+	/**
+	 * Returns g^{n}, using a table built once for these parameters.
+	 */
+	public Element powGenerator(BigInteger n){
+		ElementPowPreProcessing table;
+		synchronized(this){
+			if(generatorTable == null){
+				generatorTable = generator.getElementPowPreProcessing();
+			}
+			table = generatorTable;
+		}
+		return table.pow(n.mod(groupOrder));
+	}
+	
+	/**
+	 * Returns (g^{a})^{n}, using a table built once for these parameters.
+	 */
+	public Element powGPowA(BigInteger n){
+		ElementPowPreProcessing table;
+		synchronized(this){
+			if(generatorATable == null){
+				generatorATable = generator_a.getElementPowPreProcessing();
+			}
+			table = generatorATable;
+		}
+		return table.pow(n.mod(groupOrder));
+	}
+	
+	/**
+	 * Returns (e(g,g)^{alpha})^{n}, using a table built once for these parameters.
+	 */
+	public Element powPairingAlpha(BigInteger n){
+		ElementPowPreProcessing table;
+		synchronized(this){
+			if(pairingAlphaTable == null){
+				pairingAlphaTable = pairing_alpha.getElementPowPreProcessing();
+			}
+			table = pairingAlphaTable;
+		}
+		return table.pow(n.mod(groupOrder));
+	}
+	
+	/**
+	 * Returns (h_{i})^{n} for an attribute, using a table built when the
+	 * attribute is first used and kept while it remains among the most
+	 * recently used.
+	 */
+	public Element powAttribute(Waters08EntityAttribute attribute, BigInteger n){
+		ElementPowPreProcessing table;
+		synchronized(this){
+			table = attributeTables.get(attribute.getIdentifier());
+		}
+		if(table == null){
+			// built outside the lock; a table built twice is merely wasted
+			table = attribute.geth().getElementPowPreProcessing();
+			synchronized(this){
+				attributeTables.put(attribute.getIdentifier(), table);
+			}
+		}
+		return table.pow(n.mod(groupOrder));
+	}
+	
+	/**
+	 * Drops the exponentiation tables, whose bases are about to change.
+	 */
+	private synchronized void clearTables(){
+		generatorTable = null;
+		generatorATable = null;
+		pairingAlphaTable = null;
+		attributeTables.clear();
+	}
+	
 	/**
 	 * Returns the pairing specified under these public parameters.
 	 */
@@ -125,6 +218,7 @@ public class Waters08MasterPublicParameters extends MasterPublicParameters{
 	public MasterSecretKey initializeRandomly(int bits){
 		
 		this.systemBitLength = bits;
+		clearTables();
 		
 		// Generate random curve
 		TypeACurveGenerator curveGenerator = new TypeACurveGenerator(bits, bits);
@@ -247,6 +341,7 @@ public class Waters08MasterPublicParameters extends MasterPublicParameters{
 		DataInputStream in = new DataInputStream(stream);
 		
 		this.pairingParameters = new String(StreamUtils.readAdvertisedBytes(in));
+		clearTables();
 		
 		
 		// Write temporary file and use the pairing parameters to restore the pairing
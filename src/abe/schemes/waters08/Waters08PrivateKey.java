@@ -1,6 +1,8 @@
 package abe.schemes.waters08;
 
 import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.Pairing;
+import it.unisa.dia.gas.jpbc.PairingPreProcessing;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -40,6 +42,14 @@ public class Waters08PrivateKey extends PrivateKey {
 	private Map<Integer, Element> attributeKeys; // map from attribute ID to attribute
 												 // key (h_{x})^{t}
 	
+	// Pairings preprocessed for K and L, which every decryption pairs once
+	// each, built when first needed or by preparePairings(); each is only
+	// read once built, so one may be shared by concurrent decryptions.  The
+	// attribute keys are not preprocessed, as decryptions pair them together
+	// in a product pairing sharing one final exponentiation.
+	private PairingPreProcessing kPairing;
+	private PairingPreProcessing lPairing;
+	
 	public Waters08PrivateKey(){
 		attributeKeys = new HashMap<Integer, Element>();
 	}
@@ -94,6 +104,51 @@ public class Waters08PrivateKey extends PrivateKey {
 		attributeKeys.put(attributeID, key);
 	}
 	
+	/**
+	 * Returns e(K, x).
+	 * @param pairing pairing of the key's public parameters
+	 * @param x element to pair with K
+	 */
+	public Element pairK(Pairing pairing, Element x){
+		PairingPreProcessing p;
+		synchronized(this){
+			if(kPairing == null){
+				kPairing = pairing.getPairingPreProcessingFromElement(K);
+			}
+			p = kPairing;
+		}
+		return p.pairing(x);
+	}
+	
+	/**
+	 * Returns e(L, x).
+	 * @param pairing pairing of the key's public parameters
+	 * @param x element to pair with L
+	 */
+	public Element pairL(Pairing pairing, Element x){
+		PairingPreProcessing p;
+		synchronized(this){
+			if(lPairing == null){
+				lPairing = pairing.getPairingPreProcessingFromElement(L);
+			}
+			p = lPairing;
+		}
+		return p.pairing(x);
+	}
+	
+	/**
+	 * Preprocesses the pairings of K and L, so that a key used for many
+	 * decryptions does not pay for them on its first use.
+	 * @param parameters public parameters of the key
+	 */
+	public void preparePairings(Waters08MasterPublicParameters parameters){
+		Pairing pairing = parameters.getPairing();
+		synchronized(this){
+			kPairing = pairing.getPairingPreProcessingFromElement(K);
+			lPairing = pairing.getPairingPreProcessingFromElement(L);
+		}
+	}
+	
 	@Override
 	public void initializeFromFile(MasterPublicParameters parameters,
 			String path) throws IOException, InvalidPublicParametersException {
@@ -154,6 +209,10 @@ public class Waters08PrivateKey extends PrivateKey {
 		
 		K = params.getGroup().newElementFromBytes(StreamUtils.readAdvertisedBytes(in));
 		L = params.getGroup().newElementFromBytes(StreamUtils.readAdvertisedBytes(in));
+		synchronized(this){
+			kPairing = null;
+			lPairing = null;
+		}
 		
 		while(in.available() > 0){ // Deserialize and add each attribute
  	    	int id = in.readInt();
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
 
 import misc.logging.SimpleLogger;
 
@@ -18,6 +19,7 @@ import abe.MasterPublicParameters;
 import abe.PrivateKey;
 import abe.schemes.waters08.Waters08MasterPublicParameters;
 import abe.schemes.waters08.Waters08PrivateKey;
+import aefs.encryption.EncryptedFileSector;
 import aefs.protocols.authorization.MasterSessionKey;
 import aefs.protocols.authorization.MasterSessionToken;
 import aefs.protocols.requests.ClientMasterSessionRequest;
@@ -37,6 +39,24 @@ public class AEFSClient {
 	public MasterSessionKey sessionKey = null;
 	public MasterSessionToken sessionToken = null;;
 	
+	public AEFSConnection connection = null;
+	
+	// request that gets over a persistent connection be sent directly from disk
+	public boolean directTransfers = false;
+	
+	// compress sectors of put files before encrypting them
+	public boolean compressSectors = false;
+	
+	// size of the sectors of put files
+	public int sectorSize = EncryptedFileSector.DEFAULT_SECTOR_SIZE;
+	
+	// pool on which sectors are encrypted and decrypted
+	public ForkJoinPool sectorPool = ForkJoinPool.commonPool();
+	
+	// pool on which the pairings of keys under large policies are computed, or
+	// null to compute them on the requesting thread
+	public ForkJoinPool pairingPool = null;
+	
 	/**
 	 * Initializes an AEFSClient.
 	 * @param masterAddress address of the AEFS master
@@ -92,6 +112,19 @@ public class AEFSClient {
 				"parameters should be read.");
 		options.addOption("key_path", true, "Path from the private key should be read.");
 		options.addOption("master_address", true, "Address pointing to the AEFS master.");
+		options.addOption("persistent", "Authenticate once and issue all requests over a "+
+				"single persistent connection.");
+		options.addOption("direct", "With -persistent, have the master send file sectors "+
+				"directly from disk, authenticated by a MAC.");
+		options.addOption("compress", "Compress each sector of put files before "+
+				"encrypting it.");
+		options.addOption("sector_size", true, "Size in KB of the sectors of put files, a "+
+				"power of two from 4 to 4096 (default 4).  Large sectors suit large files "+
+				"read in sequence; small sectors suit files read or updated in parts.");
+		options.addOption("sector_threads", true, "Number of threads on which sectors are "+
+				"encrypted and decrypted (default one fewer than the number of cores).");
+		options.addOption("parallel_pairings", "Compute the pairings of keys under large "+
+				"policies on the sector threads.");
 		
 		CommandLineParser parser = new DefaultParser();
 		try{
@@ -143,6 +176,44 @@ public class AEFSClient {
 					SimpleLogger.error("No session token received.  Exiting.");
 				}
 				
+				client.directTransfers = cmd.hasOption("direct");
+				client.compressSectors = cmd.hasOption("compress");
+				
+				String sectorSizeStr = cmd.getOptionValue("sector_size");
+				if(sectorSizeStr != null){
+					try{
+						client.sectorSize = Integer.parseInt(sectorSizeStr) * 1024;
+					} catch(NumberFormatException e){
+						client.sectorSize = -1;
+					}
+					if(!EncryptedFileSector.isValidSectorSize(client.sectorSize)){
+						SimpleLogger.error("sector_size must be a power of two from 4 to 4096.");
+						System.exit(1);
+					}
+				}
+				
+				String sectorThreadsStr = cmd.getOptionValue("sector_threads");
+				if(sectorThreadsStr != null){
+					try{
+						client.sectorPool = new ForkJoinPool(Integer.parseInt(sectorThreadsStr));
+					} catch(IllegalArgumentException e){
+						SimpleLogger.error("sector_threads must be a positive integer.");
+						System.exit(1);
+					}
+				}
+				if(cmd.hasOption("parallel_pairings")){
+					client.pairingPool = client.sectorPool;
+				}
+				
+				if(cmd.hasOption("persistent")){
+					try{
+						client.connection = new AEFSConnection(client);
+						SimpleLogger.info("Persistent connection established.");
+					} catch(MalformedRequestException e){
+						SimpleLogger.error(e.getMessage()+"  Using one connection per request.");
+					}
+				}
+				
 				SimpleLogger.info("Client started.  Use <Ctrl-C> to quit.");
 				
 				// Set up simple command input loop.
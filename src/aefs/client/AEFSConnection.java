@@ -0,0 +1,103 @@
+package aefs.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import misc.logging.SimpleLogger;
+import aefs.encryption.RandomlyPaddedDecryptionStream;
+import aefs.encryption.RandomlyPaddedEncryptionStream;
+import aefs.protocols.requests.ClientConnectRequest;
+import aefs.protocols.requests.ClientRequest;
+import aefs.protocols.requests.ControlMessageCodec;
+import aefs.protocols.requests.MalformedRequestException;
+import aefs.protocols.requests.MasterRejectedException;
+
+/**
+ * Persistent connection to the AEFS master.  The client authenticates once
+ * when the connection is opened; requests submitted afterwards share the
+ * connection's socket and encrypted channel.
+ */
+public class AEFSConnection {
+	
+	private AEFSClient client;
+	
+	private Socket socket;
+	private InputStream rawIn;
+	private RandomlyPaddedDecryptionStream in;
+	private RandomlyPaddedEncryptionStream out;
+	
+	private ControlMessageCodec codec = new ControlMessageCodec();
+	
+	/**
+	 * Opens a persistent connection to the master of the passed client.
+	 * @param client client holding a session key and token
+	 * @throws MalformedRequestException if the connection cannot be established
+	 */
+	public AEFSConnection(AEFSClient client) throws MalformedRequestException {
+		this.client = client;
+		
+		try{
+			socket = new Socket(client.masterAddress, client.masterPort);
+			OutputStream rawOut = socket.getOutputStream();
+			rawIn = socket.getInputStream();
+			
+			ClientConnectRequest request = new ClientConnectRequest();
+			codec.write(request.getContent(), rawOut);
+			codec.readStatus(rawIn);
+			request.doRequest(client, rawOut, rawIn);
+			
+			in = request.getChannelIn();
+			out = request.getChannelOut();
+		} catch(MasterRejectedException e){
+			close();
+			throw new MalformedRequestException("AEFS master rejected persistent "+
+					"connection ("+e.getMessage()+").");
+		} catch(IOException e){
+			close();
+			throw new MalformedRequestException("Cannot open persistent connection to "+
+					"AEFS master.");
+		}
+	}
+	
+	/**
+	 * Issues a request over this connection.  If the exchange fails, the
+	 * connection is closed and the client reverts to one connection per
+	 * request.
+	 * @param request request to issue
+	 */
+	public synchronized void submit(ClientRequest request) throws MalformedRequestException {
+		try{
+			codec.write(request.getContent(), out);
+			out.buffer();
+			
+			request.doRequestInSession(client, in, out);
+		} catch(IOException e){
+			SimpleLogger.error("Persistent connection to AEFS master lost: "+e.getMessage());
+			close();
+			throw new MalformedRequestException("Cannot communicate with AEFS master.");
+		}
+	}
+	
+	/**
+	 * Returns the unencrypted input stream of this connection, on which
+	 * payloads sent directly from the master's disk arrive.
+	 */
+	public InputStream getRawInputStream(){
+		return rawIn;
+	}
+	
+	/**
+	 * Closes this connection.
+	 */
+	public synchronized void close(){
+		if(client.connection == this){
+			client.connection = null;
+		}
+		
+		try{
+			socket.close();
+		} catch(Exception e){ }
+	}
+}
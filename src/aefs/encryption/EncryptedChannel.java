@@ -9,6 +9,8 @@ import misc.logging.SimpleLogger;
 
 /**
  * Class providing abstract support for two-way encrypted communication.
+ * Channels are framed as AES-GCM records (see RecordEncryptionStream), which
+ * deliver every buffered message in full.
  * @author Aubrey Alston (ada2145@columbia.edu)
  */
 public class EncryptedChannel {
@@ -16,7 +18,7 @@ public class EncryptedChannel {
 	public static RandomlyPaddedEncryptionStream startAES256EncryptionChannel(OutputStream out,
 			byte[] key, byte[] iv, byte[] pad) throws IOException{
 		try{
-			return new RandomlyPaddedEncryptionStream(out, key, iv, pad);
+			return new RecordEncryptionStream(out, key, iv, pad);
 		} catch(Exception e){
 			SimpleLogger.error("Unable to establish randomly padded encryption stream.");
 			return null;
@@ -26,7 +28,7 @@ public class EncryptedChannel {
 	public static RandomlyPaddedDecryptionStream startAES256DecryptionChannel(InputStream in,
 			byte[] key, byte[] iv) throws IOException{
 		try{
-			return new RandomlyPaddedDecryptionStream(in, key, iv, false);
+			return new RecordDecryptionStream(in, key, iv);
 		} catch(Exception e){
 			e.printStackTrace();
 			SimpleLogger.error("Unable to establish randomly padded decryption stream.");
@@ -47,10 +49,9 @@ public class EncryptedChannel {
 		
 		try{
 			if(outputStream != null){
-				out = new RandomlyPaddedEncryptionStream(outputStream, key,
-					iv, encPad);
+				out = new RecordEncryptionStream(outputStream, key, iv, encPad);
 			} if(inputStream != null){
-				in = new RandomlyPaddedDecryptionStream(inputStream, key, iv, true);
+				in = new RecordDecryptionStream(inputStream, key, iv);
 			}
 			routine.setStreams(in,  out, key, iv);
 			routine.run();
@@ -1,13 +1,44 @@
 package aefs.encryption;
 
 import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import javax.crypto.Cipher;
 
 import misc.io.ArrayUtils;
 
+/**
+ * A sector of a file, encrypted independently of the others under the file
+ * key.  Each sector begins with a 16-byte header:
+ *   [1 byte data length, high bits][5 bytes sector number]
+ *   [8 bytes sector revision][2 bytes data length, low 15 bits]
+ * Since every sector is encrypted under the same key and IV, the header makes
+ * the first block of each sector unique; a sector rewritten in place must
+ * therefore be given a new revision.  The data length is the number of bytes
+ * of file contents held by the sector, with 0 (as written by older clients)
+ * meaning a full sector.  Sectors of up to 4096 bytes leave the high bits of
+ * the data length zero, as in the 6-byte sector numbers of older headers.
+ *
+ * A sector whose contents were compressed before encryption has the high bit
+ * of its last two header bytes set, and its contents begin with the length of
+ * the deflated data which follows (2 bytes, or 4 in sectors larger than 64KB).
+ * Only the blocks of a sector in use need be
+ * encrypted; the remainder of the sector is left zero, so that it may be
+ * dropped in transit (see usedLength()).
+ */
 public class EncryptedFileSector {
 	
+	public static final int HEADER_SIZE = 16;
+	
+	// sizes a file's sectors may take, in bytes; all are powers of two
+	public static final int DEFAULT_SECTOR_SIZE = 4096;
+	public static final int MIN_SECTOR_SIZE = 4096;
+	public static final int MAX_SECTOR_SIZE = 4 * 1024 * 1024;
+	
+	private static final int COMPRESSED_FLAG = 0x80;
+	
 	private byte content[];
 	
 	public EncryptedFileSector(int sectorSizeBytes, BigInteger sectorNumber, 
@@ -19,16 +50,216 @@ public class EncryptedFileSector {
 		byte[] revisionBytes = sectorRevision.toByteArray();
 		
 		ArrayUtils.copySubarray(sectorNumberBytes, this.content, 
-				sectorNumberBytes.length - 6, sectorNumberBytes.length, 0);
+				sectorNumberBytes.length - 5, sectorNumberBytes.length, 1);
 		ArrayUtils.copySubarray(revisionBytes, this.content,
-				revisionBytes.length - 10, revisionBytes.length, 0);
+				revisionBytes.length - 8, revisionBytes.length, 6);
 	}
 	
 	public byte[] getBytes(){
 		return this.content;
 	}
 	
+	/**
+	 * Records the number of bytes of file contents held by the sector.  Must be
+	 * called before the sector is encrypted.
+	 * @param dataLength number of bytes of file contents
+	 */
+	public void setDataLength(int dataLength){
+		this.content[0] = (byte) (dataLength >>> 15);
+		this.content[14] = (byte) ((dataLength >>> 8) & ~COMPRESSED_FLAG);
+		this.content[15] = (byte) dataLength;
+	}
+	
+	/**
+	 * Marks the sector's contents as compressed.  Must be called after
+	 * setDataLength() and before the sector is encrypted.
+	 * @param compressedLength number of bytes of deflated data
+	 */
+	public void setCompressedLength(int compressedLength){
+		writeCompressedLength(content, content.length, compressedLength);
+	}
+	
+	/**
+	 * Writes the header of an unencrypted sector in place, for encryptors which
+	 * reuse their sector buffers.
+	 * @param sector unencrypted sector
+	 * @param sectorNumber index of the sector in its file
+	 * @param revision revision of the sector
+	 * @param dataLength number of bytes of file contents
+	 */
+	public static void writeHeader(byte[] sector, long sectorNumber, long revision, 
+			int dataLength){
+		for(int i = 0; i < 5; ++i){
+			sector[1 + i] = (byte) (sectorNumber >>> (8 * (4 - i)));
+		}
+		for(int i = 0; i < 8; ++i){
+			sector[6 + i] = (byte) (revision >>> (8 * (7 - i)));
+		}
+		sector[0] = (byte) (dataLength >>> 15);
+		sector[14] = (byte) ((dataLength >>> 8) & ~COMPRESSED_FLAG);
+		sector[15] = (byte) dataLength;
+	}
+	
+	/**
+	 * Marks an unencrypted sector's contents as compressed, in place.  Must be
+	 * called after its header is written.
+	 * @param sector unencrypted sector
+	 * @param sectorSizeBytes size of the sector in bytes
+	 * @param compressedLength number of bytes of deflated data
+	 */
+	public static void writeCompressedLength(byte[] sector, int sectorSizeBytes, 
+			int compressedLength){
+		sector[14] |= COMPRESSED_FLAG;
+		
+		int fieldSize = compressedLengthSize(sectorSizeBytes);
+		for(int i = 0; i < fieldSize; ++i){
+			sector[HEADER_SIZE + i] = (byte) (compressedLength >>> (8 * (fieldSize - 1 - i)));
+		}
+	}
+	
 	public void setEncryptedBytes(byte[] encrypted){
 		this.content = encrypted;
 	}
+	
+	/**
+	 * Returns the revision recorded in a decrypted sector header.
+	 * @param header decrypted sector, or at least its first block
+	 */
+	public static BigInteger getRevision(byte[] header){
+		return new BigInteger(1, ArrayUtils.copyOfRange(header, 6, 14));
+	}
+	
+	/**
+	 * Returns the number of bytes of file contents held by a decrypted sector.
+	 * @param header decrypted sector, or at least its first block
+	 * @param sectorSizeBytes size of the sector in bytes
+	 */
+	public static int getDataLength(byte[] header, int sectorSizeBytes){
+		return getDataLength(header, 0, sectorSizeBytes);
+	}
+	
+	/**
+	 * Returns the number of bytes of file contents held by a decrypted sector.
+	 * @param sectors array holding the sector, or at least its first block
+	 * @param offset offset of the sector in the array
+	 * @param sectorSizeBytes size of the sector in bytes
+	 */
+	public static int getDataLength(byte[] sectors, int offset, int sectorSizeBytes){
+		int dataLength = ((sectors[offset] & 0xff) << 15) | 
+				((sectors[offset + 14] & ~COMPRESSED_FLAG & 0xff) << 8) | 
+				(sectors[offset + 15] & 0xff);
+		return dataLength == 0 ? sectorSizeBytes - HEADER_SIZE : dataLength;
+	}
+	
+	/**
+	 * Returns true if a file's sectors may take the passed size.
+	 */
+	public static boolean isValidSectorSize(int sectorSizeBytes){
+		return sectorSizeBytes >= MIN_SECTOR_SIZE && sectorSizeBytes <= MAX_SECTOR_SIZE &&
+				Integer.bitCount(sectorSizeBytes) == 1;
+	}
+	
+	/**
+	 * Returns the number of bytes of file contents held by a full sector.
+	 */
+	public static int getCapacity(int sectorSizeBytes){
+		return sectorSizeBytes - HEADER_SIZE;
+	}
+	
+	/**
+	 * Returns the size of the field giving the length of a compressed
+	 * sector's deflated data.
+	 */
+	public static int compressedLengthSize(int sectorSizeBytes){
+		return sectorSizeBytes > 65536 ? 4 : 2;
+	}
+	
+	/**
+	 * Returns true if the contents of a decrypted sector are compressed.
+	 * @param header decrypted sector, or at least its first block
+	 */
+	public static boolean isCompressed(byte[] header){
+		return isCompressed(header, 0);
+	}
+	
+	/**
+	 * Returns true if the contents of a decrypted sector are compressed.
+	 * @param sectors array holding the sector, or at least its first block
+	 * @param offset offset of the sector in the array
+	 */
+	public static boolean isCompressed(byte[] sectors, int offset){
+		return (sectors[offset + 14] & COMPRESSED_FLAG) != 0;
+	}
+	
+	/**
+	 * Returns a decrypted sector with its contents decompressed, so that they
+	 * lie after the header as in an uncompressed sector.
+	 * @param decrypted decrypted sector
+	 * @param sectorSizeBytes size of the sector in bytes
+	 * @param inflater inflater to use
+	 * @return the passed sector if uncompressed, else a new sector
+	 * @throws DataFormatException if the compressed contents are invalid
+	 */
+	public static byte[] expand(byte[] decrypted, int sectorSizeBytes, Inflater inflater)
+			throws DataFormatException {
+		if(!isCompressed(decrypted)){
+			return decrypted;
+		}
+		
+		byte[] expanded = new byte[sectorSizeBytes];
+		expand(decrypted, sectorSizeBytes, inflater, expanded, 0);
+		return expanded;
+	}
+	
+	/**
+	 * Decompresses a compressed sector into an array, so that its contents lie
+	 * after the header as in an uncompressed sector.
+	 * @param decrypted decrypted, compressed sector
+	 * @param sectorSizeBytes size of the sector in bytes
+	 * @param inflater inflater to use
+	 * @param into array receiving the sector
+	 * @param offset offset in the array at which to write the sector
+	 * @throws DataFormatException if the compressed contents are invalid
+	 */
+	public static void expand(byte[] decrypted, int sectorSizeBytes, Inflater inflater,
+			byte[] into, int offset) throws DataFormatException {
+		int dataLength = getDataLength(decrypted, sectorSizeBytes);
+		int fieldSize = compressedLengthSize(sectorSizeBytes);
+		int compressedLength = 0;
+		for(int i = 0; i < fieldSize; ++i){
+			compressedLength = (compressedLength << 8) | (decrypted[HEADER_SIZE + i] & 0xff);
+		}
+		if(compressedLength < 0 || compressedLength > sectorSizeBytes - HEADER_SIZE - fieldSize
+				|| dataLength > sectorSizeBytes - HEADER_SIZE){
+			throw new DataFormatException("Invalid compressed sector length.");
+		}
+		
+		System.arraycopy(decrypted, 0, into, offset, HEADER_SIZE);
+		
+		inflater.reset();
+		inflater.setInput(decrypted, HEADER_SIZE + fieldSize, compressedLength);
+		int n = inflater.inflate(into, offset + HEADER_SIZE, dataLength);
+		if(n != dataLength || !inflater.finished()){
+			throw new DataFormatException("Compressed sector has the wrong length.");
+		}
+		Arrays.fill(into, offset + HEADER_SIZE + dataLength, offset + sectorSizeBytes, (byte) 0);
+	}
+	
+	/**
+	 * Returns the length of an encrypted sector without its trailing blocks of
+	 * zeros.  The sector may be restored by filling the remainder with zeros.
+	 * @param sectors array holding the sector
+	 * @param offset offset of the sector in the array
+	 * @param sectorSizeBytes size of the sector in bytes
+	 */
+	public static int usedLength(byte[] sectors, int offset, int sectorSizeBytes){
+		int length = sectorSizeBytes;
+		while(length > 0){
+			for(int i = offset + length - 16; i < offset + length; ++i){
+				if(sectors[i] != 0) return length;
+			}
+			length -= 16;
+		}
+		return 0;
+	}
 }
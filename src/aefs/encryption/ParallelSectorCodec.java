@@ -0,0 +1,409 @@
+package aefs.encryption;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Inflater;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts and decrypts the sectors of a file on a fork-join pool.  Sectors
+ * are encrypted independently, so runs of them are handed to the pool as
+ * batches.  The calling thread consumes encrypted batches, or produces batches
+ * to be decrypted, in order, with at most a window of batches in flight so
+ * that memory stays bounded however large the file.
+ */
+public class ParallelSectorCodec {
+	
+	// bytes of sectors handed to the pool at once
+	public static final int BATCH_BYTES = 256 * 1024;
+	
+	private int sectorSize;
+	private int batchSectors;
+	private byte[] key;
+	private byte[] iv;
+	
+	private ForkJoinPool pool;
+	private int window;
+	
+	/**
+	 * Creates a codec for the sectors of a file.
+	 * @param sectorSizeBytes size of the file's sectors
+	 * @param key file key
+	 * @param iv file IV
+	 * @param pool pool on which to encrypt and decrypt
+	 * @throws GeneralSecurityException if the key cannot be used
+	 */
+	public ParallelSectorCodec(int sectorSizeBytes, byte[] key, byte[] iv, ForkJoinPool pool)
+			throws GeneralSecurityException {
+		this.sectorSize = sectorSizeBytes;
+		this.batchSectors = Math.max(1, BATCH_BYTES / sectorSizeBytes);
+		this.key = key;
+		this.iv = iv;
+		
+		this.pool = pool;
+		this.window = 2 * pool.getParallelism();
+		
+		// fail here rather than in the pool if the key is unusable
+		newDecryptor();
+	}
+	
+	/**
+	 * Returns the number of sectors handed to the pool at once.
+	 */
+	public int getBatchSectors(){
+		return batchSectors;
+	}
+	
+	private Cipher newDecryptor() throws GeneralSecurityException {
+		Cipher decryptor = Cipher.getInstance("AES/CBC/NoPadding");
+		decryptor.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, 0, key.length, "AES"),
+				new IvParameterSpec(iv));
+		return decryptor;
+	}
+	
+	/**
+	 * Receives encrypted sectors, in order, on the thread encrypting the file.
+	 */
+	public interface EncryptedSectorSink{
+		/**
+		 * @param sectors array holding the sector
+		 * @param offset offset of the sector in the array
+		 * @param used number of leading bytes of the sector in use; the
+		 * remainder is zero
+		 * @param leaf leaf of the sector in its file's tree, or null if leaves
+		 * are not hashed
+		 */
+		void sector(byte[] sectors, int offset, int used, byte[] leaf) throws IOException;
+	}
+	
+	/**
+	 * Receives batches of decrypted sectors on the pool's threads, concurrently
+	 * and in no particular order.  The pool may be shared, so a sink which
+	 * must wait should do so through ForkJoinPool.managedBlock().
+	 */
+	public interface DecryptedSectorSink{
+		/**
+		 * @param first index of the first sector in its file
+		 * @param count number of sectors
+		 * @param decrypted decrypted and decompressed sectors, one after another
+		 * and each header first; valid only until the call returns
+		 */
+		void sectors(long first, int count, byte[] decrypted) throws IOException;
+	}
+	
+	/**
+	 * Encrypts a range of a file's sectors, passing them in order to a sink.
+	 * @param path path of the file
+	 * @param compress true to compress sectors before encryption
+	 * @param firstSector index of the first sector
+	 * @param count number of sectors
+	 * @param hashLeaves true to hash each sector into its leaf
+	 * @param sink sink receiving the sectors
+	 */
+	public void encrypt(final String path, final boolean compress, long firstSector,
+			long count, final boolean hashLeaves, EncryptedSectorSink sink) throws IOException {
+		final ConcurrentLinkedQueue<EncryptContext> contexts =
+				new ConcurrentLinkedQueue<EncryptContext>();
+		final ConcurrentLinkedQueue<Batch> batches = new ConcurrentLinkedQueue<Batch>();
+		ArrayDeque<Future<Batch>> inFlight = new ArrayDeque<Future<Batch>>();
+		
+		long next = firstSector;
+		long end = firstSector + count;
+		try{
+			while(next < end || !inFlight.isEmpty()){
+				while(next < end && inFlight.size() < window){
+					final long batchFirst = next;
+					final int batchCount = (int) Math.min(batchSectors, end - next);
+					inFlight.add(pool.submit(new Callable<Batch>(){
+						public Batch call() throws Exception {
+							EncryptContext context = contexts.poll();
+							if(context == null){
+								context = new EncryptContext(path, compress);
+							}
+							try{
+								return context.encrypt(takeBatch(batches), batchFirst,
+										batchCount, hashLeaves);
+							} finally{
+								contexts.add(context);
+							}
+						}
+					}));
+					next += batchCount;
+				}
+				
+				Batch batch = retire(inFlight.removeFirst());
+				for(int i = 0; i < batch.count; ++i){
+					sink.sector(batch.sectors, i * sectorSize, batch.used[i],
+							hashLeaves ? batch.leaves[i] : null);
+				}
+				batches.add(batch);
+			}
+		} finally{
+			drain(inFlight);
+			for(EncryptContext context : contexts){
+				context.close();
+			}
+		}
+	}
+	
+	/**
+	 * Starts decrypting sectors read in order from a stream.
+	 * @param firstSector index of the first sector to be read
+	 * @param leaves list to which the leaves of the sectors read are added in
+	 * order, or null if leaves are not hashed
+	 * @param sink sink receiving the decrypted sectors
+	 */
+	public Decoder newDecoder(long firstSector, List<byte[]> leaves, DecryptedSectorSink sink){
+		return new Decoder(firstSector, leaves, sink);
+	}
+	
+	/**
+	 * Decrypts sectors as they are read, handing each full batch to the pool.
+	 */
+	public class Decoder {
+		
+		private long nextSector;
+		private List<byte[]> leaves;
+		private DecryptedSectorSink sink;
+		
+		private ConcurrentLinkedQueue<DecryptContext> contexts =
+				new ConcurrentLinkedQueue<DecryptContext>();
+		private ConcurrentLinkedQueue<Batch> batches = new ConcurrentLinkedQueue<Batch>();
+		private ArrayDeque<Future<Batch>> inFlight = new ArrayDeque<Future<Batch>>();
+		
+		private Batch current;
+		
+		private Decoder(long firstSector, List<byte[]> leaves, DecryptedSectorSink sink){
+			this.nextSector = firstSector;
+			this.leaves = leaves;
+			this.sink = sink;
+		}
+		
+		/**
+		 * Reads the next sector from a stream.
+		 * @param in stream holding the sector
+		 * @param used number of leading bytes of the sector sent; the remainder
+		 * is zero
+		 * @param md digest to update with the sector, or null
+		 */
+		public void readSector(DataInputStream in, int used, MessageDigest md)
+				throws IOException {
+			if(current == null){
+				current = takeBatch(batches);
+				current.first = nextSector;
+				current.count = 0;
+			}
+			
+			int offset = current.count * sectorSize;
+			in.readFully(current.sectors, offset, used);
+			Arrays.fill(current.sectors, offset + used, offset + sectorSize, (byte) 0);
+			if(md != null) md.update(current.sectors, offset, sectorSize);
+			
+			++nextSector;
+			if(++current.count == batchSectors){
+				submit();
+			}
+		}
+		
+		private void submit() throws IOException {
+			if(inFlight.size() >= window){
+				retireOldest();
+			}
+			
+			final Batch batch = current;
+			current = null;
+			inFlight.add(pool.submit(new Callable<Batch>(){
+				public Batch call() throws Exception {
+					DecryptContext context = contexts.poll();
+					if(context == null){
+						context = new DecryptContext();
+					}
+					try{
+						return context.decrypt(batch, leaves != null, sink);
+					} finally{
+						contexts.add(context);
+					}
+				}
+			}));
+		}
+		
+		private void retireOldest() throws IOException {
+			Batch batch = retire(inFlight.removeFirst());
+			if(leaves != null){
+				for(int i = 0; i < batch.count; ++i){
+					leaves.add(batch.leaves[i]);
+				}
+			}
+			batches.add(batch);
+		}
+		
+		/**
+		 * Waits for every sector read to be decrypted and passed to the sink.
+		 */
+		public void finish() throws IOException {
+			if(current != null && current.count > 0){
+				submit();
+			}
+			while(!inFlight.isEmpty()){
+				retireOldest();
+			}
+		}
+		
+		/**
+		 * Waits for any sectors still being decrypted, without reporting their
+		 * errors, and releases the decoder's resources.
+		 */
+		public void close(){
+			drain(inFlight);
+			for(DecryptContext context : contexts){
+				context.close();
+			}
+			contexts.clear();
+		}
+	}
+	
+	/**
+	 * A run of consecutive sectors, reused once consumed.
+	 */
+	private class Batch {
+		public long first;
+		public int count;
+		public byte[] sectors = new byte[batchSectors * sectorSize];
+		public ByteBuffer buffer = ByteBuffer.wrap(sectors);
+		public int[] used = new int[batchSectors];
+		public byte[][] leaves = new byte[batchSectors][];
+	}
+	
+	private Batch takeBatch(ConcurrentLinkedQueue<Batch> batches){
+		Batch batch = batches.poll();
+		return batch != null ? batch : new Batch();
+	}
+	
+	/**
+	 * An encryptor, and digest for leaves, used by one task at a time.
+	 */
+	private class EncryptContext {
+		
+		private StreamedFileEncryptor encryptor;
+		private MessageDigest leafDigest;
+		
+		public EncryptContext(String path, boolean compress) throws Exception {
+			this.encryptor = new StreamedFileEncryptor(path, sectorSize, key, iv);
+			this.encryptor.setCompression(compress);
+			this.leafDigest = SectorTree.newDigest();
+		}
+		
+		public Batch encrypt(Batch batch, long first, int count, boolean hashLeaves)
+				throws IOException, FileEncryptionException {
+			batch.first = first;
+			batch.count = count;
+			
+			encryptor.seekToSector(first);
+			batch.buffer.clear();
+			for(int i = 0; i < count; ++i){
+				batch.used[i] = encryptor.encryptNextSector(batch.buffer);
+				if(hashLeaves){
+					batch.leaves[i] = SectorTree.leaf(leafDigest, batch.sectors,
+							i * sectorSize, sectorSize);
+				}
+			}
+			return batch;
+		}
+		
+		public void close(){
+			try{
+				encryptor.close();
+			} catch(IOException e){ }
+		}
+	}
+	
+	/**
+	 * A decryptor, inflater, digest for leaves, and buffer for the decrypted
+	 * batch, used by one task at a time.
+	 */
+	private class DecryptContext {
+		
+		private Cipher decryptor;
+		private Inflater inflater;
+		private MessageDigest leafDigest;
+		private byte[] decrypted;
+		private byte[] compressed;
+		
+		public DecryptContext() throws GeneralSecurityException {
+			this.decryptor = newDecryptor();
+			this.inflater = new Inflater();
+			this.leafDigest = SectorTree.newDigest();
+			this.decrypted = new byte[batchSectors * sectorSize];
+			this.compressed = new byte[sectorSize];
+		}
+		
+		public Batch decrypt(Batch batch, boolean hashLeaves, DecryptedSectorSink sink)
+				throws Exception {
+			for(int i = 0; i < batch.count; ++i){
+				int offset = i * sectorSize;
+				if(hashLeaves){
+					batch.leaves[i] = SectorTree.leaf(leafDigest, batch.sectors, offset,
+							sectorSize);
+				}
+				
+				decryptor.doFinal(batch.sectors, offset, sectorSize, decrypted, offset);
+				if(EncryptedFileSector.isCompressed(decrypted, offset)){
+					System.arraycopy(decrypted, offset, compressed, 0, sectorSize);
+					EncryptedFileSector.expand(compressed, sectorSize, inflater, decrypted,
+							offset);
+				}
+			}
+			sink.sectors(batch.first, batch.count, decrypted);
+			return batch;
+		}
+		
+		public void close(){
+			inflater.end();
+		}
+	}
+	
+	/**
+	 * Waits for a batch to be processed, rethrowing the error of its task.
+	 */
+	private static Batch retire(Future<Batch> task) throws IOException {
+		try{
+			return task.get();
+		} catch(ExecutionException e){
+			if(e.getCause() instanceof IOException){
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Unable to process sectors.", e.getCause());
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while processing sectors.");
+		}
+	}
+	
+	/**
+	 * Waits for every task in flight, ignoring their results.  Tasks are not
+	 * cancelled, as a cancelled task may still be running when its result is
+	 * abandoned, and its context must not be released under it.
+	 */
+	private static void drain(ArrayDeque<Future<Batch>> inFlight){
+		while(!inFlight.isEmpty()){
+			Future<Batch> task = inFlight.removeFirst();
+			try{
+				task.get();
+			} catch(Exception e){ }
+		}
+	}
+}
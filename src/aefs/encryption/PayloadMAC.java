@@ -0,0 +1,66 @@
+package aefs.encryption;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import misc.io.StreamUtils;
+import misc.numbers.BigIntegerUtilities;
+
+/**
+ * Session-keyed MAC for file payloads sent outside of the encrypted channel.
+ * The sender MACs a SHA-256 digest of the payload together with a fresh
+ * nonce from the receiver, the file name, and the sectors sent; the receiver
+ * digests the payload as it arrives and checks the MAC against it.
+ */
+public class PayloadMAC {
+	
+	public static final int MAC_LENGTH = 32;
+	
+	private static final byte[] KEY_LABEL = "aefs-payload-mac".getBytes(StandardCharsets.UTF_8);
+	
+	/**
+	 * Returns a new digest of the kind MACed by this class.
+	 */
+	public static MessageDigest newDigest() throws NoSuchAlgorithmException {
+		return MessageDigest.getInstance("SHA-256");
+	}
+	
+	/**
+	 * Computes the MAC of a payload.
+	 * @param sessionKey session key shared by client and master
+	 * @param nonce nonce sent by the receiver
+	 * @param name AEFS file name
+	 * @param firstSector index of the first sector in the payload
+	 * @param sectorCount number of sectors in the payload
+	 * @param digest SHA-256 digest of the payload
+	 */
+	public static byte[] compute(byte[] sessionKey, byte[] nonce, String name,
+			long firstSector, long sectorCount, byte[] digest) 
+					throws GeneralSecurityException {
+		// derive a MAC key so that the session key is not used for two purposes
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(sessionKey, "HmacSHA256"));
+		byte[] macKey = mac.doFinal(KEY_LABEL);
+		
+		mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+		return mac.doFinal(StreamUtils.combineByteArrays(new byte[][]{
+				nonce,
+				name.getBytes(StandardCharsets.UTF_8),
+				BigIntegerUtilities.longToBytes(firstSector),
+				BigIntegerUtilities.longToBytes(sectorCount),
+				digest
+		}));
+	}
+	
+	/**
+	 * Compares two MACs in constant time.
+	 */
+	public static boolean matches(byte[] expected, byte[] received){
+		return MessageDigest.isEqual(expected, received);
+	}
+}
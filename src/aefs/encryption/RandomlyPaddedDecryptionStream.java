@@ -1,5 +1,6 @@
 package aefs.encryption;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.InvalidAlgorithmParameterException;
@@ -42,11 +43,26 @@ public class RandomlyPaddedDecryptionStream extends InputStream {
         }
 	}
 	
+	/**
+	 * Constructs a stream for a subclass which decrypts by other means.
+	 */
+	protected RandomlyPaddedDecryptionStream(){ }
+	
 	public void discardBuffer() throws IOException{
-		byte[] d = new byte[1];
+		int d;
 		do{
-			cIn.read(d);
-		} while(d[0] == 0);
+			d = cIn.read();
+			if(d < 0) throw new EOFException("Stream ended before buffer marker.");
+		} while(d == 0);
+	}
+	
+	/**
+	 * Returns true if the stream is framed into records, each of which may be
+	 * read in full as soon as it arrives.  A padded stream holds back its last
+	 * decrypted block and so is not.
+	 */
+	public boolean isFramed(){
+		return false;
 	}
 	
 	public void discardBlock() throws IOException{
@@ -63,6 +79,16 @@ public class RandomlyPaddedDecryptionStream extends InputStream {
 		return cIn.read(b);
 	}
 	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		return cIn.read(b, off, len);
+	}
+	
+	@Override
+	public int available() throws IOException {
+		return cIn.available();
+	}
+	
 	@Override
 	public void close(){
 		try{
@@ -39,6 +39,11 @@ public class RandomlyPaddedEncryptionStream extends OutputStream {
 		}
 	}
 	
+	/**
+	 * Constructs a stream for a subclass which encrypts by other means.
+	 */
+	protected RandomlyPaddedEncryptionStream(){ }
+	
 	public void buffer() throws IOException {
 		cOut.write(new byte[31]);
 		cOut.write(new byte[]{1});
@@ -55,6 +60,11 @@ public class RandomlyPaddedEncryptionStream extends OutputStream {
 		cOut.write(b);
 	}
 	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException{
+		cOut.write(b, off, len);
+	}
+	
 	public void flush(){
 		try{
 			cOut.flush();
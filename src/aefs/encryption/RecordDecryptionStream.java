@@ -0,0 +1,183 @@
+package aefs.encryption;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Decryption stream reading the records of a RecordEncryptionStream.  Records
+ * are read from the underlying stream only as their bytes are needed, and no
+ * further, so raw bytes which follow a message on the same connection are
+ * left unread.  Reads never pass the end of a message; discardBuffer() moves
+ * past it.
+ */
+public class RecordDecryptionStream extends RandomlyPaddedDecryptionStream {
+	
+	private DataInputStream in;
+	
+	private byte[] key;
+	private byte[] iv;
+	private Cipher cipher;
+	private SecretKeySpec recordKey;
+	private byte[] nonce = new byte[12];
+	private byte[] header = new byte[RecordEncryptionStream.HEADER_SIZE];
+	private long sequence = 0;
+	
+	// the current record's plaintext, the position read to, and whether it
+	// ends a message
+	private byte[] sealed = new byte[RecordEncryptionStream.RECORD_SIZE +
+			RecordEncryptionStream.TAG_SIZE];
+	private byte[] plain = new byte[RecordEncryptionStream.RECORD_SIZE];
+	private int position = 0;
+	private int limit = 0;
+	private boolean endOfMessage = false;
+	
+	/**
+	 * Constructs a decryption stream.  The stream's salt is read when it is
+	 * first needed.
+	 * @param in underlying input stream
+	 * @param key session key
+	 * @param iv session IV
+	 */
+	public RecordDecryptionStream(InputStream in, byte[] key, byte[] iv)
+			throws GeneralSecurityException {
+		this.in = new DataInputStream(in);
+		this.key = key;
+		this.iv = iv;
+		this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+	}
+	
+	/**
+	 * Reads and decrypts the next record.
+	 */
+	private void nextRecord() throws IOException {
+		readSalt();
+		
+		in.readFully(header);
+		int flagsAndLength = ((header[0] & 0xff) << 24) | ((header[1] & 0xff) << 16) |
+				((header[2] & 0xff) << 8) | (header[3] & 0xff);
+		int length = flagsAndLength & ~RecordEncryptionStream.END_OF_MESSAGE;
+		if(length > RecordEncryptionStream.RECORD_SIZE){
+			throw new IOException("Invalid record length.");
+		}
+		in.readFully(sealed, 0, length + RecordEncryptionStream.TAG_SIZE);
+		
+		try{
+			RecordEncryptionStream.recordNonce(nonce, sequence++);
+			cipher.init(Cipher.DECRYPT_MODE, recordKey,
+					new GCMParameterSpec(RecordEncryptionStream.TAG_SIZE * 8, nonce));
+			cipher.updateAAD(header);
+			limit = cipher.doFinal(sealed, 0, length + RecordEncryptionStream.TAG_SIZE,
+					plain, 0);
+		} catch(AEADBadTagException e){
+			throw new IOException("Record failed authentication.");
+		} catch(GeneralSecurityException e){
+			throw new IOException("Unable to decrypt record.", e);
+		}
+		position = 0;
+		endOfMessage = (flagsAndLength & RecordEncryptionStream.END_OF_MESSAGE) != 0;
+	}
+	
+	/**
+	 * Reads the stream's salt and derives its record key, if not yet done.
+	 */
+	private void readSalt() throws IOException {
+		if(recordKey != null){
+			return;
+		}
+		
+		byte[] salt = new byte[RecordEncryptionStream.SALT_SIZE];
+		in.readFully(salt);
+		try{
+			recordKey = RecordEncryptionStream.deriveKey(key, iv, salt);
+		} catch(GeneralSecurityException e){
+			throw new IOException("Unable to derive record key.", e);
+		}
+	}
+	
+	/**
+	 * Makes bytes of the current message available.
+	 * @return false if the current message has been read in full
+	 */
+	private boolean fill() throws IOException {
+		while(position == limit){
+			if(endOfMessage){
+				return false;
+			}
+			nextRecord();
+		}
+		return true;
+	}
+	
+	/**
+	 * Moves past the end of the current message, discarding any of its bytes
+	 * not yet read.
+	 */
+	@Override
+	public void discardBuffer() throws IOException {
+		while(!endOfMessage){
+			nextRecord();
+		}
+		position = limit = 0;
+		endOfMessage = false;
+	}
+	
+	/**
+	 * Reads the stream's salt if it has not yet been read.  The salt takes the
+	 * place of the random first block of a padded stream.
+	 */
+	@Override
+	public void discardBlock() throws IOException {
+		readSalt();
+	}
+	
+	@Override
+	public boolean isFramed(){
+		return true;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if(!fill()){
+			throw new IOException("Read past the end of a message.");
+		}
+		return plain[position++] & 0xff;
+	}
+	
+	@Override
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0){
+			return 0;
+		}
+		if(!fill()){
+			throw new IOException("Read past the end of a message.");
+		}
+		
+		int n = Math.min(len, limit - position);
+		System.arraycopy(plain, position, b, off, n);
+		position += n;
+		return n;
+	}
+	
+	@Override
+	public int available() throws IOException {
+		if(position < limit){
+			return limit - position;
+		}
+		return in.available();
+	}
+	
+	@Override
+	public void close(){ }
+}
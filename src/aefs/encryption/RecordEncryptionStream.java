@@ -0,0 +1,197 @@
+package aefs.encryption;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encryption stream which frames its output as length-prefixed AES-GCM
+ * records.  The stream begins with a random salt, sent in the clear, from
+ * which the key of its records is derived, so that streams sharing a session
+ * key never share a record key; each record's nonce is its index in the
+ * stream.  A record is:
+ *   [int flags and length][ciphertext][16 byte tag]
+ * with the high bit of the first int set on the last record of a message.
+ * The first int is authenticated with the record, so a message boundary
+ * cannot be moved or removed.
+ *
+ * Bytes are collected into a record until it fills or buffer() ends the
+ * message; each record is written to the underlying stream with a single
+ * write.  The underlying stream is not closed with this stream.
+ */
+public class RecordEncryptionStream extends RandomlyPaddedEncryptionStream {
+	
+	// largest number of plaintext bytes in a record
+	public static final int RECORD_SIZE = 64 * 1024;
+	
+	public static final int HEADER_SIZE = 4;
+	public static final int TAG_SIZE = 16;
+	public static final int SALT_SIZE = 16;
+	
+	public static final int END_OF_MESSAGE = 0x80000000;
+	
+	private static final byte[] KEY_LABEL = "aefs-record-key".getBytes(StandardCharsets.UTF_8);
+	
+	private OutputStream out;
+	
+	private Cipher cipher;
+	private SecretKeySpec recordKey;
+	private byte[] salt;
+	private byte[] nonce = new byte[12];
+	private long sequence = 0;
+	private boolean started = false;
+	
+	// plaintext of the record being filled, and the framed record once sealed
+	private byte[] plain = new byte[RECORD_SIZE];
+	private int pending = 0;
+	private byte[] record = new byte[HEADER_SIZE + RECORD_SIZE + TAG_SIZE];
+	
+	/**
+	 * Constructs an encryption stream.
+	 * @param out underlying output stream
+	 * @param key session key
+	 * @param iv session IV
+	 * @param salt random salt, or null to choose one
+	 */
+	public RecordEncryptionStream(OutputStream out, byte[] key, byte[] iv, byte[] salt)
+			throws GeneralSecurityException {
+		this.out = out;
+		
+		if(salt == null){
+			salt = new byte[SALT_SIZE];
+			new SecureRandom().nextBytes(salt);
+		}
+		this.salt = salt;
+		
+		this.recordKey = deriveKey(key, iv, salt);
+		this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+	}
+	
+	/**
+	 * Derives the key of a stream's records from the session key and the
+	 * stream's salt.
+	 */
+	static SecretKeySpec deriveKey(byte[] key, byte[] iv, byte[] salt)
+			throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(key, "HmacSHA256"));
+		mac.update(KEY_LABEL);
+		mac.update(iv);
+		mac.update(salt);
+		return new SecretKeySpec(mac.doFinal(), "AES");
+	}
+	
+	/**
+	 * Writes the nonce of the record with the passed index.
+	 */
+	static void recordNonce(byte[] nonce, long sequence){
+		for(int i = 0; i < 8; ++i){
+			nonce[4 + i] = (byte) (sequence >>> (8 * (7 - i)));
+		}
+	}
+	
+	/**
+	 * Ends the current message, sending any bytes not yet sent.
+	 */
+	@Override
+	public void buffer() throws IOException {
+		seal(plain, 0, pending, true);
+		pending = 0;
+		out.flush();
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		if(pending == RECORD_SIZE){
+			seal(plain, 0, pending, false);
+			pending = 0;
+		}
+		plain[pending++] = (byte) b;
+	}
+	
+	@Override
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while(len > 0){
+			if(pending == RECORD_SIZE){
+				seal(plain, 0, pending, false);
+				pending = 0;
+			}
+			
+			// full records are sealed straight from the caller's array
+			if(pending == 0 && len >= RECORD_SIZE){
+				seal(b, off, RECORD_SIZE, false);
+				off += RECORD_SIZE;
+				len -= RECORD_SIZE;
+				continue;
+			}
+			
+			int n = Math.min(len, RECORD_SIZE - pending);
+			System.arraycopy(b, off, plain, pending, n);
+			pending += n;
+			off += n;
+			len -= n;
+		}
+	}
+	
+	/**
+	 * Encrypts and writes a record.
+	 */
+	private void seal(byte[] b, int off, int len, boolean endOfMessage) throws IOException {
+		if(!started){
+			out.write(salt);
+			started = true;
+		}
+		
+		int header = len | (endOfMessage ? END_OF_MESSAGE : 0);
+		ByteBuffer.wrap(record, 0, HEADER_SIZE).putInt(header);
+		
+		try{
+			recordNonce(nonce, sequence++);
+			cipher.init(Cipher.ENCRYPT_MODE, recordKey, 
+					new GCMParameterSpec(TAG_SIZE * 8, nonce));
+			cipher.updateAAD(record, 0, HEADER_SIZE);
+			int sealed = cipher.doFinal(b, off, len, record, HEADER_SIZE);
+			out.write(record, 0, HEADER_SIZE + sealed);
+		} catch(GeneralSecurityException e){
+			throw new IOException("Unable to encrypt record.", e);
+		}
+	}
+	
+	/**
+	 * Flushes the underlying stream.  Bytes of an unfinished record are held
+	 * until the record fills or the message ends.
+	 */
+	@Override
+	public void flush(){
+		try{
+			out.flush();
+		} catch(IOException e){ }
+	}
+	
+	/**
+	 * Sends any bytes not yet sent as the end of a message.
+	 */
+	@Override
+	public void close(){
+		try{
+			if(pending > 0){
+				buffer();
+			} else{
+				out.flush();
+			}
+		} catch(IOException e){ }
+	}
+}
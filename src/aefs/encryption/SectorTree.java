@@ -0,0 +1,215 @@
+package aefs.encryption;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import misc.io.StreamUtils;
+import misc.numbers.BigIntegerUtilities;
+
+/**
+ * Merkle tree over the encrypted sectors of a file.  Each leaf is the SHA-256
+ * hash of a sector; each node above is the hash of its two children, or the
+ * value of its only child.  A range of sectors is verified against the root
+ * with a proof holding the nodes beside the range, so a reader need only hash
+ * the sectors it reads.  The root is authenticated by a MAC under the file key,
+ * computed by the client writing the file.
+ *
+ * Proof nodes are listed in the order of a left-to-right walk down from the
+ * root which stops at every node lying wholly outside the range.
+ */
+public class SectorTree {
+	
+	public static final int HASH_LENGTH = 32;
+	
+	private static final byte LEAF_PREFIX = 0;
+	private static final byte NODE_PREFIX = 1;
+	
+	private static final byte[] KEY_LABEL = "aefs-sector-tree".getBytes(StandardCharsets.UTF_8);
+	
+	/**
+	 * Source of the nodes of a stored tree.
+	 */
+	public static abstract class NodeSource {
+		
+		/**
+		 * Returns a node of the tree.
+		 * @param level level of the node, 0 being the leaves
+		 * @param index index of the node within its level
+		 */
+		public abstract byte[] get(int level, long index) throws IOException;
+	}
+	
+	/**
+	 * Returns a new digest of the kind used for the tree.
+	 */
+	public static MessageDigest newDigest() throws NoSuchAlgorithmException {
+		return MessageDigest.getInstance("SHA-256");
+	}
+	
+	/**
+	 * Hashes an encrypted sector into a leaf.
+	 */
+	public static byte[] leaf(MessageDigest md, byte[] sector, int offset, int length){
+		md.reset();
+		md.update(LEAF_PREFIX);
+		md.update(sector, offset, length);
+		return md.digest();
+	}
+	
+	/**
+	 * Computes the digest of the leaves of a range of sectors, in order.  It
+	 * stands for the range's sectors: put ranges are checked against it, and
+	 * ranges of files with a tree are sent directly under a MAC of it.
+	 */
+	public static byte[] rangeDigest(MessageDigest md, List<byte[]> leaves){
+		md.reset();
+		for(byte[] leaf : leaves){
+			md.update(leaf);
+		}
+		return md.digest();
+	}
+	
+	/**
+	 * Hashes two children into their parent.
+	 */
+	public static byte[] node(MessageDigest md, byte[] left, byte[] right){
+		md.reset();
+		md.update(NODE_PREFIX);
+		md.update(left);
+		md.update(right);
+		return md.digest();
+	}
+	
+	/**
+	 * Returns the level of the root of a tree over the passed number of sectors.
+	 */
+	public static int height(long sectors){
+		int height = 0;
+		while(levelSize(sectors, height) > 1){
+			++height;
+		}
+		return height;
+	}
+	
+	/**
+	 * Returns the number of nodes on a level of a tree.
+	 */
+	public static long levelSize(long sectors, int level){
+		long size = sectors;
+		for(int i = 0; i < level; ++i){
+			size = (size + 1) / 2;
+		}
+		return size;
+	}
+	
+	/**
+	 * Lists the nodes needed to verify a range of sectors against the root.
+	 * @param sectors number of sectors in the tree
+	 * @param first index of the first sector in the range
+	 * @param count number of sectors in the range
+	 * @param nodes nodes of the tree; only nodes outside the range are read
+	 */
+	public static List<byte[]> proof(long sectors, long first, long count, NodeSource nodes)
+			throws IOException {
+		List<byte[]> proof = new ArrayList<byte[]>();
+		if(sectors > 0){
+			walk(sectors, first, first + count, height(sectors), 0, nodes, proof);
+		}
+		return proof;
+	}
+	
+	private static void walk(long sectors, long first, long end, int level, long index,
+			NodeSource nodes, List<byte[]> proof) throws IOException {
+		long start = index << level;
+		long stop = Math.min((index + 1) << level, sectors);
+		if(stop <= first || start >= end){
+			proof.add(nodes.get(level, index));
+			return;
+		}
+		if(level == 0) return;
+		
+		walk(sectors, first, end, level - 1, 2 * index, nodes, proof);
+		if(((2 * index + 1) << (level - 1)) < sectors){
+			walk(sectors, first, end, level - 1, 2 * index + 1, nodes, proof);
+		}
+	}
+	
+	/**
+	 * Computes the root of a tree from the leaves of a range and its proof.
+	 * @param md digest
+	 * @param sectors number of sectors in the tree
+	 * @param first index of the first sector in the range
+	 * @param leaves leaves of the range, in order
+	 * @param proof proof of the range
+	 * @return root or null if the leaves and proof do not make up a tree
+	 */
+	public static byte[] root(MessageDigest md, long sectors, long first, List<byte[]> leaves,
+			List<byte[]> proof){
+		if(sectors == 0){
+			return leaves.isEmpty() && proof.isEmpty() ? new byte[HASH_LENGTH] : null;
+		}
+		
+		Iterator<byte[]> leafIt = leaves.iterator();
+		Iterator<byte[]> proofIt = proof.iterator();
+		byte[] root = compute(md, sectors, first, first + leaves.size(), height(sectors), 0,
+				leafIt, proofIt);
+		if(root == null || leafIt.hasNext() || proofIt.hasNext()){
+			return null;
+		}
+		return root;
+	}
+	
+	private static byte[] compute(MessageDigest md, long sectors, long first, long end,
+			int level, long index, Iterator<byte[]> leaves, Iterator<byte[]> proof){
+		long start = index << level;
+		long stop = Math.min((index + 1) << level, sectors);
+		if(stop <= first || start >= end){
+			return proof.hasNext() ? proof.next() : null;
+		}
+		if(level == 0){
+			return leaves.hasNext() ? leaves.next() : null;
+		}
+		
+		byte[] left = compute(md, sectors, first, end, level - 1, 2 * index, leaves, proof);
+		if(((2 * index + 1) << (level - 1)) >= sectors){
+			return left;
+		}
+		byte[] right = compute(md, sectors, first, end, level - 1, 2 * index + 1, leaves,
+				proof);
+		if(left == null || right == null){
+			return null;
+		}
+		return node(md, left, right);
+	}
+	
+	/**
+	 * Computes the MAC authenticating the root of a file's tree.
+	 * @param fileKey AES key of the file
+	 * @param name AEFS file name
+	 * @param sectors number of sectors in the file
+	 * @param root root of the file's tree
+	 */
+	public static byte[] rootMAC(byte[] fileKey, String name, long sectors, byte[] root)
+			throws GeneralSecurityException {
+		// derive a MAC key so that the file key is not used for two purposes
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(fileKey, "HmacSHA256"));
+		byte[] macKey = mac.doFinal(KEY_LABEL);
+		
+		mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+		return mac.doFinal(StreamUtils.combineByteArrays(new byte[][]{
+				name.getBytes(StandardCharsets.UTF_8),
+				BigIntegerUtilities.longToBytes(sectors),
+				root
+		}));
+	}
+}
@@ -1,45 +1,63 @@
 package aefs.encryption;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.math.BigInteger;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Deflater;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * Encrypts a file sector by sector.  The file is read with positional reads
+ * into a single sector buffer reused for every sector, and sectors may be
+ * encrypted into a buffer supplied by the caller, so that encrypting a file
+ * produces no garbage per sector.
+ */
 public class StreamedFileEncryptor{
 	
 	private int sectorSize;
-	private FileInputStream fileStream;
+	private FileChannel fileChannel;
 	
-	private BigInteger currentSector;
+	private long currentSector;
 	
 	private long fileSize;
 	private long currentByte;
 	
 	private Cipher encryptor;
 	
-	public StreamedFileEncryptor(String path, int sectorSizeBytes, byte[] key, byte[] iv) 
+	// the unencrypted sector, reused for every sector; heap buffers are used
+	// throughout as the cipher and deflater work on arrays without copies
+	private byte[] plain;
+	private ByteBuffer plainBuffer;
+	
+	// compresses sectors before encryption when set
+	private Deflater deflater;
+	private byte[] deflated;
+	
+	public StreamedFileEncryptor(String path, int sectorSizeBytes, byte[] key, byte[] iv)
 				throws FileEncryptionException {
 		try{
-			if(sectorSizeBytes % 16 != 0)
-				throw new Exception("Sector size must be a multiple of 16.");
+			if(!EncryptedFileSector.isValidSectorSize(sectorSizeBytes))
+				throw new Exception("Sector size must be a power of two from "+
+						EncryptedFileSector.MIN_SECTOR_SIZE+" to "+
+						EncryptedFileSector.MAX_SECTOR_SIZE+" bytes.");
 			
 			this.sectorSize = sectorSizeBytes;
-			this.fileStream = new FileInputStream(new File(path));
+			this.fileChannel = FileChannel.open(new File(path).toPath(),
+					StandardOpenOption.READ);
 			
-			this.fileSize = new File(path).length();
+			this.fileSize = fileChannel.size();
 			this.currentByte = 0;
-			currentSector = BigInteger.ZERO;
+			this.currentSector = 0;
+			
+			this.plain = new byte[sectorSizeBytes];
+			this.plainBuffer = ByteBuffer.wrap(plain);
 			
 			SecretKeySpec keySpec = new SecretKeySpec(key, 0, key.length, "AES");
 			IvParameterSpec ivSpec = new IvParameterSpec(iv);
@@ -48,33 +66,137 @@ public class StreamedFileEncryptor{
 			
 			encryptor.init(Cipher.ENCRYPT_MODE, keySpec, ivSpec);
 		} catch(Exception e){
+			if(fileChannel != null){
+				try{ fileChannel.close(); } catch(IOException c){ }
+			}
 			throw new FileEncryptionException(e);
 		}
 	}
 	
+	/**
+	 * Encrypts the next sector into a new sector.
+	 */
 	public EncryptedFileSector encryptNextSector() throws FileEncryptionException{
+		EncryptedFileSector sector = new EncryptedFileSector(sectorSize,
+				BigInteger.valueOf(currentSector), BigInteger.ZERO);
+		
+		byte[] encrypted = new byte[sectorSize];
+		encryptNextSector(ByteBuffer.wrap(encrypted));
+		sector.setEncryptedBytes(encrypted);
+		
+		return sector;
+	}
+	
+	/**
+	 * Encrypts the next sector into the passed buffer, advancing its position
+	 * by a full sector.  Only the leading bytes of the sector returned are
+	 * encrypted; the remainder is left zero.
+	 * @param into buffer with at least a sector remaining
+	 * @return number of leading bytes of the sector encrypted
+	 */
+	public int encryptNextSector(ByteBuffer into) throws FileEncryptionException{
 		try{
-			EncryptedFileSector sector = new EncryptedFileSector(sectorSize, currentSector,
-					BigInteger.ZERO);
-			
-			byte[] sectorBytes = sector.getBytes();
+			int dataLength = (int) Math.min(fileSize - currentByte,
+					EncryptedFileSector.getCapacity(sectorSize));
 			
-			for(int i = 16; i < sectorBytes.length && currentByte < fileSize; i++){
-				sectorBytes[i] = (byte) fileStream.read();
-				
-				++currentByte;
+			plainBuffer.clear();
+			plainBuffer.position(EncryptedFileSector.HEADER_SIZE);
+			plainBuffer.limit(EncryptedFileSector.HEADER_SIZE + dataLength);
+			while(plainBuffer.hasRemaining()){
+				if(fileChannel.read(plainBuffer, currentByte + plainBuffer.position() -
+						EncryptedFileSector.HEADER_SIZE) < 0){
+					throw new IOException("File shrank while being encrypted.");
+				}
 			}
+			Arrays.fill(plain, EncryptedFileSector.HEADER_SIZE + dataLength, sectorSize,
+					(byte) 0);
+			EncryptedFileSector.writeHeader(plain, currentSector, 0, dataLength);
 			
-			currentSector = currentSector.add(BigInteger.ONE);
+			currentByte += dataLength;
+			++currentSector;
 			
-			sector.setEncryptedBytes(encryptor.doFinal(sectorBytes));
+			int used = deflater == null ? sectorSize : compress(dataLength);
 			
-			return sector;
+			plainBuffer.clear();
+			plainBuffer.limit(used);
+			encryptor.doFinal(plainBuffer, into);
+			
+			// the unencrypted tail of the sector
+			if(into.hasArray()){
+				int position = into.position();
+				Arrays.fill(into.array(), into.arrayOffset() + position,
+						into.arrayOffset() + position + sectorSize - used, (byte) 0);
+				into.position(position + sectorSize - used);
+			} else{
+				for(int i = used; i < sectorSize; ++i){
+					into.put((byte) 0);
+				}
+			}
+			
+			return used;
 		} catch(Exception e){
 			throw new FileEncryptionException(e);
 		}
 	}
 	
+	/**
+	 * Compresses the contents of the sector buffer in place if that saves at
+	 * least a block.
+	 * @return number of leading bytes of the sector to encrypt
+	 */
+	private int compress(int dataLength){
+		int used = EncryptedFileSector.HEADER_SIZE + dataLength;
+		deflater.reset();
+		deflater.setInput(plain, EncryptedFileSector.HEADER_SIZE, dataLength);
+		deflater.finish();
+		int compressedLength = deflater.deflate(deflated);
+		int fieldSize = EncryptedFileSector.compressedLengthSize(sectorSize);
+		if(deflater.finished() &&
+				roundToBlock(EncryptedFileSector.HEADER_SIZE + fieldSize + compressedLength) <
+					roundToBlock(used)){
+			EncryptedFileSector.writeCompressedLength(plain, sectorSize, compressedLength);
+			System.arraycopy(deflated, 0, plain,
+					EncryptedFileSector.HEADER_SIZE + fieldSize, compressedLength);
+			used = EncryptedFileSector.HEADER_SIZE + fieldSize + compressedLength;
+		}
+		return roundToBlock(used);
+	}
+	
+	/**
+	 * Selects whether sectors are compressed before they are encrypted.  Sectors
+	 * which do not shrink are left uncompressed.
+	 * @param compress true to compress sectors
+	 */
+	public void setCompression(boolean compress){
+		if(compress && deflater == null){
+			deflater = new Deflater(Deflater.BEST_SPEED);
+			
+			// room for the deflated contents after their length
+			deflated = new byte[sectorSize - EncryptedFileSector.HEADER_SIZE -
+					EncryptedFileSector.compressedLengthSize(sectorSize)];
+		} else if(!compress && deflater != null){
+			deflater.end();
+			deflater = null;
+		}
+	}
+	
+	private static int roundToBlock(int length){
+		return (length + 15) & ~15;
+	}
+	
+	/**
+	 * Positions this encryptor so that the next sector produced is the passed
+	 * sector.  Sectors are encrypted independently, so a file may be encrypted
+	 * in disjoint ranges by several encryptors.
+	 * @param sector index of the next sector to produce
+	 */
+	public void seekToSector(long sector) throws IOException{
+		long payload = sectorSize - 16;
+		
+		currentByte = Math.min(fileSize, sector * payload);
+		currentSector = sector;
+	}
+	
 	public boolean hasNext(){
 		return currentByte < fileSize;
 	}
@@ -83,9 +205,31 @@ public class StreamedFileEncryptor{
 		return fileSize;
 	}
 	
+	public int getSectorSize(){
+		return sectorSize;
+	}
+	
+	/**
+	 * Returns the total number of sectors this encryptor will produce.
+	 */
+	public long getSectorCount(){
+		return sectorCount(fileSize, sectorSize);
+	}
+	
+	/**
+	 * Returns the number of sectors needed to encrypt a file.
+	 * @param fileSize size of the file in bytes
+	 * @param sectorSize size of each sector in bytes
+	 */
+	public static long sectorCount(long fileSize, int sectorSize){
+		long payload = sectorSize - 16;
+		return (fileSize + payload - 1) / payload;
+	}
+	
 	public void close() throws IOException{
-		if(fileStream != null){
-			fileStream.close();
+		setCompression(false);
+		if(fileChannel != null){
+			fileChannel.close();
 		}
 	}
 }
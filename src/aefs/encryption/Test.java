@@ -2,6 +2,7 @@ package aefs.encryption;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 
 public class Test {
@@ -37,6 +38,20 @@ public class Test {
 		t = System.currentTimeMillis() - t;
 		
 		System.out.println(secnum+" sectors in "+t+"ms");
+		
+		// again, encrypting into a reused buffer
+		ByteBuffer into = ByteBuffer.allocate(4096);
+		e.seekToSector(0);
+		secnum = 0;
+		t = System.currentTimeMillis();
+		while(e.hasNext()){
+			into.clear();
+			e.encryptNextSector(into);
+			++secnum;
+		}
+		t = System.currentTimeMillis() - t;
+		
+		System.out.println(secnum+" sectors in "+t+"ms into a reused buffer");
 		e.close();
 	}
 }
@@ -18,6 +18,14 @@ public class UnclosedInputStream extends InputStream{
 		return stream.read(bytes);
 	}
 	
+	public int read(byte[] bytes, int off, int len) throws IOException{
+		return stream.read(bytes, off, len);
+	}
+	
+	public int available() throws IOException{
+		return stream.available();
+	}
+	
 	public void close(){
 		return;
 	}
@@ -18,6 +18,14 @@ public class UnclosedOutputStream extends OutputStream{
 		stream.write(bytes);
 	}
 	
+	public void write(byte[] bytes, int off, int len) throws IOException{
+		stream.write(bytes, off, len);
+	}
+	
+	public void flush() throws IOException{
+		stream.flush();
+	}
+	
 	public void close(){
 		return;
 	}
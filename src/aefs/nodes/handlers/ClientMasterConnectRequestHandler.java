@@ -0,0 +1,81 @@
+package aefs.nodes.handlers;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import misc.io.ArrayUtils;
+import misc.logging.SimpleLogger;
+import aefs.encryption.EncryptedChannel;
+import aefs.encryption.RandomlyPaddedDecryptionStream;
+import aefs.encryption.RandomlyPaddedEncryptionStream;
+import aefs.nodes.master.AEFSMasterWorker;
+import aefs.protocols.authorization.MasterSessionToken;
+import aefs.protocols.authorization.MasterSessionToken.TokenDetails;
+import aefs.protocols.requests.ClientRequest;
+
+/**
+ * Establishes a persistent connection.  The client's token is verified once,
+ * after which the worker serves any number of requests over a single framed
+ * encrypted channel under the verified token details.
+ */
+public class ClientMasterConnectRequestHandler extends MasterRequestHandler {
+	
+	@Override
+	public boolean isControlRequest(){
+		return true;
+	}
+	
+	@Override
+	public void handle(ClientRequest request, AEFSMasterWorker worker) throws IOException {
+		String clientAddr = worker.client.getInetAddress().toString();
+		
+		MasterSessionToken token = new MasterSessionToken();
+		token.deserialize(worker.in, worker.master.publicParameters);
+		
+		// verify the token
+		TokenDetails details = verifyToken(token, worker);
+		if(details == null){
+			SimpleLogger.error("Token validation failed for connect request from "+
+					clientAddr+".  Closing connection.");
+			return;
+		}
+		
+		byte[] sessionKey = ArrayUtils.copyOfRange(details.keyMaterial, 0, 32);
+		byte[] sessionIV = ArrayUtils.copyOfRange(details.keyMaterial, 32, 48);
+		
+		SecureRandom rng = AEFSMasterWorker.secureBank.nextRNG();
+		
+		byte[] encPad = new byte[16];
+		rng.nextBytes(encPad);
+		
+		RandomlyPaddedEncryptionStream out = EncryptedChannel.startAES256EncryptionChannel(
+				worker.out, sessionKey, sessionIV, encPad);
+		RandomlyPaddedDecryptionStream in = EncryptedChannel.startAES256DecryptionChannel(
+				worker.in, sessionKey, sessionIV);
+		if(out == null || in == null){
+			return;
+		}
+		
+		byte[] pad = new byte[16];
+		rng.nextBytes(pad);
+		out.write(pad);
+		out.buffer();
+		
+		byte[] r = new byte[16];
+		in.discardBlock(); 
+		in.read(r);
+		
+		if(!Arrays.equals(pad, r)){
+			SimpleLogger.error(clientAddr+" did not conform to random padding request.");
+			return;
+		}
+		
+		in.discardBuffer();
+		
+		worker.startSession(details, in, out);
+		
+		SimpleLogger.info("Persistent connection established with "+clientAddr+".");
+	}
+
+}
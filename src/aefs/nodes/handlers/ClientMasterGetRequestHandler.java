@@ -2,10 +2,13 @@ package aefs.nodes.handlers;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.List;
 import java.util.regex.Pattern;
 
 import misc.io.ArrayUtils;
@@ -13,7 +16,15 @@ import misc.io.StreamUtils;
 import misc.logging.SimpleLogger;
 import aefs.encryption.EncryptedChannel;
 import aefs.encryption.EncryptedChannel.ChannelRoutine;
+import aefs.encryption.EncryptedFileSector;
+import aefs.encryption.PayloadMAC;
+import aefs.encryption.RandomlyPaddedDecryptionStream;
+import aefs.encryption.RandomlyPaddedEncryptionStream;
 import aefs.nodes.master.AEFSMasterWorker;
+import aefs.nodes.master.StoredFileDigests;
+import aefs.nodes.storage.SectorStore;
+import aefs.nodes.storage.SectorTreeStore;
+import aefs.nodes.storage.StoredObject;
 import aefs.protocols.authorization.MasterSessionToken;
 import aefs.protocols.authorization.MasterSessionToken.TokenDetails;
 import aefs.protocols.requests.ClientRequest;
@@ -23,6 +34,9 @@ public class ClientMasterGetRequestHandler extends MasterRequestHandler {
 	public static final Pattern ACCEPTABLE_FNAME_PATTERN = 
 			Pattern.compile("^[A-Za-z0-9\\.\\_]+$");
 	
+	// bytes of sectors read from the store at a time
+	private static final int BATCH_BYTES = 65536;
+	
 	@Override
 	public void handle(ClientRequest request, AEFSMasterWorker worker) throws IOException {
 		String clientAddr = worker.client.getInetAddress().toString();
@@ -31,9 +45,7 @@ public class ClientMasterGetRequestHandler extends MasterRequestHandler {
 		token.deserialize(worker.in, worker.master.publicParameters);
 	
 		// verify the token
-		TokenDetails details = token.verifyFully(clientAddr, 
-				worker.master.trustedTAKeys, worker.master.publicParameters, 
-				worker.master.key);
+		TokenDetails details = verifyToken(token, worker);
 		if(details == null){
 			SimpleLogger.error("Token validation failed for put request from "+
 					clientAddr+".  Closing connection.");
@@ -47,7 +59,6 @@ public class ClientMasterGetRequestHandler extends MasterRequestHandler {
 		
 		ChannelRoutine r = new ChannelRoutine(){
 			public void run(){
-				FileInputStream fIn = null;
 				try{
 					// TODO: DH key exchange, tickets, integrity verification
 					this.in = EncryptedChannel.startAES256DecryptionChannel(worker.in, 
@@ -68,39 +79,10 @@ public class ClientMasterGetRequestHandler extends MasterRequestHandler {
 					}
 					
 					this.in.discardBuffer();
-					DataInputStream din = new DataInputStream(this.in);
-					DataOutputStream dout = new DataOutputStream(this.out);
-					
-					String name = new String(StreamUtils.readAdvertisedBytes(din));
-					
-					SimpleLogger.info("Get request from "+clientAddr+":\n\tName:  "+name);
-					
-					// Verify name and policy
-					if(! ACCEPTABLE_FNAME_PATTERN.matcher(name).matches()){
-						dout.writeBoolean(false);
-						StreamUtils.writeAdvertisedBytes(dout, "Invalid AEFS file name.".getBytes());
-						SimpleLogger.info(clientAddr+" get rejected.  Invalid file name.");
-						return;
-					}
 					
-					fIn = new FileInputStream("aefs-store/"+name);
-					DataInputStream dfin = new DataInputStream(fIn);
-					
-					String policy = new String(StreamUtils.readAdvertisedBytes(dfin));
-					// write encrypted key
-					this.out.write(StreamUtils.readAdvertisedBytes(dfin));
-					
-					// write file contents
-					byte[] sector = new byte[4096];
-					while(fIn.read(sector) == 4096){
-						this.out.write(sector);
-					}
+					handleInSession(request, worker, details, this.in, this.out);
 				} catch(Exception e){
 					
-				} finally{
-					try{
-						fIn.close();
-					} catch(Exception e){ }
 				}
 			}
 		};
@@ -109,4 +91,183 @@ public class ClientMasterGetRequestHandler extends MasterRequestHandler {
 				sessionIV, null, worker.out, rng, null);
 	}
 	
+	@Override
+	public void handleInSession(ClientRequest request, AEFSMasterWorker worker,
+			TokenDetails details, RandomlyPaddedDecryptionStream in, 
+				RandomlyPaddedEncryptionStream out) throws IOException {
+		String clientAddr = worker.client.getInetAddress().toString();
+		
+		DataInputStream din = new DataInputStream(in);
+		DataOutputStream dout = new DataOutputStream(out);
+		
+		String name = new String(StreamUtils.readAdvertisedBytes(din));
+		
+		// Payloads may only be sent outside of the channel when its messages are
+		// framed, since only then does the client know where they end.
+		boolean direct = din.readBoolean() && in.isFramed();
+		
+		// requested byte range of the file's contents; a negative length
+		// requests the remainder of the file
+		long rangeOffset = din.readLong();
+		long rangeLength = din.readLong();
+		
+		SimpleLogger.info("Get request from "+clientAddr+":\n\tName:  "+name);
+		
+		// Verify name and policy
+		if(! ACCEPTABLE_FNAME_PATTERN.matcher(name).matches()){
+			dout.writeBoolean(false);
+			StreamUtils.writeAdvertisedBytes(dout, "Invalid AEFS file name.".getBytes());
+			out.buffer();
+			SimpleLogger.info(clientAddr+" get rejected.  Invalid file name.");
+			return;
+		}
+		
+		if(rangeOffset < 0){
+			dout.writeBoolean(false);
+			StreamUtils.writeAdvertisedBytes(dout, "Invalid range.".getBytes());
+			out.buffer();
+			SimpleLogger.info(clientAddr+" get rejected.  Invalid range.");
+			return;
+		}
+		
+		StoredObject stored = worker.master.store.open(name);
+		if(stored == null){
+			dout.writeBoolean(false);
+			StreamUtils.writeAdvertisedBytes(dout, "No such AEFS file.".getBytes());
+			out.buffer();
+			SimpleLogger.info(clientAddr+" get rejected.  No such file.");
+			return;
+		}
+		
+		SectorTreeStore.Tree tree = null;
+		try{
+			long totalSectors = stored.getSectorCount();
+			int sectorSize = stored.getSectorSize();
+			
+			// map the byte range onto the sectors holding it
+			long sectorData = EncryptedFileSector.getCapacity(sectorSize);
+			long firstSector = Math.min(rangeOffset / sectorData, totalSectors);
+			long endSector = totalSectors;
+			if(rangeLength >= 0){
+				endSector = Math.min(totalSectors, 
+						(rangeOffset + rangeLength + sectorData - 1) / sectorData);
+			}
+			long sectorCount = Math.max(0, endSector - firstSector);
+			
+			// a tree left by an earlier version of the file is ignored
+			tree = worker.master.sectorTrees.open(name);
+			if(tree != null && !tree.covers(stored)){
+				tree.close();
+				tree = null;
+			}
+			
+			if(tree != null && worker.master.verifyReads && !tree.verify(stored, firstSector, 
+					sectorCount, worker.master.getCryptoPool(), 
+						worker.master.getCryptoPool().getCorePoolSize())){
+				dout.writeBoolean(false);
+				StreamUtils.writeAdvertisedBytes(dout, 
+						"Stored file failed integrity check.".getBytes());
+				out.buffer();
+				SimpleLogger.error("Stored file "+name+" failed integrity check.");
+				return;
+			}
+			
+			dout.writeBoolean(true);
+			
+			// write encrypted key
+			out.write(stored.getEncryptedKey());
+			dout.writeLong(firstSector);
+			dout.writeLong(sectorCount);
+			dout.writeLong(totalSectors);
+			dout.writeInt(sectorSize);
+			
+			// proof of the range against the root of the file's tree
+			dout.writeBoolean(tree != null);
+			if(tree != null){
+				dout.write(tree.getRoot());
+				byte[] rootMAC = tree.getRootMAC();
+				dout.writeBoolean(rootMAC != null);
+				if(rootMAC != null) dout.write(rootMAC);
+				
+				List<byte[]> proof = tree.proof(firstSector, sectorCount);
+				dout.writeInt(proof.size());
+				for(byte[] node : proof){
+					dout.write(node);
+				}
+			}
+			dout.writeBoolean(direct);
+			
+			if(direct){
+				out.buffer();
+				sendDirect(worker, details, in, out, stored, tree, name, firstSector, 
+						sectorCount);
+				return;
+			}
+			
+			// write file contents, several sectors at a time, each without its
+			// trailing blocks of zeros
+			int batch = Math.max(1, BATCH_BYTES / sectorSize);
+			byte[] sectors = new byte[batch * sectorSize];
+			for(long i = 0; i < sectorCount; i += batch){
+				int n = (int) Math.min(batch, sectorCount - i);
+				stored.readSectors(firstSector + i, sectors, n);
+				for(int j = 0; j < n; ++j){
+					int offset = j * sectorSize;
+					int used = EncryptedFileSector.usedLength(sectors, offset, sectorSize);
+					dout.writeInt(used);
+					out.write(sectors, offset, used);
+				}
+			}
+			out.buffer();
+		} finally{
+			if(tree != null) tree.close();
+			stored.close();
+		}
+	}
+	
+	/**
+	 * Sends a stored file's sectors straight from disk to the client's socket.
+	 * The sectors are already encrypted under the file key; the session 
+	 * channel carries only the client's nonce and a MAC over the payload.  A
+	 * range of a file with a tree is MACed over the digest of its leaves, so 
+	 * that the sectors need not be read to digest them.
+	 */
+	private void sendDirect(AEFSMasterWorker worker, TokenDetails details, 
+			RandomlyPaddedDecryptionStream in, RandomlyPaddedEncryptionStream out,
+				StoredObject stored, SectorTreeStore.Tree tree, String name, 
+					long firstSector, long sectorCount) throws IOException {
+		DataInputStream din = new DataInputStream(in);
+		
+		// wait for the client to have consumed the channel up to this point
+		in.discardBuffer();
+		byte[] nonce = new byte[16];
+		din.readFully(nonce);
+		
+		// Whole-file digests are cached; ranges are digested from their leaves,
+		// or read and digested only for files put before trees were kept.
+		byte[] digest;
+		if(firstSector == 0 && sectorCount == stored.getSectorCount()){
+			digest = worker.master.fileDigests.get(name, stored);
+		} else if(tree != null){
+			digest = tree.rangeDigest(firstSector, sectorCount);
+		} else{
+			digest = StoredFileDigests.compute(stored, firstSector, sectorCount);
+		}
+		
+		WritableByteChannel target = worker.client.getChannel();
+		if(target == null){
+			target = Channels.newChannel(worker.out);
+		}
+		
+		stored.transferSectors(firstSector, sectorCount, target);
+		
+		try{
+			out.write(PayloadMAC.compute(ArrayUtils.copyOfRange(details.keyMaterial, 0, 32),
+					nonce, name, firstSector, sectorCount, digest));
+		} catch(GeneralSecurityException e){
+			throw new IOException(e);
+		}
+		out.buffer();
+	}
+	
 }
\ No newline at end of file
@@ -2,9 +2,9 @@ package aefs.nodes.handlers;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.regex.Pattern;
@@ -20,7 +20,14 @@ import abe.policy.NoSuchAttributeException;
 import abe.schemes.waters08.Waters08Ciphertext;
 import aefs.encryption.EncryptedChannel;
 import aefs.encryption.EncryptedChannel.ChannelRoutine;
+import aefs.encryption.EncryptedFileSector;
+import aefs.encryption.PayloadMAC;
+import aefs.encryption.RandomlyPaddedDecryptionStream;
+import aefs.encryption.RandomlyPaddedEncryptionStream;
+import aefs.encryption.SectorTree;
 import aefs.nodes.master.AEFSMasterWorker;
+import aefs.nodes.storage.SectorTreeStore;
+import aefs.nodes.storage.StoredObjectWriter;
 import aefs.protocols.authorization.MasterSessionToken;
 import aefs.protocols.authorization.MasterSessionToken.TokenDetails;
 import aefs.protocols.requests.ClientRequest;
@@ -38,9 +45,7 @@ public class ClientMasterPutRequestHandler extends MasterRequestHandler {
 		token.deserialize(worker.in, worker.master.publicParameters);
 	
 		// verify the token
-		TokenDetails details = token.verifyFully(clientAddr, 
-				worker.master.trustedTAKeys, worker.master.publicParameters, 
-				worker.master.key);
+		TokenDetails details = verifyToken(token, worker);
 		if(details == null){
 			SimpleLogger.error("Token validation failed for put request from "+
 					clientAddr+".  Closing connection.");
@@ -53,7 +58,6 @@ public class ClientMasterPutRequestHandler extends MasterRequestHandler {
 		final SecureRandom rng = AEFSMasterWorker.secureBank.nextRNG();
 		
 		ChannelRoutine r = new ChannelRoutine(){
-			FileOutputStream fOut = null;
 			public void run(){
 				try{
 					// TODO: DH key exchange
@@ -75,71 +79,10 @@ public class ClientMasterPutRequestHandler extends MasterRequestHandler {
 					}
 					
 					this.in.discardBuffer();
-					DataInputStream din = new DataInputStream(this.in);
-					DataOutputStream dout = new DataOutputStream(this.out);
-					
-					String name = new String(StreamUtils.readAdvertisedBytes(din));
-					String policy = "("+new String(StreamUtils.readAdvertisedBytes(din))+")";
-					
-					SimpleLogger.info("Put request from "+clientAddr+":\n\tName:  "+name+"\n\tPolicy:  "
-							+policy);
-					
-					// Verify name and policy
-					if(! ACCEPTABLE_FNAME_PATTERN.matcher(name).matches()){
-						dout.writeBoolean(false);
-						StreamUtils.writeAdvertisedBytes(dout, "Invalid AEFS file name.".getBytes());
-						SimpleLogger.info(clientAddr+" put rejected.  Invalid file name.");
-						return;
-					}
-					
-					try{
-						AccessPolicyNode p = AccessPolicyInterpreter.parsePolicy(policy);
-						LSSSNode n = p.toLSSSNode(worker.master.publicParameters);
-					} catch(NoSuchAttributeException e){
-						dout.writeBoolean(false);
-						StreamUtils.writeAdvertisedBytes(dout, "Invalid access policy.".getBytes());
-						SimpleLogger.info(clientAddr+" put rejected.  Invalid access policy.");
-						return;
-					}
-					
-					// TODO: verify name not taken
-					
-					dout.writeBoolean(true);
-					this.out.buffer();
-					
-					// Read encrypted file
-					this.in.discardBuffer();
-					
-					Ciphertext encryptedFileKey = new Waters08Ciphertext();
-					encryptedFileKey.deserialize(this.in, worker.master.publicParameters);
-					
-					// make output dir if it doesn't exist
-					if(! new File("aefs-store").exists()){
-						new File("aefs-store").mkdir();
-					}
-					
-					fOut = new FileOutputStream("aefs-store/"+name);
-					DataOutputStream fdout = new DataOutputStream(fOut);
-					
-					StreamUtils.writeAdvertisedBytes(fdout, policy.getBytes());
-					StreamUtils.writeAdvertisedBytes(fdout, encryptedFileKey.serialize());
-					
-					byte[] sector = new byte[4096];
-					try{
-						while(true){
-							din.readFully(sector);
-							fOut.write(sector);
-						}
-					} catch(Exception e){ }
-					
-					// TODO: hash and integrity verification
 					
+					handleInSession(request, worker, details, this.in, this.out);
 				} catch(Exception e){
 					
-				} finally{
-					try{
-						fOut.close();
-					} catch(Exception e) { }
 				}
 			}
 		};
@@ -148,4 +91,234 @@ public class ClientMasterPutRequestHandler extends MasterRequestHandler {
 				sessionIV, null, worker.out, rng, null);
 	}
 	
+	@Override
+	public void handleInSession(ClientRequest request, AEFSMasterWorker worker,
+			TokenDetails details, RandomlyPaddedDecryptionStream in, 
+				RandomlyPaddedEncryptionStream out) throws IOException {
+		String clientAddr = worker.client.getInetAddress().toString();
+		
+		DataInputStream din = new DataInputStream(in);
+		DataOutputStream dout = new DataOutputStream(out);
+		
+		String name = new String(StreamUtils.readAdvertisedBytes(din));
+		String policy = "("+new String(StreamUtils.readAdvertisedBytes(din))+")";
+		
+		SimpleLogger.info("Put request from "+clientAddr+":\n\tName:  "+name+"\n\tPolicy:  "
+				+policy);
+		
+		// Verify name and policy
+		if(! ACCEPTABLE_FNAME_PATTERN.matcher(name).matches()){
+			dout.writeBoolean(false);
+			StreamUtils.writeAdvertisedBytes(dout, "Invalid AEFS file name.".getBytes());
+			out.buffer();
+			SimpleLogger.info(clientAddr+" put rejected.  Invalid file name.");
+			return;
+		}
+		
+		// parsing the policy is cheap enough to stay on this thread
+		try{
+			AccessPolicyNode p = AccessPolicyInterpreter.parsePolicy(policy);
+			LSSSNode n = p.toLSSSNode(worker.master.publicParameters);
+		} catch(NoSuchAttributeException e){
+			dout.writeBoolean(false);
+			StreamUtils.writeAdvertisedBytes(dout, "Invalid access policy.".getBytes());
+			out.buffer();
+			SimpleLogger.info(clientAddr+" put rejected.  Invalid access policy.");
+			return;
+		}
+		
+		// TODO: verify name not taken
+		
+		dout.writeBoolean(true);
+		out.buffer();
+		
+		// Read encrypted file
+		in.discardBuffer();
+		
+		Ciphertext encryptedFileKey = new Waters08Ciphertext();
+		encryptedFileKey.deserialize(in, worker.master.publicParameters);
+		
+		// sectors carried by this request; a file sent over several connections
+		// arrives as several requests for disjoint sector ranges of one transfer
+		long firstSector = din.readLong();
+		long sectorCount = din.readLong();
+		long totalSectors = din.readLong();
+		int sectorSize = din.readInt();
+		long transfer = din.readLong();
+		if(firstSector < 0 || sectorCount < 0 || firstSector + sectorCount > totalSectors){
+			throw new IOException("Invalid sector range in put from "+clientAddr+".");
+		}
+		if(!EncryptedFileSector.isValidSectorSize(sectorSize)){
+			throw new IOException("Invalid sector size in put from "+clientAddr+".");
+		}
+		boolean wholeFile = firstSector == 0 && sectorCount == totalSectors;
+		
+		// digest the payload as it is stored for later direct gets, and hash
+		// each sector into its leaf of the file's tree
+		MessageDigest md;
+		MessageDigest leafDigest;
+		MessageDigest rangeDigest;
+		try{
+			md = PayloadMAC.newDigest();
+			leafDigest = SectorTree.newDigest();
+			rangeDigest = SectorTree.newDigest();
+		} catch(NoSuchAlgorithmException e){
+			throw new IOException(e);
+		}
+		
+		// A whole file is written aside and replaces the stored file once
+		// closed.  The parts of a transfer are written into a copy staged for
+		// it, which replaces the stored file once every part has arrived intact.
+		byte[] encryptedKey = encryptedFileKey.serialize();
+		StoredObjectWriter writer;
+		if(wholeFile){
+			writer = worker.master.store.create(name, policy.getBytes(), encryptedKey,
+					totalSectors, sectorSize);
+		} else{
+			if(!worker.master.stagedTransfers.begin(name, transfer, totalSectors)){
+				throw new IOException("Part of a failed transfer of "+name+" from "+
+						clientAddr+".");
+			}
+			try{
+				writer = worker.master.store.stage(name, transfer, policy.getBytes(),
+						encryptedKey, totalSectors, sectorSize);
+			} catch(IOException e){
+				failPart(worker, name, transfer, firstSector, sectorCount);
+				throw e;
+			}
+		}
+		
+		SectorTreeStore.Tree tree = null;
+		boolean closed = false;
+		try{
+			if(wholeFile){
+				tree = worker.master.sectorTrees.create(name, totalSectors);
+			} else{
+				tree = worker.master.sectorTrees.stage(name, transfer, totalSectors);
+			}
+			tree.setObjectKey(encryptedKey);
+			
+			byte[] sector = new byte[sectorSize];
+			
+			// Leaves are written to the tree as they are computed; the nodes above
+			// them are only rebuilt once the sectors are known to be intact.
+			for(long i = 0; i < sectorCount; ++i){
+				// sectors arrive without their trailing blocks of zeros
+				int used = din.readInt();
+				if(used < 0 || used > sector.length){
+					throw new IOException("Invalid sector length in put from "+clientAddr+".");
+				}
+				din.readFully(sector, 0, used);
+				Arrays.fill(sector, used, sector.length, (byte) 0);
+				writer.writeSector(firstSector + i, sector);
+				if(wholeFile) md.update(sector);
+				
+				byte[] leaf = SectorTree.leaf(leafDigest, sector, 0, sector.length);
+				rangeDigest.update(leaf);
+				tree.setLeaf(firstSector + i, leaf);
+			}
+			
+			// the client's hash of the sectors it sent, and for a whole file the
+			// MAC of the tree's root
+			byte[] sentDigest = new byte[SectorTree.HASH_LENGTH];
+			din.readFully(sentDigest);
+			byte[] rootMAC = null;
+			if(din.readBoolean()){
+				rootMAC = new byte[SectorTree.HASH_LENGTH];
+				din.readFully(rootMAC);
+			}
+			
+			if(!MessageDigest.isEqual(sentDigest, rangeDigest.digest())){
+				writer.abort();
+				tree.abort();
+				if(!wholeFile) failPart(worker, name, transfer, firstSector, sectorCount);
+				dout.writeBoolean(false);
+				out.buffer();
+				SimpleLogger.error("Sectors put by "+clientAddr+" were corrupted in transit.");
+				return;
+			}
+			
+			if(wholeFile){
+				tree.setRootMAC(rootMAC);
+				tree.rebuild(firstSector, sectorCount);
+			}
+			
+			// The sectors are on disk and published before the tree covering
+			// them, so a failure in between leaves the file with the tree of its
+			// previous contents, which is bound to another key and ignored.  A
+			// part's sectors and leaves are left staged.  The file's lock keeps
+			// updates from rewriting it between the two.
+			if(wholeFile){
+				synchronized(worker.master.store.lockFor(name)){
+					writer.close();
+					closed = true;
+					tree.commit();
+				}
+			} else{
+				writer.close();
+				closed = true;
+				tree.commit();
+			}
+		} catch(IOException e){
+			if(!closed) writer.abort();
+			if(tree != null) tree.abort();
+			if(!wholeFile) failPart(worker, name, transfer, firstSector, sectorCount);
+			throw e;
+		}
+		
+		if(wholeFile){
+			worker.master.fileDigests.record(name, writer.getVersion(), md.digest());
+		} else{
+			boolean complete;
+			try{
+				complete = worker.master.stagedTransfers.end(name, transfer, firstSector,
+						sectorCount, true);
+			} catch(IOException e){
+				discardTransfer(worker, name, transfer);
+				dout.writeBoolean(false);
+				out.buffer();
+				SimpleLogger.error("Part of "+name+" put by "+clientAddr+" belongs to a "+
+						"failed transfer.");
+				return;
+			}
+			
+			// the last part to arrive publishes the file, sectors before tree
+			if(complete){
+				synchronized(worker.master.store.lockFor(name)){
+					try{
+						worker.master.store.publish(name, transfer);
+					} catch(IOException e){
+						discardTransfer(worker, name, transfer);
+						throw e;
+					}
+					worker.master.sectorTrees.publish(name, transfer);
+				}
+				worker.master.fileDigests.invalidate(name);
+			}
+		}
+		
+		// acknowledge receipt of the full file, or of the part
+		dout.writeBoolean(true);
+		out.buffer();
+	}
+	
+	/**
+	 * Ends a part which did not arrive intact, failing its transfer.
+	 */
+	private void failPart(AEFSMasterWorker worker, String name, long transfer,
+			long firstSector, long sectorCount){
+		try{
+			worker.master.stagedTransfers.end(name, transfer, firstSector, sectorCount, false);
+		} catch(IOException e){ }
+		discardTransfer(worker, name, transfer);
+	}
+	
+	/**
+	 * Discards the copy of a file staged for a failed transfer.
+	 */
+	private void discardTransfer(AEFSMasterWorker worker, String name, long transfer){
+		worker.master.store.discard(name, transfer);
+		worker.master.sectorTrees.discard(name, transfer);
+	}
+	
 }
@@ -5,6 +5,7 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.concurrent.Callable;
 
 import javax.crypto.NoSuchPaddingException;
 
@@ -23,33 +24,42 @@ import aefs.protocols.requests.ClientRequest;
 
 public class ClientMasterSessionRequestHandler extends MasterRequestHandler {
 	
+	@Override
+	public boolean isControlRequest(){
+		return true;
+	}
+	
 	@Override
 	public void handle(ClientRequest request, AEFSMasterWorker worker) throws IOException {
 		ControlMessage body = request.getContent();
 		
-		String[] attributes = body.getValue("attributes").split(";");
+		final String[] attributes = body.getValue("attributes").split(";");
 		Long ttl = Long.parseLong(body.getValue("ttl"));
 		
 		// Reduce the TTL to the max TTL configured by the AEFS master
-		ttl = ttl < AEFSMasterNode.MAX_TTL ? ttl : AEFSMasterNode.MAX_TTL;
+		final long boundedTTL = ttl < AEFSMasterNode.MAX_TTL ? ttl : AEFSMasterNode.MAX_TTL;
 		
-		// Generate master session key
-		SecureRandom rng = worker.secureBank.nextRNG();
-		MasterSessionKey sessionKey = new MasterSessionKey(null, null);
-		MasterSessionToken token = null;
-		
-		try{
-			token = sessionKey.generate(worker.master.publicParameters,
-					 worker.master.volatileAttributes, attributes, ttl, rng,
-					 worker.master.privateTAKey, worker.master.publicTAKey);
-		} catch(InvalidAttributeSetException e){
-			// TODO: error codes to client
-			SimpleLogger.error("Invalid attribute authorization set requested by "+
-					worker.client.getInetAddress().toString());
-			return;
-		} catch(SessionKeyGenerationException e){
-			SimpleLogger.error("Unable to generate master session key for "+
-					worker.client.getInetAddress().toString()+": "+e.getMessage());
+		// Generate master session key on the crypto pool
+		final SecureRandom rng = worker.secureBank.nextRNG();
+		final MasterSessionKey sessionKey = new MasterSessionKey(null, null);
+		MasterSessionToken token = runCryptoStage(worker, new Callable<MasterSessionToken>(){
+			public MasterSessionToken call(){
+				try{
+					return sessionKey.generate(worker.master.publicParameters,
+							 worker.master.volatileAttributes, attributes, boundedTTL, rng,
+							 worker.master.privateTAKey, worker.master.publicTAKey);
+				} catch(InvalidAttributeSetException e){
+					// TODO: error codes to client
+					SimpleLogger.error("Invalid attribute authorization set requested by "+
+							worker.client.getInetAddress().toString());
+				} catch(SessionKeyGenerationException e){
+					SimpleLogger.error("Unable to generate master session key for "+
+							worker.client.getInetAddress().toString()+": "+e.getMessage());
+				}
+				return null;
+			}
+		});
+		if(token == null){
 			return;
 		}
 		
@@ -0,0 +1,356 @@
+package aefs.nodes.handlers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import misc.io.ArrayUtils;
+import misc.io.StreamUtils;
+import misc.logging.SimpleLogger;
+import aefs.encryption.EncryptedChannel;
+import aefs.encryption.EncryptedChannel.ChannelRoutine;
+import aefs.encryption.RandomlyPaddedDecryptionStream;
+import aefs.encryption.RandomlyPaddedEncryptionStream;
+import aefs.encryption.SectorTree;
+import aefs.nodes.master.AEFSMasterWorker;
+import aefs.nodes.storage.SectorTreeStore;
+import aefs.nodes.storage.StoredObject;
+import aefs.nodes.storage.StoredObjectWriter;
+import aefs.protocols.authorization.MasterSessionToken;
+import aefs.protocols.authorization.MasterSessionToken.TokenDetails;
+import aefs.protocols.requests.ClientRequest;
+
+/**
+ * Rewrites a range of sectors of a stored file in place, extending the file if
+ * the range runs past its end.  The client reuses the file's key, so it is
+ * first sent the encrypted key and the leading block of each sector it is
+ * about to replace, from which it learns the sector's revision, and the
+ * sectors at either end of the range in full, which it must merge with its
+ * new contents.  The new sectors are only written once they have all arrived
+ * intact, and only if the file has not been replaced or rewritten since the
+ * client was sent its key.
+ */
+public class ClientMasterUpdateRequestHandler extends MasterRequestHandler {
+	
+	public static final Pattern ACCEPTABLE_FNAME_PATTERN = 
+			Pattern.compile("^[A-Za-z0-9\\.\\_]+$");
+	
+	// bytes of each replaced sector sent to the client, enough to hold its header
+	private static final int HEAD_SIZE = 16;
+	
+	@Override
+	public void handle(ClientRequest request, AEFSMasterWorker worker) throws IOException {
+		String clientAddr = worker.client.getInetAddress().toString();
+		
+		MasterSessionToken token = new MasterSessionToken();
+		token.deserialize(worker.in, worker.master.publicParameters);
+	
+		// verify the token
+		TokenDetails details = verifyToken(token, worker);
+		if(details == null){
+			SimpleLogger.error("Token validation failed for update request from "+
+					clientAddr+".  Closing connection.");
+			return;
+		}
+		
+		byte[] sessionKey = ArrayUtils.copyOfRange(details.keyMaterial, 0, 32);
+		byte[] sessionIV = ArrayUtils.copyOfRange(details.keyMaterial, 32, 48);
+		
+		final SecureRandom rng = AEFSMasterWorker.secureBank.nextRNG();
+		
+		ChannelRoutine r = new ChannelRoutine(){
+			public void run(){
+				try{
+					// TODO: DH key exchange, tickets, integrity verification
+					this.in = EncryptedChannel.startAES256DecryptionChannel(worker.in, 
+							sessionKey, sessionIV);
+					
+					byte[] pad = new byte[16];
+					rng.nextBytes(pad);
+					this.out.write(pad);
+					this.out.buffer();
+					
+					byte[] r = new byte[16];
+					this.in.discardBlock(); 
+					this.in.read(r);
+					
+					if(!Arrays.equals(pad, r)){
+						SimpleLogger.error(clientAddr+" did not conform to random padding request.");
+						return;
+					}
+					
+					this.in.discardBuffer();
+					
+					handleInSession(request, worker, details, this.in, this.out);
+				} catch(Exception e){
+					
+				}
+			}
+		};
+		
+		EncryptedChannel.withAES256Channel(r, sessionKey, 
+				sessionIV, null, worker.out, rng, null);
+	}
+	
+	@Override
+	public void handleInSession(ClientRequest request, AEFSMasterWorker worker,
+			TokenDetails details, RandomlyPaddedDecryptionStream in, 
+				RandomlyPaddedEncryptionStream out) throws IOException {
+		String clientAddr = worker.client.getInetAddress().toString();
+		
+		DataInputStream din = new DataInputStream(in);
+		DataOutputStream dout = new DataOutputStream(out);
+		
+		String name = new String(StreamUtils.readAdvertisedBytes(din));
+		
+		SimpleLogger.info("Update request from "+clientAddr+":\n\tName:  "+name);
+		
+		// Verify name
+		if(! ACCEPTABLE_FNAME_PATTERN.matcher(name).matches()){
+			dout.writeBoolean(false);
+			StreamUtils.writeAdvertisedBytes(dout, "Invalid AEFS file name.".getBytes());
+			out.buffer();
+			SimpleLogger.info(clientAddr+" update rejected.  Invalid file name.");
+			return;
+		}
+		
+		StoredObject stored = worker.master.store.open(name);
+		if(stored == null){
+			dout.writeBoolean(false);
+			StreamUtils.writeAdvertisedBytes(dout, "No such AEFS file.".getBytes());
+			out.buffer();
+			SimpleLogger.info(clientAddr+" update rejected.  No such file.");
+			return;
+		}
+		
+		long firstSector;
+		long sectorCount;
+		long totalSectors;
+		int sectorSize = stored.getSectorSize();
+		
+		// the version of the file the client prepares its sectors against
+		long version = stored.getVersion();
+		boolean hasTree;
+		try{
+			long storedSectors = stored.getSectorCount();
+			byte[] sector = new byte[sectorSize];
+			
+			// send the key, the file's shape and the leading block of the last
+			// sector, from which the client learns the length of the file
+			dout.writeBoolean(true);
+			out.write(stored.getEncryptedKey());
+			dout.writeLong(storedSectors);
+			dout.writeInt(sectorSize);
+			if(storedSectors > 0){
+				stored.readSector(storedSectors - 1, sector);
+				out.write(sector, 0, HEAD_SIZE);
+			}
+			out.buffer();
+			
+			// receive the range of sectors to be rewritten
+			in.discardBuffer();
+			firstSector = din.readLong();
+			sectorCount = din.readLong();
+			totalSectors = din.readLong();
+			
+			// The range may extend the file but may not leave a gap in it.
+			if(firstSector < 0 || sectorCount <= 0 || firstSector > storedSectors ||
+					totalSectors != Math.max(storedSectors, firstSector + sectorCount)){
+				dout.writeBoolean(false);
+				StreamUtils.writeAdvertisedBytes(dout, "Invalid update range.".getBytes());
+				out.buffer();
+				SimpleLogger.info(clientAddr+" update rejected.  Invalid range.");
+				return;
+			}
+			
+			// send the sectors being replaced: the sectors at either end of the
+			// range in full and the leading block of the rest
+			dout.writeBoolean(true);
+			
+			// Send the nodes of the updated file's tree beside the range, from
+			// which the client computes the new root.  Nodes left of the range
+			// cover whole subtrees and so are unchanged when the file grows.
+			SectorTreeStore.Tree tree = worker.master.sectorTrees.open(name);
+			try{
+				hasTree = tree != null && tree.covers(stored);
+				dout.writeBoolean(hasTree);
+				if(hasTree){
+					List<byte[]> proof = SectorTree.proof(totalSectors, firstSector, 
+							sectorCount, tree);
+					dout.writeInt(proof.size());
+					for(byte[] node : proof){
+						dout.write(node);
+					}
+				}
+			} finally{
+				if(tree != null) tree.close();
+			}
+			
+			long lastSector = firstSector + sectorCount - 1;
+			for(long i = firstSector; i <= lastSector && i < storedSectors; ++i){
+				stored.readSector(i, sector);
+				if(i == firstSector || i == lastSector){
+					out.write(sector);
+				} else{
+					out.write(sector, 0, HEAD_SIZE);
+				}
+			}
+			out.buffer();
+		} finally{
+			stored.close();
+		}
+		
+		// The new sectors are spooled aside and checked before any is written,
+		// so that a range corrupted in transit leaves the stored file untouched.
+		in.discardBuffer();
+		File spool = File.createTempFile("aefs-update-", ".tmp");
+		try{
+			MessageDigest leafDigest;
+			MessageDigest rangeDigest;
+			try{
+				leafDigest = SectorTree.newDigest();
+				rangeDigest = SectorTree.newDigest();
+			} catch(NoSuchAlgorithmException e){
+				throw new IOException(e);
+			}
+			
+			// each sector is spooled followed by its leaf
+			byte[] sector = new byte[sectorSize];
+			DataOutputStream spoolOut = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(spool)));
+			try{
+				for(long i = 0; i < sectorCount; ++i){
+					din.readFully(sector);
+					byte[] leaf = SectorTree.leaf(leafDigest, sector, 0, sector.length);
+					rangeDigest.update(leaf);
+					spoolOut.write(sector);
+					spoolOut.write(leaf);
+				}
+			} finally{
+				spoolOut.close();
+			}
+			
+			// the client's hash of the sectors it sent and the MAC of the new root
+			byte[] sentDigest = new byte[SectorTree.HASH_LENGTH];
+			din.readFully(sentDigest);
+			byte[] rootMAC = null;
+			if(din.readBoolean()){
+				rootMAC = new byte[SectorTree.HASH_LENGTH];
+				din.readFully(rootMAC);
+			}
+			
+			if(!MessageDigest.isEqual(sentDigest, rangeDigest.digest())){
+				dout.writeBoolean(false);
+				StreamUtils.writeAdvertisedBytes(dout, "Sectors corrupted in transit.".getBytes());
+				out.buffer();
+				SimpleLogger.error("Sectors updated by "+clientAddr+" were corrupted in transit.");
+				return;
+			}
+			
+			// The file's lock is held from checking its version until its tree
+			// is committed, so that concurrent updates and puts of the file are
+			// applied one after another.
+			synchronized(worker.master.store.lockFor(name)){
+				if(!apply(worker, name, version, hasTree, firstSector, sectorCount, 
+						totalSectors, sectorSize, rootMAC, spool)){
+					dout.writeBoolean(false);
+					StreamUtils.writeAdvertisedBytes(dout, 
+							"File changed while the update was prepared.".getBytes());
+					out.buffer();
+					SimpleLogger.info(clientAddr+" update rejected.  "+name+" changed while "+
+							"the update was prepared.");
+					return;
+				}
+			}
+		} finally{
+			spool.delete();
+		}
+		
+		worker.master.fileDigests.invalidate(name);
+		
+		// acknowledge the update
+		dout.writeBoolean(true);
+		out.buffer();
+	}
+	
+	/**
+	 * Writes a spooled range of sectors into a stored file and its tree.  Must
+	 * be called holding the file's lock.
+	 * @return false if the file is no longer of the version the range was
+	 * prepared against, in which case nothing is written
+	 */
+	private boolean apply(AEFSMasterWorker worker, String name, long version, 
+			boolean hasTree, long firstSector, long sectorCount, long totalSectors, 
+				int sectorSize, byte[] rootMAC, File spool) throws IOException {
+		StoredObjectWriter writer = worker.master.store.update(name, version, totalSectors);
+		if(writer == null){
+			return false;
+		}
+		
+		SectorTreeStore.Tree tree = null;
+		boolean closed = false;
+		boolean committed = false;
+		try{
+			// The tree is the one the client was sent nodes of, as trees are only
+			// replaced along with their files.  A grown file's tree is written
+			// aside over the carried leaves and rebuilt whole.
+			long rebuildFirst = firstSector;
+			long rebuildCount = sectorCount;
+			if(hasTree){
+				tree = worker.master.sectorTrees.open(name);
+				if(tree != null && totalSectors > tree.getSectorCount()){
+					tree.close();
+					tree = worker.master.sectorTrees.extend(name, totalSectors);
+					rebuildFirst = 0;
+					rebuildCount = totalSectors;
+				}
+			}
+			
+			byte[] sector = new byte[sectorSize];
+			byte[] leaf = new byte[SectorTree.HASH_LENGTH];
+			DataInputStream spoolIn = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(spool)));
+			try{
+				for(long i = 0; i < sectorCount; ++i){
+					spoolIn.readFully(sector);
+					spoolIn.readFully(leaf);
+					writer.writeSector(firstSector + i, sector);
+					if(tree != null) tree.setLeaf(firstSector + i, leaf);
+				}
+			} finally{
+				spoolIn.close();
+			}
+			
+			if(tree != null){
+				tree.setRootMAC(rootMAC);
+				tree.rebuild(rebuildFirst, rebuildCount);
+			}
+			
+			// the sectors are on disk before the tree covering them
+			writer.close();
+			closed = true;
+			if(tree != null){
+				tree.commit();
+				committed = true;
+			}
+		} catch(IOException e){
+			if(!closed) writer.abort();
+			throw e;
+		} finally{
+			if(tree != null && !committed) tree.abort();
+		}
+		return true;
+	}
+	
+}
@@ -1,8 +1,16 @@
 package aefs.nodes.handlers;
 
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
+import aefs.encryption.RandomlyPaddedDecryptionStream;
+import aefs.encryption.RandomlyPaddedEncryptionStream;
 import aefs.nodes.master.AEFSMasterWorker;
+import aefs.protocols.authorization.MasterSessionToken;
+import aefs.protocols.authorization.MasterSessionToken.TokenDetails;
 import aefs.protocols.requests.ClientRequest;
 
 /**
@@ -18,4 +26,85 @@ public abstract class MasterRequestHandler {
 	public abstract void handle(ClientRequest request, AEFSMasterWorker worker)
 		throws IOException;
 	
+	/**
+	 * Handles the request over the already-authenticated encrypted channel of
+	 * a persistent connection.  Handlers for requests which may not be issued
+	 * over a persistent connection should not override this.
+	 * @param request request to handle
+	 * @param worker worker handling the request
+	 * @param details verified token details for the connection
+	 * @param in decryption stream from the client
+	 * @param out encryption stream to the client
+	 */
+	public void handleInSession(ClientRequest request, AEFSMasterWorker worker,
+			TokenDetails details, RandomlyPaddedDecryptionStream in, 
+				RandomlyPaddedEncryptionStream out) throws IOException {
+		throw new IOException("Request type not supported over a persistent connection.");
+	}
+	
+	/**
+	 * Returns true if this request is short (session and token requests) and
+	 * should be served on the master's control pool.  Other requests are
+	 * handed to the job pool once read.
+	 */
+	public boolean isControlRequest(){
+		return false;
+	}
+	
+	/**
+	 * Runs a CPU-bound stage of a request (pairings, key generation) on
+	 * the master's crypto pool and returns its result once complete.  Stages
+	 * which only move bytes stay on the worker's thread, so that bulk 
+	 * transfers never occupy the threads doing cryptographic work.
+	 * @param worker worker handling the request
+	 * @param stage stage to run
+	 * @throws IOException if the stage fails or cannot be scheduled
+	 */
+	protected static <T> T runCryptoStage(AEFSMasterWorker worker, Callable<T> stage)
+			throws IOException {
+		Future<T> result;
+		try{
+			result = worker.master.getCryptoPool().submit(stage);
+		} catch(RejectedExecutionException e){
+			throw new IOException("Crypto pool saturated.");
+		}
+		
+		try{
+			return result.get();
+		} catch(InterruptedException e){
+			result.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted awaiting crypto stage.");
+		} catch(ExecutionException e){
+			if(e.getCause() instanceof IOException){
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Verifies a client's token.  Tokens already verified are answered from
+	 * the master's token cache; others are verified on the crypto pool.
+	 * @param token token to verify
+	 * @param worker worker handling the request
+	 * @return token details or null if the token is invalid
+	 */
+	protected static TokenDetails verifyToken(final MasterSessionToken token, 
+			final AEFSMasterWorker worker) throws IOException {
+		TokenDetails details = worker.master.tokenCache.lookup(token);
+		if(details != null){
+			return details;
+		}
+		
+		final String clientAddr = worker.client.getInetAddress().toString();
+		return runCryptoStage(worker, new Callable<TokenDetails>(){
+			public TokenDetails call(){
+				return worker.master.tokenCache.verify(token, clientAddr, 
+						worker.master.trustedTAKeys, worker.master.publicParameters, 
+						worker.master.key);
+			}
+		});
+	}
+	
 }
@@ -21,6 +21,10 @@ public class MasterRequestHandlerFactory {
 			registerRequestType("put", ClientMasterPutRequestHandler.class);
 	private static Class getHandlerType = 
 			registerRequestType("get", ClientMasterGetRequestHandler.class);
+	private static Class connectHandlerType = 
+			registerRequestType("connect", ClientMasterConnectRequestHandler.class);
+	private static Class updateHandlerType = 
+			registerRequestType("update", ClientMasterUpdateRequestHandler.class);
 	
 	/**
 	 * Internally registers a client request type.
@@ -1,12 +1,15 @@
 package aefs.nodes.master;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 
 import misc.logging.SimpleLogger;
 import misc.random.SecureRandomBank;
+import aefs.protocols.requests.ControlMessageCodec;
 
 /**
  * Simple worker which listens for incoming connections
@@ -14,8 +17,8 @@ import misc.random.SecureRandomBank;
  */
 public class AEFSMasterMonitor implements Runnable {
 	
-	private boolean stopped;
-	private AEFSMasterNode master;
+	protected volatile boolean stopped;
+	protected AEFSMasterNode master;
 	
 	public AEFSMasterMonitor(AEFSMasterNode master){
 		this.master = master;
@@ -25,14 +28,13 @@ public class AEFSMasterMonitor implements Runnable {
 	@Override
 	public void run(){
 		ServerSocket listener = master.getServerSocket();
-		ThreadPoolExecutor pool = master.getJobPool();
 		
 		// Respond to requests until server socket closed or 
 		// monitor stopped.
 		while(!stopped){
 			try{
 				Socket client = listener.accept();
-				pool.execute(new AEFSMasterWorker(client, master));
+				admit(new AEFSMasterWorker(client, master));
 			} catch(IOException e){
 				SimpleLogger.info("AEFSMasterNode server socket closed.  "+
 						"No longer monitoring for requests.");
@@ -41,10 +43,63 @@ public class AEFSMasterMonitor implements Runnable {
 		}
 	}
 	
+	/**
+	 * Submits a worker if the master's admission controller and pools accept
+	 * it; otherwise the worker's connection is rejected.  New connections go
+	 * to the control pool, which reads the request and hands bulk requests on
+	 * to the job pool; persistent connections go straight to the job pool.
+	 * @param worker worker to submit
+	 */
+	protected void admit(AEFSMasterWorker worker){
+		AdmissionController admission = master.getAdmissionController();
+		InetAddress addr = worker.client.getInetAddress();
+		
+		if(!admission.tryAcquire(addr)){
+			reject(worker, "master at capacity");
+			return;
+		}
+		
+		boolean session = worker.sessionDetails != null;
+		ThreadPoolExecutor pool = session ? master.getJobPool() : master.getControlPool();
+		
+		worker.admitted = System.nanoTime();
+		worker.onJobPool = session;
+		try{
+			pool.execute(worker);
+		} catch(RejectedExecutionException e){
+			admission.release(addr);
+			reject(worker, "job queue full");
+		}
+	}
+	
+	/**
+	 * Rejects a connection.  A new connection is first sent a rejected status 
+	 * frame carrying the reason, which the client reports; a parked persistent
+	 * connection is simply closed, and its client falls back to one
+	 * connection per request.
+	 * @param worker worker holding the rejected connection
+	 * @param reason reason for the rejection
+	 */
+	protected void reject(AEFSMasterWorker worker, String reason){
+		SimpleLogger.error("Rejected connection from "+
+				worker.client.getInetAddress().toString()+": "+reason+".");
+		try{
+			if(worker.sessionDetails == null){
+				new ControlMessageCodec().writeStatus(
+						ControlMessageCodec.STATUS_REJECTED, reason, worker.out);
+			}
+		} catch(IOException e){ 
+		} finally{
+			try{
+				worker.client.close();
+			} catch(IOException e){ }
+		}
+	}
+	
 	/**
 	 * Stops the connection monitor.
 	 */
 	public void stop(){
-		this.stopped = false;
+		this.stopped = true;
 	}
 }
@@ -2,10 +2,13 @@ package aefs.nodes.master;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -24,6 +27,13 @@ import abe.schemes.waters08.Waters08PrivateKey;
 import aefs.encryption.rsa.GenericRSAKey;
 import aefs.encryption.rsa.RSAKeyManager;
 import aefs.nodes.InitializationException;
+import aefs.nodes.storage.FileSectorStore;
+import aefs.nodes.storage.GroupCommit;
+import aefs.nodes.storage.LogSectorStore;
+import aefs.nodes.storage.MappedSectorStore;
+import aefs.nodes.storage.SectorStore;
+import aefs.nodes.storage.SectorTreeStore;
+import aefs.protocols.authorization.VerifiedTokenCache;
 
 public class AEFSMasterNode {
 
@@ -35,12 +45,31 @@ public class AEFSMasterNode {
 	public PrivateKey key; // find a better way to do this
 	
 	private ThreadPoolExecutor jobPool;
+	private int numThreads;
+	
+	// Pool for CPU-bound request stages (pairings, key generation); the job
+	// pool is left to connection and transfer I/O.
+	private ThreadPoolExecutor cryptoPool;
+	private int cryptoThreads = Runtime.getRuntime().availableProcessors();
+	
+	// Small pool on which new connections are classified and session and
+	// token requests served, so that they never queue behind bulk transfers.
+	private ThreadPoolExecutor controlPool;
+	private int controlThreads = -1;
+	
+	// Admission control
+	private AdmissionController admission;
+	private int queueSize = 1000;
+	private int perClientLimit = 0;
+	private boolean adaptiveLimit = false;
 	
 	private AEFSMasterMonitor monitor;
 	
 	private int port;
 	
 	private ServerSocket listener;
+	
+	private boolean useSelector = false;
 
 	// TODO: HAVE THESE BE CONFIGURABLE
 	
@@ -50,6 +79,31 @@ public class AEFSMasterNode {
 	
 	public Set<GenericRSAKey> trustedTAKeys;
 	
+	// tokens already verified by this master
+	public VerifiedTokenCache tokenCache;
+	public static int TOKEN_CACHE_SIZE = 10000;
+	
+	// digests of stored files, for payloads sent directly from disk
+	public StoredFileDigests fileDigests = new StoredFileDigests();
+	
+	// storage of put files
+	public SectorStore store = new FileSectorStore("aefs-store");
+	
+	// integrity trees over the sectors of put files
+	public SectorTreeStore sectorTrees = new SectorTreeStore("aefs-trees");
+	
+	// files being put in parts, which are published once every part arrives
+	public StagedTransfers stagedTransfers = new StagedTransfers();
+	
+	// check stored sectors against their trees before sending them
+	public boolean verifyReads = false;
+	
+	// Durable puts are acknowledged only once on disk; concurrent puts are
+	// flushed together.
+	private GroupCommit groupCommit;
+	private boolean durablePuts = false;
+	private long commitWindow = 0;
+	
 	/**
 	 * Initializes an AEFSMasterNode object.
 	 * @param publicParametersPath path to file containing public parameters
@@ -79,8 +133,13 @@ public class AEFSMasterNode {
 			SimpleLogger.info("Public parameters loaded from "+publicParametersPath+".");
 			
 			SimpleLogger.info("Loading private key...");
-			key = new Waters08PrivateKey();
-			key.initializeFromFile(publicParameters, keyPath);
+			Waters08PrivateKey masterKey = new Waters08PrivateKey();
+			masterKey.initializeFromFile(publicParameters, keyPath);
+			
+			// every token is decrypted with this key, so its pairings are
+			// preprocessed once up front
+			masterKey.preparePairings((Waters08MasterPublicParameters) publicParameters);
+			key = masterKey;
 			SimpleLogger.info("Private key loaded from "+keyPath+".");
 			
 			SimpleLogger.info("Loading trusted ticket authority keys...");
@@ -95,30 +154,81 @@ public class AEFSMasterNode {
 			privateTAKey = RSAKeyManager.readKeyFromFile(new File(privateRSAPath));
 			SimpleLogger.info("Private ticket authority key loaded.");
 			
-			// Create threaded job pool
-			jobPool = new ThreadPoolExecutor(numThreads, numThreads, 1, TimeUnit.SECONDS,
-					new LinkedBlockingQueue<Runnable>(1000));
+			tokenCache = new VerifiedTokenCache(TOKEN_CACHE_SIZE);
 			
+			this.numThreads = numThreads;
 			this.port = port;
 		} catch(Exception e){
 			throw new InitializationException(e);
 		}
 	}
 	
+	/**
+	 * Initializes a master node without keys.  Such a node accepts and
+	 * dispatches connections but cannot serve authenticated requests; it is
+	 * used to measure connection handling on its own.
+	 * @param numThreads number of threads to use to respond to requests
+	 * @param port port on which to listen for requests
+	 */
+	AEFSMasterNode(int numThreads, int port){
+		this.volatileAttributes = new HashSet<String>();
+		this.tokenCache = new VerifiedTokenCache(TOKEN_CACHE_SIZE);
+		this.numThreads = numThreads;
+		this.port = port;
+	}
+	
 	/**
 	 * Starts the master node, allowing it to serve indefinitely.
 	 */
 	public void serveForever() throws InitializationException{
 		
+		// Create threaded job pool.  The admission controller never admits more
+		// connections than the pool can run or queue.
+		jobPool = new ThreadPoolExecutor(numThreads, numThreads, 1, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(queueSize));
+		admission = new AdmissionController(numThreads, numThreads + queueSize,
+				perClientLimit, adaptiveLimit);
+		
+		// New connections are read on the control pool; bulk requests then move
+		// to the job pool while keeping their admission.
+		if(controlThreads < 1){
+			controlThreads = Math.max(2, numThreads / 4);
+		}
+		// Reading a connection blocks its thread until the client sends, so
+		// connections beyond the control threads are read on threads added for
+		// them rather than queueing behind idle or slow clients.  Admission bounds
+		// the threads added.
+		controlPool = new ThreadPoolExecutor(controlThreads, 
+				Math.max(controlThreads, numThreads + queueSize), 1, TimeUnit.SECONDS, 
+				new SynchronousQueue<Runnable>());
+		
+		// Every admitted connection may be waiting on at most one crypto stage
+		cryptoPool = new ThreadPoolExecutor(cryptoThreads, cryptoThreads, 1, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(numThreads + queueSize));
+		
+		if(durablePuts){
+			groupCommit = new GroupCommit(commitWindow);
+			store.setGroupCommit(groupCommit);
+			sectorTrees.setGroupCommit(groupCommit);
+		}
+		
 		try{
 			// Bind to port
-			listener = new ServerSocket(port);
+			if(useSelector){
+				ServerSocketChannel channel = ServerSocketChannel.open();
+				channel.bind(new InetSocketAddress(port));
+				listener = channel.socket();
+				
+				monitor = new AEFSMasterSelectorMonitor(this);
+			} else{
+				listener = new ServerSocket(port);
+				
+				monitor = new AEFSMasterMonitor(this);
+			}
 		} catch(Exception e){
 			throw new InitializationException(e);
 		}
 		
-		monitor = new AEFSMasterMonitor(this);
-		
 		Thread monitorThread = new Thread(monitor);
 		// Start listening for requests
 		monitorThread.start();
@@ -126,6 +236,94 @@ public class AEFSMasterNode {
 		SimpleLogger.info("AEFSMasterNode started on port "+port+".");
 	}
 	
+	/**
+	 * Selects whether connections are accepted by a selector-based event loop
+	 * (holding idle connections without a thread) rather than a blocking
+	 * accept loop.  Must be called before serveForever().
+	 * @param useSelector true to use the selector-based monitor
+	 */
+	public void setUseSelector(boolean useSelector){
+		this.useSelector = useSelector;
+	}
+	
+	/**
+	 * Sets the number of connections which may wait for a thread of the job
+	 * pool.  Must be called before serveForever().
+	 * @param queueSize job queue bound
+	 */
+	public void setQueueSize(int queueSize){
+		this.queueSize = queueSize;
+	}
+	
+	/**
+	 * Sets the number of connections from a single client address which may
+	 * be served or queued at once.  Must be called before serveForever().
+	 * @param perClientLimit limit per client address; 0 for no limit
+	 */
+	public void setPerClientLimit(int perClientLimit){
+		this.perClientLimit = perClientLimit;
+	}
+	
+	/**
+	 * Sets the number of threads used for CPU-bound request stages.  Must be
+	 * called before serveForever().
+	 * @param cryptoThreads number of crypto threads; defaults to the number of
+	 * available processors
+	 */
+	public void setCryptoThreads(int cryptoThreads){
+		this.cryptoThreads = cryptoThreads;
+	}
+	
+	/**
+	 * Sets the number of threads kept to read new connections and serve
+	 * session and token requests.  Threads are added while more connections
+	 * are being read.  Must be called before serveForever().
+	 * @param controlThreads number of control threads; defaults to a quarter
+	 * of the job pool, and at least two
+	 */
+	public void setControlThreads(int controlThreads){
+		this.controlThreads = controlThreads;
+	}
+	
+	/**
+	 * Selects whether the number of connections admitted should adapt to
+	 * observed queueing latency.  Must be called before serveForever().
+	 * @param adaptiveLimit true to adapt the admission limit
+	 */
+	public void setAdaptiveLimit(boolean adaptiveLimit){
+		this.adaptiveLimit = adaptiveLimit;
+	}
+	
+	/**
+	 * Sets the store in which put files are kept.  Must be called before
+	 * serveForever().
+	 * @param store sector store
+	 */
+	public void setStore(SectorStore store){
+		this.store = store;
+	}
+	
+	/**
+	 * Selects whether stored sectors are checked against their trees before
+	 * being sent to clients.
+	 * @param verifyReads true to verify sectors read from the store
+	 */
+	public void setVerifyReads(boolean verifyReads){
+		this.verifyReads = verifyReads;
+	}
+	
+	/**
+	 * Selects whether puts are acknowledged only once written to disk.  Must be
+	 * called before serveForever().
+	 * @param durablePuts true to flush puts before acknowledging them
+	 * @param commitWindow microseconds to wait for concurrent puts to share a
+	 * flush
+	 */
+	public void setDurablePuts(boolean durablePuts, long commitWindow){
+		this.durablePuts = durablePuts;
+		this.commitWindow = commitWindow;
+	}
+	
 	/**
 	 * Stops the AEFSMasterNode.
 	 */
@@ -142,6 +340,30 @@ public class AEFSMasterNode {
 			}
 		}
 		
+		if(store instanceof MappedSectorStore){
+			MappedSectorStore mapped = (MappedSectorStore) store;
+			SimpleLogger.info("Mapping cache: "+mapped.getHits()+" hits, "+
+					mapped.getMisses()+" misses.");
+		}
+		if(store instanceof LogSectorStore){
+			LogSectorStore log = (LogSectorStore) store;
+			SimpleLogger.info("Log store: "+log.size()+" objects in "+log.getSegmentCount()+
+					" segments.");
+		}
+		if(groupCommit != null){
+			SimpleLogger.info("Group commit: "+groupCommit.getFlushes()+" flushes in "+
+					groupCommit.getBatches()+" batches.");
+			groupCommit.stop();
+		}
+		store.close();
+		sectorTrees.close();
+		
+		SimpleLogger.info("Token cache: "+tokenCache.getHits()+" hits, "+
+				tokenCache.getMisses()+" misses.");
+		if(admission != null){
+			SimpleLogger.info("Admission control: "+admission.getRejected()+
+					" connections rejected.");
+		}
 		SimpleLogger.info("AEFSMasterNode stopped.");
 	}
 	
@@ -153,6 +375,37 @@ public class AEFSMasterNode {
 		return listener;
 	}
 	
+	/**
+	 * Returns the connection monitor of the master or null if the master
+	 * is not serving.
+	 */
+	protected AEFSMasterMonitor getMonitor(){
+		return monitor;
+	}
+	
+	/**
+	 * Returns the admission controller of the master or null if the master
+	 * is not serving.
+	 */
+	protected AdmissionController getAdmissionController(){
+		return admission;
+	}
+	
+	/**
+	 * Returns the pool on which CPU-bound request stages are run.
+	 */
+	public ThreadPoolExecutor getCryptoPool(){
+		return cryptoPool;
+	}
+	
+	/**
+	 * Returns the pool on which new connections are read and session and
+	 * token requests are served.
+	 */
+	protected ThreadPoolExecutor getControlPool(){
+		return controlPool;
+	}
+	
 	/**
 	 * Returns the job pool being used by the master.
 	 */
@@ -180,6 +433,30 @@ public class AEFSMasterNode {
 		options.addOption("private_rsa_key", true, "Path to private RSA key.");
 		options.addOption("trust_path", true, "Path to directory containing trusted public ticket "
 				+ "authority keys.");
+		options.addOption("token_cache_size", true, "Maximum number of verified tokens "+
+				"to cache.");
+		options.addOption("crypto_threads", true, "Number of threads used for "+
+				"cryptographic work (default: number of processors).");
+		options.addOption("control_threads", true, "Number of threads kept to read new "+
+				"connections and serve session requests (default: num_threads / 4).");
+		options.addOption("queue_size", true, "Number of connections which may wait "+
+				"for a thread (default 1000).");
+		options.addOption("max_per_client", true, "Maximum number of connections from "+
+				"a single address served at once (default unlimited).");
+		options.addOption("adaptive_limit", "Lower the number of connections admitted "+
+				"when queueing latency rises.");
+		options.addOption("store", true, "Storage for put files: 'file' (default), "+
+				"'mapped' to serve sectors from memory-mapped files, or 'log' to append "+
+				"files to segments under aefs-log.");
+		options.addOption("map_cache_size", true, "Megabytes of stored files which may "+
+				"be mapped at once by the mapped store (default 1024).");
+		options.addOption("durable", "Acknowledge puts only once they are on disk.");
+		options.addOption("commit_window", true, "Microseconds durable puts wait for "+
+				"concurrent puts to share a disk flush (default 0).");
+		options.addOption("verify_reads", "Check stored sectors against their integrity "+
+				"trees before sending them.");
+		options.addOption("selector", "Accept connections using a non-blocking selector "+
+				"rather than a blocking accept loop.");
 		
 		CommandLineParser parser = new DefaultParser();
 		try{
@@ -196,9 +473,23 @@ public class AEFSMasterNode {
 				String trustPath = cmd.getOptionValue("trust_path");
 				String publicRSAPath = cmd.getOptionValue("public_rsa_key");
 				String privateRSAPath = cmd.getOptionValue("private_rsa_key");
+				String tokenCacheStr = cmd.getOptionValue("token_cache_size");
+				String queueSizeStr = cmd.getOptionValue("queue_size");
+				String perClientStr = cmd.getOptionValue("max_per_client");
+				String cryptoThreadsStr = cmd.getOptionValue("crypto_threads");
+				String controlThreadsStr = cmd.getOptionValue("control_threads");
+				String storeStr = cmd.getOptionValue("store", "file");
+				String mapCacheStr = cmd.getOptionValue("map_cache_size");
+				String commitWindowStr = cmd.getOptionValue("commit_window");
 				
 				Integer numThreads = null;
 				Integer port = null;
+				Integer queueSize = null;
+				Integer perClientLimit = null;
+				Integer cryptoThreads = null;
+				Integer controlThreads = null;
+				long mapCacheSize = 1024;
+				long commitWindow = 0;
 				
 				if(paramsPath == null || keyPath == null || numThreadsStr == null ||
 						portStr == null || trustPath == null || publicRSAPath == null ||
@@ -210,12 +501,61 @@ public class AEFSMasterNode {
 				try{
 					numThreads = Integer.parseInt(numThreadsStr);
 					port = Integer.parseInt(portStr);
+					if(tokenCacheStr != null){
+						TOKEN_CACHE_SIZE = Integer.parseInt(tokenCacheStr);
+					}
+					if(queueSizeStr != null){
+						queueSize = Integer.parseInt(queueSizeStr);
+					}
+					if(perClientStr != null){
+						perClientLimit = Integer.parseInt(perClientStr);
+					}
+					if(cryptoThreadsStr != null){
+						cryptoThreads = Integer.parseInt(cryptoThreadsStr);
+					}
+					if(controlThreadsStr != null){
+						controlThreads = Integer.parseInt(controlThreadsStr);
+					}
+					if(mapCacheStr != null){
+						mapCacheSize = Long.parseLong(mapCacheStr);
+					}
+					if(commitWindowStr != null){
+						commitWindow = Long.parseLong(commitWindowStr);
+					}
 				} catch(NumberFormatException e){
-					SimpleLogger.error("num_threads and port must be numeric values.");
+					SimpleLogger.error("num_threads, port, token_cache_size, queue_size, "+
+							"max_per_client, crypto_threads, control_threads, map_cache_size, "+
+							"and commit_window "+
+							"must be numeric values.");
 				}
 				
 				AEFSMasterNode master = new AEFSMasterNode(paramsPath, keyPath, numThreads,
 						port, trustPath, publicRSAPath, privateRSAPath);
+				master.setUseSelector(cmd.hasOption("selector"));
+				master.setAdaptiveLimit(cmd.hasOption("adaptive_limit"));
+				if(queueSize != null){
+					master.setQueueSize(queueSize);
+				}
+				if(perClientLimit != null){
+					master.setPerClientLimit(perClientLimit);
+				}
+				if(cryptoThreads != null){
+					master.setCryptoThreads(cryptoThreads);
+				}
+				if(controlThreads != null){
+					master.setControlThreads(controlThreads);
+				}
+				if(storeStr.equals("mapped")){
+					master.setStore(new MappedSectorStore("aefs-store", 
+							mapCacheSize * 1024 * 1024));
+				} else if(storeStr.equals("log")){
+					master.setStore(new LogSectorStore("aefs-log"));
+				} else if(!storeStr.equals("file")){
+					SimpleLogger.error("Unknown store '"+storeStr+"'.  Please see '-help'.");
+					System.exit(1);
+				}
+				master.setDurablePuts(cmd.hasOption("durable"), commitWindow);
+				master.setVerifyReads(cmd.hasOption("verify_reads"));
 				
 				master.serveForever();
 				
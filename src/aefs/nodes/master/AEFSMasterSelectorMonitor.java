@@ -0,0 +1,165 @@
+package aefs.nodes.master;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import misc.logging.SimpleLogger;
+
+/**
+ * Selector-based connection monitor for the master.  Accepted connections
+ * are held by a single event loop without a thread of their own until
+ * request bytes arrive, at which point the connection is switched to
+ * blocking mode and handed to the master's pools as an AEFSMasterWorker.  Slow or
+ * idle clients therefore cost a selection key instead of a pooled thread.
+ */
+public class AEFSMasterSelectorMonitor extends AEFSMasterMonitor {
+	
+	private Selector selector;
+	
+	// workers returning an idle persistent connection to the event loop
+	private Queue<AEFSMasterWorker> parked;
+	
+	public AEFSMasterSelectorMonitor(AEFSMasterNode master) throws IOException {
+		super(master);
+		
+		selector = Selector.open();
+		parked = new ConcurrentLinkedQueue<AEFSMasterWorker>();
+	}
+	
+	@Override
+	public void run(){
+		ServerSocketChannel listener = master.getServerSocket().getChannel();
+		
+		List<SelectionKey> ready = new ArrayList<SelectionKey>();
+		
+		try{
+			listener.configureBlocking(false);
+			listener.register(selector, SelectionKey.OP_ACCEPT);
+		} catch(IOException e){
+			SimpleLogger.error("Unable to register AEFSMasterNode server socket with "+
+					"selector: "+e.getMessage());
+			return;
+		}
+		
+		// Respond to requests until server socket closed or
+		// monitor stopped.
+		while(!stopped){
+			try{
+				// Keys picked up while flushing cancellations are still pending
+				if(selector.selectedKeys().isEmpty()){
+					selector.select();
+				}
+				
+				registerParked();
+				
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()){
+					SelectionKey key = it.next();
+					it.remove();
+					
+					if(!key.isValid()) continue;
+					
+					if(key.isAcceptable()){
+						SocketChannel client = listener.accept();
+						if(client != null){
+							client.configureBlocking(false);
+							client.register(selector, SelectionKey.OP_READ);
+						}
+					} else if(key.isReadable()){
+						// Request bytes are waiting; stop watching this connection
+						// and dispatch it once the key is deregistered.
+						key.cancel();
+						ready.add(key);
+					}
+				}
+				
+				if(ready.isEmpty()) continue;
+				
+				// Flush cancelled keys so that the channels may be put back into
+				// blocking mode for the stream-based handlers.
+				selector.selectNow();
+				
+				for(SelectionKey key : ready){
+					dispatch(key);
+				}
+				ready.clear();
+			} catch(ClosedSelectorException | IOException e){
+				SimpleLogger.info("AEFSMasterNode server socket closed.  "+
+						"No longer monitoring for requests.");
+				break;
+			}
+		}
+		
+		try{
+			selector.close();
+		} catch(IOException e){ }
+	}
+	
+	/**
+	 * Hands a readable connection to the master's pools.
+	 * @param key cancelled selection key of the connection
+	 */
+	private void dispatch(SelectionKey key){
+		SocketChannel client = (SocketChannel) key.channel();
+		AEFSMasterWorker worker = (AEFSMasterWorker) key.attachment();
+		
+		try{
+			client.configureBlocking(true);
+		} catch(IOException e){
+			try{
+				client.close();
+			} catch(IOException e2){ }
+			return;
+		}
+		
+		if(worker == null){
+			worker = new AEFSMasterWorker(client.socket(), master);
+		}
+		
+		admit(worker);
+	}
+	
+	/**
+	 * Registers connections returned by workers with the selector.
+	 */
+	private void registerParked(){
+		AEFSMasterWorker worker;
+		while((worker = parked.poll()) != null){
+			SocketChannel client = worker.client.getChannel();
+			try{
+				client.configureBlocking(false);
+				client.register(selector, SelectionKey.OP_READ, worker);
+			} catch(IOException e){
+				try{
+					client.close();
+				} catch(IOException e2){ }
+			}
+		}
+	}
+	
+	/**
+	 * Returns an idle persistent connection to the event loop.  The passed 
+	 * worker is resubmitted to the job pool when the connection next becomes
+	 * readable.
+	 * @param worker worker owning the idle connection
+	 */
+	public void park(AEFSMasterWorker worker){
+		parked.add(worker);
+		selector.wakeup();
+	}
+	
+	@Override
+	public void stop(){
+		super.stop();
+		selector.wakeup();
+	}
+}
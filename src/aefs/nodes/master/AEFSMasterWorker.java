@@ -1,19 +1,23 @@
 package aefs.nodes.master;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.concurrent.RejectedExecutionException;
 
 import misc.logging.SimpleLogger;
 import misc.random.SecureRandomBank;
+import aefs.encryption.RandomlyPaddedDecryptionStream;
+import aefs.encryption.RandomlyPaddedEncryptionStream;
 import aefs.nodes.handlers.MasterRequestHandler;
 import aefs.nodes.handlers.MasterRequestHandlerFactory;
 import aefs.protocols.ControlMessage;
+import aefs.protocols.authorization.MasterSessionToken.TokenDetails;
 import aefs.protocols.requests.ClientRequest;
 import aefs.protocols.requests.ClientRequestFactory;
+import aefs.protocols.requests.ControlMessageCodec;
 
 /**
  * Implementation of the Runnable AEFSMasterWorker.  Given a client 
@@ -30,14 +34,43 @@ public class AEFSMasterWorker implements Runnable {
 	public InputStream in;
 	public OutputStream out;
 	
+	// the client's input stream, which the control stage reads under a deadline
+	private DeadlineInputStream deadlineIn;
+	
 	public AEFSMasterNode master;
 	
+	// State of a persistent connection; null unless the client has connected
+	// with a "connect" request.
+	public TokenDetails sessionDetails;
+	public RandomlyPaddedDecryptionStream sessionIn;
+	public RandomlyPaddedEncryptionStream sessionOut;
+	
+	// time at which this worker was last submitted to a pool (System.nanoTime)
+	public long admitted;
+	
+	// false while on the control pool, which reads new connections
+	boolean onJobPool;
+	
+	// milliseconds a new connection may take to send its request
+	private static final int REQUEST_READ_TIMEOUT = 2000;
+	
+	// milliseconds a control request may then take to complete its exchange
+	private static final int CONTROL_EXCHANGE_TIMEOUT = 5000;
+	
+	// request read on the control pool and handed to the job pool
+	private ClientRequest request;
+	private MasterRequestHandler handler;
+	
+	// frame buffer reused across the requests of a persistent connection
+	private ControlMessageCodec codec = new ControlMessageCodec();
+	
 	public AEFSMasterWorker(Socket client, AEFSMasterNode master){
 		this.client = client;
 		this.master = master;
 		
 		try{
-			in = client.getInputStream();
+			deadlineIn = new DeadlineInputStream(client, client.getInputStream());
+			in = deadlineIn;
 			out = client.getOutputStream();
 		} catch(Exception e){ }
 	}
@@ -45,31 +78,163 @@ public class AEFSMasterWorker implements Runnable {
 	@Override
 	public void run(){
 		String addr = client.getInetAddress().toString();
+		AdmissionController admission = master.getAdmissionController();
+		boolean keepOpen = false;
+		boolean handedOff = false;
+		
+		// Only the wait for a pool thread feeds the adaptive limit; the time
+		// spent serving varies with transfer size and session length.
+		admission.recordLatency(System.nanoTime() - admitted);
 		try{
-			SimpleLogger.info("Connection received from "+addr);
-			ObjectInputStream objIn = new ObjectInputStream(in);
-			
-			// Receive and parse request
-			ControlMessage message = (ControlMessage) objIn.readObject();
-			ClientRequest request = ClientRequestFactory.requestFromMessage(message);
-			
-			// Handle the request
-			MasterRequestHandler handler = MasterRequestHandlerFactory.getHandler(request);
-			if(handler == null){
-				SimpleLogger.error("Invalid request received from "+
-						addr);
+			if(sessionDetails == null){
+				if(handler == null){
+					SimpleLogger.info("Connection received from "+addr);
+					
+					// Receive and parse request.  A client which does not send
+					// one promptly may not hold a control thread.
+					deadlineIn.arm(REQUEST_READ_TIMEOUT);
+					ControlMessage message = codec.read(in);
+					deadlineIn.disarm();
+					
+					request = ClientRequestFactory.requestFromMessage(message);
+					handler = request == null ? null :
+						MasterRequestHandlerFactory.getHandler(request);
+					if(handler == null){
+						SimpleLogger.error("Invalid request received from "+
+								addr);
+						return;
+					}
+					
+					// Bulk requests continue on the job pool so that session and
+					// token requests never queue behind transfers
+					if(!handler.isControlRequest()){
+						handedOff = handOff();
+						if(!handedOff){
+							master.getMonitor().reject(this, "job queue full");
+						}
+						return;
+					}
+				}
+				
+				codec.writeStatus(ControlMessageCodec.STATUS_ADMITTED, null, out);
+				
+				// Handle the request.  On the control pool the whole exchange,
+				// token and challenge included, must complete by a deadline.
+				MasterRequestHandler current = handler;
+				handler = null;
+				boolean control = !onJobPool;
+				if(control) deadlineIn.arm(CONTROL_EXCHANGE_TIMEOUT);
+				try{
+					current.handle(request,  this);
+				} finally{
+					if(control) deadlineIn.disarm();
+				}
+				request = null;
 			} else{
-				handler.handle(request,  this);
+				serveSessionRequest();
+			}
+			
+			// Serve further requests on a persistent connection.  When the master
+			// accepts through a selector, idle connections are returned to it
+			// rather than holding this thread; otherwise a connection opened on 
+			// the control pool moves to the job pool.
+			keepOpen = sessionDetails != null;
+			while(keepOpen){
+				if(sessionIn.available() == 0 && 
+						master.getMonitor() instanceof AEFSMasterSelectorMonitor){
+					((AEFSMasterSelectorMonitor) master.getMonitor()).park(this);
+					break;
+				}
+				
+				if(!onJobPool){
+					handedOff = handOff();
+					keepOpen = handedOff;
+					break;
+				}
+				
+				keepOpen = serveSessionRequest();
 			}
-		} catch(IOException | ClassNotFoundException e){
+		} catch(EOFException e){
+			keepOpen = false;
+		} catch(IOException e){
+			keepOpen = false;
 			SimpleLogger.error("Invalid request received from "+
 					client.getInetAddress().toString()+".  Closing connection: "+
 					e.getMessage());
 		} finally{
-			try{
-				SimpleLogger.info("Closed connection to "+addr);
-				client.close();
-			} catch(IOException e){ }
+			// a worker handed to the job pool keeps its admission and connection
+			if(!handedOff){
+				admission.release(client.getInetAddress());
+				
+				if(!keepOpen){
+					try{
+						SimpleLogger.info("Closed connection to "+addr);
+						client.close();
+					} catch(IOException e){ }
+				}
+			}
 		}
 	}
+	
+	/**
+	 * Resubmits this worker to the master's job pool, keeping its admission.
+	 * @return true if the job pool accepted the worker
+	 */
+	private boolean handOff(){
+		admitted = System.nanoTime();
+		onJobPool = true;
+		try{
+			master.getJobPool().execute(this);
+			return true;
+		} catch(RejectedExecutionException e){
+			onJobPool = false;
+			return false;
+		}
+	}
+	
+	/**
+	 * Marks this worker's connection as persistent.  Subsequent requests will
+	 * be read from and answered over the passed encrypted streams, under the
+	 * authorization of the passed token details.
+	 * @param details verified token details for the connection
+	 * @param in record decryption stream from the client
+	 * @param out record encryption stream to the client
+	 */
+	public void startSession(TokenDetails details, RandomlyPaddedDecryptionStream in,
+			RandomlyPaddedEncryptionStream out){
+		this.sessionDetails = details;
+		this.sessionIn = in;
+		this.sessionOut = out;
+	}
+	
+	/**
+	 * Reads and handles a single request over the persistent connection.
+	 * @return true if the connection should remain open
+	 */
+	private boolean serveSessionRequest() throws IOException{
+		String addr = client.getInetAddress().toString();
+		
+		if(sessionDetails.expiration < System.currentTimeMillis()){
+			SimpleLogger.info("Session token for "+addr+" expired.");
+			return false;
+		}
+		
+		ControlMessage message = codec.read(sessionIn);
+		sessionIn.discardBuffer();
+		
+		ClientRequest request = ClientRequestFactory.requestFromMessage(message);
+		MasterRequestHandler handler = request == null ? null :
+			MasterRequestHandlerFactory.getHandler(request);
+		if(handler == null){
+			SimpleLogger.error("Invalid request received from "+addr);
+			return false;
+		}
+		
+		handler.handleInSession(request, this, sessionDetails, sessionIn, sessionOut);
+		
+		// discard the marker ending the client's final message
+		sessionIn.discardBuffer();
+		
+		return true;
+	}
 }
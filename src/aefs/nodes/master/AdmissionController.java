@@ -0,0 +1,154 @@
+package aefs.nodes.master;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether the master should accept work for a connection.  Limits
+ * the number of connections being served at once, both overall and per
+ * client address.  If adaptive, the overall limit is lowered when queueing
+ * latency rises well above its observed baseline and raised again while
+ * latency stays near it, so that a surge is shed at the door rather than
+ * queued behind the pool.
+ */
+public class AdmissionController {
+	
+	// smoothed latency above this multiple of the baseline lowers the limit
+	private static final double LATENCY_TOLERANCE = 2.0;
+	private static final double BACKOFF = 0.9;
+	
+	private int minLimit;
+	private int maxLimit;
+	private int perClientLimit;
+	private boolean adaptive;
+	
+	private volatile int limit;
+	private AtomicInteger inFlight;
+	private HashMap<InetAddress, Integer> perClient;
+	
+	private double baselineLatency = -1;
+	private double smoothedLatency = -1;
+	
+	private AtomicLong rejected;
+	
+	/**
+	 * Creates an admission controller.
+	 * @param minLimit lowest overall limit the adaptive limit may reach
+	 * @param maxLimit overall limit on connections being served or queued
+	 * @param perClientLimit limit per client address; 0 for no limit
+	 * @param adaptive true to adapt the overall limit to observed latency
+	 */
+	public AdmissionController(int minLimit, int maxLimit, int perClientLimit,
+			boolean adaptive){
+		this.minLimit = Math.max(1, Math.min(minLimit, maxLimit));
+		this.maxLimit = maxLimit;
+		this.perClientLimit = perClientLimit;
+		this.adaptive = adaptive;
+		
+		this.limit = maxLimit;
+		this.inFlight = new AtomicInteger();
+		this.perClient = new HashMap<InetAddress, Integer>();
+		this.rejected = new AtomicLong();
+	}
+	
+	/**
+	 * Attempts to admit work for a connection from the passed address.  Each
+	 * successful call must be matched by a call to release().
+	 * @param address client address
+	 * @return true if the work was admitted
+	 */
+	public boolean tryAcquire(InetAddress address){
+		if(inFlight.incrementAndGet() > limit){
+			inFlight.decrementAndGet();
+			rejected.incrementAndGet();
+			return false;
+		}
+		
+		if(perClientLimit > 0){
+			synchronized(perClient){
+				Integer count = perClient.get(address);
+				if(count == null) count = 0;
+				if(count >= perClientLimit){
+					inFlight.decrementAndGet();
+					rejected.incrementAndGet();
+					return false;
+				}
+				perClient.put(address, count + 1);
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Releases work previously admitted for the passed address.
+	 * @param address client address
+	 */
+	public void release(InetAddress address){
+		if(perClientLimit > 0){
+			synchronized(perClient){
+				Integer count = perClient.get(address);
+				if(count == null || count <= 1){
+					perClient.remove(address);
+				} else{
+					perClient.put(address, count - 1);
+				}
+			}
+		}
+		
+		inFlight.decrementAndGet();
+	}
+	
+	/**
+	 * Records the queueing latency of admitted work, adjusting the overall 
+	 * limit if adaptive.
+	 * @param nanos time from admission until a pool thread began serving
+	 */
+	public synchronized void recordLatency(long nanos){
+		if(!adaptive) return;
+		
+		if(baselineLatency < 0){
+			baselineLatency = nanos;
+			smoothedLatency = nanos;
+			return;
+		}
+		
+		// the baseline tracks the minimum but drifts upward slowly so that a
+		// lasting change in workload is eventually accepted as normal
+		if(nanos < baselineLatency){
+			baselineLatency = nanos;
+		} else{
+			baselineLatency += (nanos - baselineLatency) * 0.001;
+		}
+		smoothedLatency = 0.9 * smoothedLatency + 0.1 * nanos;
+		
+		if(smoothedLatency > LATENCY_TOLERANCE * baselineLatency){
+			limit = Math.max(minLimit, (int) (limit * BACKOFF));
+		} else if(inFlight.get() * 2 >= limit){
+			limit = Math.min(maxLimit, limit + 1);
+		}
+	}
+	
+	/**
+	 * Returns the current overall limit.
+	 */
+	public int getLimit(){
+		return limit;
+	}
+	
+	/**
+	 * Returns the number of connections currently admitted.
+	 */
+	public int getInFlight(){
+		return inFlight.get();
+	}
+	
+	/**
+	 * Returns the number of connections rejected so far.
+	 */
+	public long getRejected(){
+		return rejected.get();
+	}
+}
@@ -0,0 +1,75 @@
+package aefs.nodes.master;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Input stream of a client's connection whose reads fail once a deadline has
+ * passed.  A socket timeout only bounds each read; the deadline bounds an
+ * exchange of any number of reads, so that a client sending a byte at a time
+ * cannot hold the thread reading it indefinitely.
+ */
+public class DeadlineInputStream extends FilterInputStream {
+	
+	private Socket socket;
+	
+	// System.nanoTime by which reads must complete, while armed
+	private long deadline;
+	private boolean armed = false;
+	
+	public DeadlineInputStream(Socket socket, InputStream in){
+		super(in);
+		this.socket = socket;
+	}
+	
+	/**
+	 * Fails reads which have not completed within the passed time from now.
+	 * @param millis milliseconds allowed
+	 */
+	public void arm(int millis){
+		deadline = System.nanoTime() + millis * 1000000L;
+		armed = true;
+	}
+	
+	/**
+	 * Lets reads block indefinitely again.
+	 */
+	public void disarm() throws IOException {
+		armed = false;
+		socket.setSoTimeout(0);
+	}
+	
+	/**
+	 * Limits the next read to the time left before the deadline.
+	 */
+	private void limit() throws IOException {
+		if(!armed) return;
+		
+		long remaining = (deadline - System.nanoTime()) / 1000000;
+		if(remaining <= 0){
+			throw new SocketTimeoutException("Deadline passed.");
+		}
+		socket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+	}
+	
+	@Override
+	public int read() throws IOException {
+		limit();
+		return in.read();
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		limit();
+		return in.read(b, off, len);
+	}
+	
+	@Override
+	public long skip(long n) throws IOException {
+		limit();
+		return in.skip(n);
+	}
+}
@@ -0,0 +1,123 @@
+package aefs.nodes.master;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Files being put in parts over several connections.  Each part is written
+ * into a copy of the file staged for its transfer, and the part which
+ * completes the transfer publishes the copy.  A transfer fails as a whole if
+ * any of its parts does, so that the stored file is never left holding some
+ * parts of a new file and some of the old one.
+ */
+public class StagedTransfers {
+	
+	private HashMap<String, Transfer> transfers;
+	
+	public StagedTransfers(){
+		transfers = new HashMap<String, Transfer>();
+	}
+	
+	/**
+	 * Registers a part about to be received.  Every part begun must be ended.
+	 * @param name AEFS file name
+	 * @param id id of the transfer
+	 * @param totalSectors number of sectors in the file
+	 * @return false if the transfer has already failed, or is of another size,
+	 * in which case the part must not be received
+	 */
+	public synchronized boolean begin(String name, long id, long totalSectors){
+		String key = name+"-"+id;
+		Transfer transfer = transfers.get(key);
+		if(transfer == null){
+			transfer = new Transfer(totalSectors);
+			transfers.put(key, transfer);
+		}
+		if(transfer.failed || transfer.totalSectors != totalSectors){
+			return false;
+		}
+		
+		transfer.active++;
+		return true;
+	}
+	
+	/**
+	 * Records the end of a part.  A part which did not arrive intact fails its
+	 * whole transfer; the caller must then discard the transfer's staged copy.
+	 * @param name AEFS file name
+	 * @param id id of the transfer
+	 * @param first index of the part's first sector
+	 * @param count number of sectors in the part
+	 * @param intact true if the part was received, checked and written
+	 * @return true if the part completes the transfer, in which case the
+	 * caller must publish the staged copy
+	 * @throws IOException if the transfer has failed, or the part overlaps
+	 * another
+	 */
+	public synchronized boolean end(String name, long id, long first, long count,
+			boolean intact) throws IOException {
+		String key = name+"-"+id;
+		Transfer transfer = transfers.get(key);
+		if(transfer == null){
+			throw new IOException("Transfer of "+name+" was not begun.");
+		}
+		transfer.active--;
+		
+		if(intact && !transfer.failed && !transfer.add(first, count)){
+			intact = false;
+		}
+		if(!intact){
+			transfer.failed = true;
+		}
+		
+		// a failed transfer is forgotten once its last part has ended
+		if(transfer.failed){
+			if(transfer.active == 0){
+				transfers.remove(key);
+			}
+			throw new IOException("Transfer of "+name+" failed.");
+		}
+		
+		if(transfer.received == transfer.totalSectors){
+			transfers.remove(key);
+			return true;
+		}
+		return false;
+	}
+	
+	private static class Transfer{
+		
+		public long totalSectors;
+		public long received = 0;
+		public int active = 0;
+		public boolean failed = false;
+		
+		// ranges received, by first sector
+		private TreeMap<Long, Long> ranges;
+		
+		public Transfer(long totalSectors){
+			this.totalSectors = totalSectors;
+			this.ranges = new TreeMap<Long, Long>();
+		}
+		
+		/**
+		 * Adds a range of sectors received, unless it overlaps another.
+		 */
+		public boolean add(long first, long count){
+			Map.Entry<Long, Long> before = ranges.floorEntry(first);
+			if(before != null && before.getKey() + before.getValue() > first){
+				return false;
+			}
+			Map.Entry<Long, Long> after = ranges.ceilingEntry(first);
+			if(after != null && first + count > after.getKey()){
+				return false;
+			}
+			
+			ranges.put(first, count);
+			received += count;
+			return true;
+		}
+	}
+}
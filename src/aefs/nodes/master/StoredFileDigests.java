@@ -0,0 +1,104 @@
+package aefs.nodes.master;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import aefs.encryption.PayloadMAC;
+import aefs.nodes.storage.StoredObject;
+
+/**
+ * Digests of the sector payloads of stored files.  Payloads sent directly
+ * from disk are authenticated with a MAC over their digest, so caching the
+ * digest lets the master send a file without reading it into memory.
+ * Digests are recorded as files are put and otherwise computed on first
+ * use; a digest is discarded once its file is rewritten.
+ */
+public class StoredFileDigests {
+	
+	// sectors digested at a time
+	private static final int DIGEST_BYTES = 65536;
+	
+	private ConcurrentHashMap<String, Entry> digests;
+	
+	public StoredFileDigests(){
+		digests = new ConcurrentHashMap<String, Entry>();
+	}
+	
+	/**
+	 * Records the digest of a stored file's sector payload.
+	 * @param name AEFS file name
+	 * @param version version of the stored object digested
+	 * @param digest SHA-256 digest of the sector payload
+	 */
+	public void record(String name, long version, byte[] digest){
+		digests.put(name, new Entry(version, digest));
+	}
+	
+	/**
+	 * Discards any digest recorded for a stored file.
+	 * @param name AEFS file name
+	 */
+	public void invalidate(String name){
+		digests.remove(name);
+	}
+	
+	/**
+	 * Returns the digest of a stored file's sector payload.
+	 * @param name AEFS file name
+	 * @param stored stored object
+	 * @throws IOException if the object cannot be read
+	 */
+	public byte[] get(String name, StoredObject stored) throws IOException {
+		Entry entry = digests.get(name);
+		if(entry != null && entry.version == stored.getVersion()){
+			return entry.digest;
+		}
+		
+		entry = new Entry(stored.getVersion(), compute(stored, 0, stored.getSectorCount()));
+		digests.put(name, entry);
+		return entry.digest;
+	}
+	
+	/**
+	 * Computes the digest of a range of a stored object's sectors without 
+	 * caching it.
+	 * @param stored stored object
+	 * @param first index of the first sector
+	 * @param count number of sectors
+	 * @throws IOException if the object cannot be read
+	 */
+	public static byte[] compute(StoredObject stored, long first, long count) 
+			throws IOException {
+		MessageDigest md;
+		try{
+			md = PayloadMAC.newDigest();
+		} catch(NoSuchAlgorithmException e){
+			throw new IOException(e);
+		}
+		
+		int batch = Math.max(1, DIGEST_BYTES / stored.getSectorSize());
+		while(count > 0){
+			int n = (int) Math.min(count, batch);
+			ByteBuffer sectors = stored.getSectors(first, n);
+			md.update(sectors);
+			first += n;
+			count -= n;
+		}
+		
+		return md.digest();
+	}
+	
+	private static class Entry{
+		
+		public long version;
+		public byte[] digest;
+		
+		public Entry(long version, byte[] digest){
+			this.version = version;
+			this.digest = digest;
+		}
+	}
+}
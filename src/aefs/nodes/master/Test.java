@@ -0,0 +1,119 @@
+package aefs.nodes.master;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import aefs.protocols.ControlMessage;
+import aefs.protocols.requests.ControlMessageCodec;
+
+/**
+ * Compares the blocking and selector-based connection monitors.  Clients
+ * send a request of an unknown type, which the master reads, rejects and
+ * closes, while other connections are held open without sending anything;
+ * this exercises accepting, admission, dispatch and the request read
+ * without any cryptographic work.
+ */
+public class Test {
+	
+	private static final int THREADS = 8;
+	private static final int CLIENTS = 16;
+	private static final int REQUESTS = 400;
+	private static final int TIMEOUT = 1000;
+	
+	public static void main(String[] args) throws Exception{
+		PrintStream console = System.out;
+		
+		// the master logs every connection
+		System.setOut(new PrintStream(new OutputStream(){
+			public void write(int b){ }
+		}));
+		run(false, 0); // warm up
+		
+		for(boolean selector : new boolean[]{ false, true }){
+			for(int idle : new int[]{ 0, THREADS / 2, THREADS }){
+				String result = run(selector, idle);
+				console.println((selector ? "selector" : "blocking")+" monitor, "+idle+
+						" idle connections: "+result);
+			}
+		}
+		System.exit(0);
+	}
+	
+	private static String run(boolean selector, int idle) throws Exception{
+		ServerSocket probe = new ServerSocket(0);
+		final int port = probe.getLocalPort();
+		probe.close();
+		
+		AEFSMasterNode master = new AEFSMasterNode(THREADS, port);
+		master.setUseSelector(selector);
+		master.serveForever();
+		Thread.sleep(200);
+		
+		List<Socket> idleSockets = new ArrayList<Socket>();
+		for(int i = 0; i < idle; i++){
+			idleSockets.add(new Socket("localhost", port));
+		}
+		Thread.sleep(200);
+		
+		final long[] latencies = new long[REQUESTS];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger timeouts = new AtomicInteger();
+		
+		ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+		List<Future<?>> done = new ArrayList<Future<?>>();
+		long start = System.nanoTime();
+		for(int c = 0; c < CLIENTS; c++){
+			done.add(clients.submit(new Runnable(){
+				public void run(){
+					ControlMessage message = new ControlMessage();
+					message.registerParameter("client-request-type", "none");
+					ControlMessageCodec codec = new ControlMessageCodec();
+					byte[] discard = new byte[256];
+					
+					int i;
+					while((i = next.getAndIncrement()) < REQUESTS){
+						long t = System.nanoTime();
+						try{
+							Socket s = new Socket("localhost", port);
+							s.setSoTimeout(TIMEOUT);
+							codec.write(message, s.getOutputStream());
+							InputStream in = s.getInputStream();
+							while(in.read(discard) >= 0);
+							s.close();
+						} catch(SocketTimeoutException e){
+							timeouts.incrementAndGet();
+						} catch(Exception e){ }
+						latencies[i] = System.nanoTime() - t;
+					}
+				}
+			}));
+		}
+		for(Future<?> f : done){
+			f.get();
+		}
+		long elapsed = System.nanoTime() - start;
+		clients.shutdown();
+		
+		for(Socket s : idleSockets){
+			s.close();
+		}
+		master.stop();
+		Thread.sleep(200);
+		
+		Arrays.sort(latencies);
+		return String.format("%.0f requests/s, p50 %.2fms, p99 %.2fms, %d timed out",
+				REQUESTS / (elapsed / 1e9), latencies[REQUESTS / 2] / 1e6, 
+				latencies[REQUESTS * 99 / 100] / 1e6, timeouts.get());
+	}
+}
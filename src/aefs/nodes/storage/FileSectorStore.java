@@ -0,0 +1,487 @@
+package aefs.nodes.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores each object in a file of its own, named for the object, holding the
+ * advertised policy and encrypted key followed by the object's sectors:
+ *   [int -sectorSize][int policyLen][policy][int keyLen][key][sectors]
+ * Files written before sector sizes were recorded begin at the policy and
+ * hold 4096-byte sectors.  Sectors are read and written with positional reads
+ * and writes.
+ *
+ * An object written in full, or staged for a transfer in parts, is written to
+ * a file aside and renamed over the object's file once complete, so that
+ * readers of the old object (including mappings of it) are unaffected and no
+ * reader sees a partly written object.  If the store is durable, the new file
+ * is forced before it is renamed and the directory after, so that a crash
+ * leaves either the old object or the whole new one.
+ */
+public class FileSectorStore extends SectorStore {
+	
+	protected File directory;
+	
+	// versions of objects written since the store was opened
+	private ConcurrentHashMap<String, Long> versions;
+	private AtomicLong generation;
+	
+	// opened to force the directory's entries when the store is durable
+	private FileChannel directoryChannel;
+	
+	public FileSectorStore(String directory){
+		this.directory = new File(directory);
+		this.versions = new ConcurrentHashMap<String, Long>();
+		this.generation = new AtomicLong();
+		
+		// replacements and staged copies left aside by a crash were never
+		// acknowledged
+		File[] files = this.directory.listFiles();
+		if(files != null){
+			for(File file : files){
+				if(file.getName().indexOf('-') >= 0 && file.getName().endsWith(".tmp")){
+					file.delete();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the file holding the named object.
+	 */
+	protected File fileFor(String name){
+		return new File(directory, name);
+	}
+	
+	/**
+	 * Returns the file holding the copy of an object staged for a transfer.
+	 * Names never contain '-', so the file cannot be taken for an object.
+	 */
+	protected File stagedFileFor(String name, long transfer){
+		return new File(directory, name+"-t"+Long.toHexString(transfer)+".tmp");
+	}
+	
+	/**
+	 * Waits until the entries of the store's directory are on disk, so that
+	 * files created in or renamed into it survive a crash.  Concurrent writers
+	 * share a force of the directory through the group commit.
+	 */
+	protected void forceDirectory() throws IOException {
+		FileChannel channel;
+		synchronized(this){
+			if(directoryChannel == null){
+				directoryChannel = FileChannel.open(directory.toPath(), 
+						StandardOpenOption.READ);
+			}
+			channel = directoryChannel;
+		}
+		groupCommit.force(channel);
+	}
+	
+	/**
+	 * Returns the current version of the named object.
+	 */
+	protected long versionOf(String name){
+		Long version = versions.get(name);
+		if(version == null){
+			Long assigned = generation.incrementAndGet();
+			version = versions.putIfAbsent(name, assigned);
+			if(version == null) version = assigned;
+		}
+		return version;
+	}
+	
+	@Override
+	public StoredObject open(String name) throws IOException {
+		File stored = fileFor(name);
+		if(! stored.exists()){
+			return null;
+		}
+		
+		long version = versionOf(name);
+		RandomAccessFile file = new RandomAccessFile(stored, "r");
+		try{
+			return new FileStoredObject(file, version);
+		} catch(IOException e){
+			file.close();
+			throw e;
+		}
+	}
+	
+	@Override
+	public StoredObjectWriter create(String name, byte[] policy, byte[] encryptedKey,
+			long totalSectors, int sectorSize) throws IOException {
+		// Names never contain '-', so the file cannot be taken for an object.
+		File temp = new File(directory, name+"-"+generation.incrementAndGet()+".tmp");
+		RandomAccessFile file = newFile(temp, policy, encryptedKey, totalSectors, sectorSize);
+		
+		return new FileObjectWriter(name, file, 12 + policy.length + encryptedKey.length,
+				sectorSize, temp, false);
+	}
+	
+	@Override
+	public synchronized StoredObjectWriter stage(String name, long transfer, byte[] policy,
+			byte[] encryptedKey, long totalSectors, int sectorSize) throws IOException {
+		File staged = stagedFileFor(name, transfer);
+		if(! staged.exists()){
+			RandomAccessFile file = newFile(staged, policy, encryptedKey, totalSectors,
+					sectorSize);
+			return new FileObjectWriter(name, file, 12 + policy.length + encryptedKey.length,
+					sectorSize, null, true);
+		}
+		
+		// every part of a transfer carries the same header
+		RandomAccessFile file = new RandomAccessFile(staged, "rw");
+		try{
+			Header header = new Header(file);
+			if(header.sectorSize != sectorSize || !Arrays.equals(header.policy, policy) ||
+					!Arrays.equals(header.encryptedKey, encryptedKey) ||
+					file.length() != header.payloadOffset + totalSectors * sectorSize){
+				throw new IOException("Part of "+name+" does not match its transfer.");
+			}
+			return new FileObjectWriter(name, file, header.payloadOffset, sectorSize, null,
+					true);
+		} catch(IOException e){
+			file.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Creates a file holding an object's header and room for its sectors.
+	 */
+	private RandomAccessFile newFile(File f, byte[] policy, byte[] encryptedKey,
+			long totalSectors, int sectorSize) throws IOException {
+		// make output dir if it doesn't exist
+		if(! directory.exists()){
+			directory.mkdir();
+		}
+		
+		long payloadOffset = 12 + policy.length + encryptedKey.length;
+		RandomAccessFile file = new RandomAccessFile(f, "rw");
+		try{
+			ByteBuffer header = ByteBuffer.allocate((int) payloadOffset);
+			header.putInt(-sectorSize);
+			header.putInt(policy.length).put(policy);
+			header.putInt(encryptedKey.length).put(encryptedKey);
+			header.flip();
+			writeFully(file.getChannel(), header, 0);
+			
+			file.setLength(payloadOffset + totalSectors * sectorSize);
+		} catch(IOException e){
+			file.close();
+			f.delete();
+			throw e;
+		}
+		return file;
+	}
+	
+	@Override
+	public long publish(String name, long transfer) throws IOException {
+		File staged = stagedFileFor(name, transfer);
+		if(! staged.exists()){
+			throw new IOException("No copy of "+name+" staged for transfer.");
+		}
+		return replace(name, staged);
+	}
+	
+	@Override
+	public void discard(String name, long transfer){
+		stagedFileFor(name, transfer).delete();
+	}
+	
+	/**
+	 * Renames a file written aside over the named object's file.  The file's
+	 * contents must already be on disk if the store is durable.
+	 * @return the new version of the object
+	 */
+	private long replace(String name, File temp) throws IOException {
+		Files.move(temp.toPath(), fileFor(name).toPath(), StandardCopyOption.ATOMIC_MOVE);
+		if(groupCommit != null){
+			forceDirectory();
+		}
+		
+		long version = generation.incrementAndGet();
+		versions.put(name, version);
+		return version;
+	}
+	
+	@Override
+	public synchronized StoredObjectWriter update(String name, long version, 
+			long totalSectors) throws IOException {
+		File stored = fileFor(name);
+		if(! stored.exists() || versionOf(name) != version){
+			return null;
+		}
+		
+		// Files only grow, so mappings of the file remain valid.
+		RandomAccessFile file = new RandomAccessFile(stored, "rw");
+		Header header;
+		try{
+			header = new Header(file);
+			long length = header.payloadOffset + totalSectors * header.sectorSize;
+			if(file.length() < length){
+				file.setLength(length);
+			}
+		} catch(IOException e){
+			file.close();
+			throw e;
+		}
+		
+		return new FileObjectWriter(name, file, header.payloadOffset, header.sectorSize,
+				null, false);
+	}
+	
+	@Override
+	public synchronized void close(){
+		if(directoryChannel != null){
+			try{
+				directoryChannel.close();
+			} catch(IOException e){ }
+			directoryChannel = null;
+		}
+	}
+	
+	/**
+	 * The header of an object's file.
+	 */
+	protected static class Header{
+		
+		public int sectorSize;
+		public byte[] policy;
+		public byte[] encryptedKey;
+		public long payloadOffset;
+		
+		/**
+		 * Reads the header from the start of a file.
+		 */
+		public Header(RandomAccessFile file) throws IOException {
+			file.seek(0);
+			int first = file.readInt();
+			int policyLength = first;
+			sectorSize = LEGACY_SECTOR_SIZE;
+			if(first < 0){
+				sectorSize = -first;
+				policyLength = file.readInt();
+			}
+			
+			policy = new byte[policyLength];
+			file.readFully(policy);
+			encryptedKey = new byte[file.readInt()];
+			file.readFully(encryptedKey);
+			
+			payloadOffset = file.getFilePointer();
+		}
+	}
+	
+	/**
+	 * Writes the whole of a buffer to a channel at the passed position.
+	 */
+	protected static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		while(buffer.hasRemaining()){
+			position += channel.write(buffer, position);
+		}
+	}
+	
+	/**
+	 * Reads a buffer's remaining bytes from a channel at the passed position.
+	 */
+	protected static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		while(buffer.hasRemaining()){
+			int n = channel.read(buffer, position);
+			if(n < 0){
+				throw new IOException("Stored object truncated.");
+			}
+			position += n;
+		}
+	}
+	
+	/**
+	 * An object read from its file.
+	 */
+	protected static class FileStoredObject extends StoredObject {
+		
+		protected RandomAccessFile file;
+		protected FileChannel channel;
+		protected byte[] policy;
+		protected byte[] encryptedKey;
+		protected long payloadOffset;
+		protected int sectorSize;
+		protected long sectorCount;
+		protected long version;
+		
+		public FileStoredObject(RandomAccessFile file, long version) throws IOException {
+			this.file = file;
+			this.channel = file.getChannel();
+			this.version = version;
+			
+			Header header = new Header(file);
+			policy = header.policy;
+			encryptedKey = header.encryptedKey;
+			payloadOffset = header.payloadOffset;
+			sectorSize = header.sectorSize;
+			sectorCount = (file.length() - payloadOffset) / sectorSize;
+		}
+		
+		@Override
+		public byte[] getPolicy(){
+			return policy;
+		}
+		
+		@Override
+		public byte[] getEncryptedKey(){
+			return encryptedKey;
+		}
+		
+		@Override
+		public long getSectorCount(){
+			return sectorCount;
+		}
+		
+		@Override
+		public int getSectorSize(){
+			return sectorSize;
+		}
+		
+		@Override
+		public long getVersion(){
+			return version;
+		}
+		
+		/**
+		 * Returns the offset of the first sector within the file.
+		 */
+		public long getPayloadOffset(){
+			return payloadOffset;
+		}
+		
+		@Override
+		public void readSectors(long first, byte[] into, int count) throws IOException {
+			readFully(channel, ByteBuffer.wrap(into, 0, count * sectorSize), 
+					payloadOffset + first * sectorSize);
+		}
+		
+		@Override
+		public void transferSectors(long first, long count, WritableByteChannel target)
+				throws IOException {
+			long position = payloadOffset + first * sectorSize;
+			long end = position + count * sectorSize;
+			while(position < end){
+				long sent = channel.transferTo(position, end - position, target);
+				if(sent <= 0 && position >= channel.size()){
+					throw new IOException("Stored object truncated during transfer.");
+				}
+				position += sent;
+			}
+		}
+		
+		@Override
+		public void close(){
+			try{
+				file.close();
+			} catch(IOException e){ }
+		}
+	}
+	
+	/**
+	 * Writes sectors in place in an object's file, in a file written aside
+	 * and renamed over the object's once closed, or in a staged copy.
+	 */
+	protected class FileObjectWriter extends StoredObjectWriter {
+		
+		private String name;
+		private RandomAccessFile file;
+		private FileChannel channel;
+		private long payloadOffset;
+		private int sectorSize;
+		private ByteBuffer sectorBuffer;
+		private long version = -1;
+		
+		// file renamed over the object's on close, or null if writing in place
+		private File temp;
+		// true if writing a staged copy, which closing leaves unpublished
+		private boolean staged;
+		
+		public FileObjectWriter(String name, RandomAccessFile file, long payloadOffset,
+				int sectorSize, File temp, boolean staged){
+			this.name = name;
+			this.file = file;
+			this.channel = file.getChannel();
+			this.payloadOffset = payloadOffset;
+			this.sectorSize = sectorSize;
+			this.temp = temp;
+			this.staged = staged;
+		}
+		
+		@Override
+		public void writeSector(long index, byte[] sector) throws IOException {
+			if(sectorBuffer == null || sectorBuffer.array() != sector){
+				sectorBuffer = ByteBuffer.wrap(sector);
+			}
+			sectorBuffer.clear();
+			if(sector.length != sectorSize){
+				throw new IOException("Sector of "+sector.length+" bytes written to "+name+
+						", which has "+sectorSize+"-byte sectors.");
+			}
+			writeFully(channel, sectorBuffer, payloadOffset + index * sectorSize);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			boolean written = false;
+			try{
+				if(groupCommit != null){
+					groupCommit.force(channel);
+				}
+				written = true;
+			} finally{
+				file.close();
+				if(!written && temp != null) temp.delete();
+			}
+			
+			if(staged){
+				return;
+			}
+			if(temp != null){
+				version = replace(name, temp);
+				return;
+			}
+			
+			version = generation.incrementAndGet();
+			versions.put(name, version);
+		}
+		
+		@Override
+		public void abort(){
+			if(temp == null && !staged){
+				super.abort();
+				return;
+			}
+			
+			// the object's file was never touched; a staged copy is discarded
+			// with its transfer
+			try{
+				file.close();
+			} catch(IOException e){ }
+			if(temp != null) temp.delete();
+		}
+		
+		@Override
+		public long getVersion(){
+			return version;
+		}
+	}
+
+}
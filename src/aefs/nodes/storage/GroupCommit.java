@@ -0,0 +1,196 @@
+package aefs.nodes.storage;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import misc.logging.SimpleLogger;
+
+/**
+ * Makes writes durable in batches.  Writers waiting for their writes to reach
+ * disk queue a flush of their channel; a single flusher thread takes every
+ * flush queued at once and forces each distinct channel among them once, so
+ * that concurrent writers to a shared channel pay for a single force.
+ */
+public class GroupCommit implements Runnable {
+	
+	private LinkedBlockingQueue<Flush> queue;
+	
+	// time to wait for more flushes to join a batch
+	private long windowMicros;
+	
+	private volatile boolean stopped = false;
+	private Thread flusher;
+	
+	private long batches = 0;
+	private long flushes = 0;
+	private long forces = 0;
+	
+	/**
+	 * Creates a group commit and starts its flusher.
+	 * @param windowMicros microseconds to wait for more flushes to join a batch
+	 * once one is queued; 0 to batch only the flushes already queued
+	 */
+	public GroupCommit(long windowMicros){
+		this.queue = new LinkedBlockingQueue<Flush>();
+		this.windowMicros = windowMicros;
+		
+		flusher = new Thread(this);
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+	
+	/**
+	 * Waits until all writes made to a channel before the call are on disk.
+	 * @param channel channel to flush
+	 * @throws IOException if the channel could not be forced
+	 */
+	public void force(FileChannel channel) throws IOException {
+		if(stopped){
+			channel.force(false);
+			return;
+		}
+		
+		Flush flush = new Flush(channel);
+		queue.add(flush);
+		while(!flush.await(1000)){
+			// the flusher stopped without taking this flush
+			if(!flusher.isAlive() && queue.remove(flush)){
+				channel.force(false);
+				return;
+			}
+		}
+	}
+	
+	@Override
+	public void run(){
+		List<Flush> batch = new ArrayList<Flush>();
+		IdentityHashMap<FileChannel, IOException> forced =
+				new IdentityHashMap<FileChannel, IOException>();
+		
+		while(!stopped){
+			try{
+				Flush first = queue.poll(1, TimeUnit.SECONDS);
+				if(first == null) continue;
+				batch.add(first);
+				
+				if(windowMicros > 0){
+					TimeUnit.MICROSECONDS.sleep(windowMicros);
+				}
+			} catch(InterruptedException e){
+				stopped = true;
+			}
+			queue.drainTo(batch);
+			
+			// force each channel once for the whole batch
+			for(Flush flush : batch){
+				if(forced.containsKey(flush.channel)) continue;
+				
+				IOException error = null;
+				try{
+					flush.channel.force(false);
+				} catch(IOException e){
+					SimpleLogger.error("Unable to flush stored data: "+e.getMessage());
+					error = e;
+				}
+				forced.put(flush.channel, error);
+			}
+			
+			synchronized(this){
+				++batches;
+				flushes += batch.size();
+				forces += forced.size();
+			}
+			
+			for(Flush flush : batch){
+				flush.complete(forced.get(flush.channel));
+			}
+			batch.clear();
+			forced.clear();
+		}
+		
+		// serve anything left behind directly
+		Flush flush;
+		while((flush = queue.poll()) != null){
+			try{
+				flush.channel.force(false);
+				flush.complete(null);
+			} catch(IOException e){
+				flush.complete(e);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of batches flushed.
+	 */
+	public synchronized long getBatches(){
+		return batches;
+	}
+	
+	/**
+	 * Returns the number of flushes requested and served.
+	 */
+	public synchronized long getFlushes(){
+		return flushes;
+	}
+	
+	/**
+	 * Returns the number of channel forces issued.
+	 */
+	public synchronized long getForces(){
+		return forces;
+	}
+	
+	/**
+	 * Stops the flusher once the flushes already queued have been served.
+	 */
+	public void stop(){
+		stopped = true;
+	}
+	
+	/**
+	 * A writer waiting on a flush of its channel.
+	 */
+	private static class Flush{
+		
+		public FileChannel channel;
+		private boolean done = false;
+		private IOException error;
+		
+		public Flush(FileChannel channel){
+			this.channel = channel;
+		}
+		
+		public synchronized void complete(IOException error){
+			this.error = error;
+			this.done = true;
+			notifyAll();
+		}
+		
+		/**
+		 * Waits for the flush to complete.
+		 * @param millis longest time to wait
+		 * @return true if the flush completed
+		 * @throws IOException if the flush failed
+		 */
+		public synchronized boolean await(long millis) throws IOException {
+			if(!done){
+				try{
+					wait(millis);
+				} catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}
+			}
+			
+			if(error != null){
+				throw new IOException("Unable to make put durable.", error);
+			}
+			return done;
+		}
+	}
+}
@@ -0,0 +1,883 @@
+package aefs.nodes.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import misc.logging.SimpleLogger;
+
+/**
+ * Stores objects as records appended to large segment files, located by an
+ * in-memory index from object name to record.  Putting an object appends a
+ * new record and points the index at it once written, or, for an object put
+ * in parts, once the transfer's staged record is published; the old record
+ * becomes dead space, which is reclaimed by a background compactor copying the live
+ * records out of mostly dead segments and deleting them.
+ *
+ * A record is:
+ *   [int magic][int state][long sequence][long totalSectors][int sectorSize]
+ *   [int nameLen][name][int policyLen][policy][int keyLen][key]
+ *   [sectors]
+ * Records written before sector sizes were recorded carry the legacy magic,
+ * no sector size, and 4096-byte sectors.  A record's state and sequence
+ * number are written when it is committed; the index is rebuilt by scanning
+ * the segments when the store is opened, keeping the committed record of each
+ * object with the highest sequence number.
+ */
+public class LogSectorStore extends SectorStore {
+	
+	public static final int RECORD_MAGIC = 0x41454654;
+	public static final int LEGACY_RECORD_MAGIC = 0x41454653;
+	
+	public static final int STATE_PENDING = 0;
+	public static final int STATE_COMMITTED = 1;
+	
+	// size after which a new segment is started
+	public static long SEGMENT_SIZE = 256L * 1024 * 1024;
+	
+	// segments with less than this fraction of live bytes are compacted
+	public static double COMPACTION_THRESHOLD = 0.5;
+	
+	public static long COMPACTION_INTERVAL = 30000;
+	
+	private static final int COPY_BUFFER_SIZE = 256 * 1024;
+	
+	private static final Pattern SEGMENT_NAME = Pattern.compile("^segment-(\\d+)\\.log$");
+	
+	private File directory;
+	
+	private HashMap<String, Location> index;
+	
+	// pending records staged for transfers, by name and transfer id
+	private HashMap<String, Location> staged;
+	private TreeMap<Long, Segment> segments;
+	private Segment active;
+	
+	// last sequence number committed
+	private long generation = 0;
+	
+	private Object compactionLock = new Object();
+	
+	private Compactor compactor;
+	
+	/**
+	 * Opens a log store, rebuilding its index from the segments in the passed
+	 * directory, and starts its compactor.
+	 * @param directory directory holding the segments
+	 * @throws IOException if the segments cannot be read
+	 */
+	public LogSectorStore(String directory) throws IOException {
+		this.directory = new File(directory);
+		this.index = new HashMap<String, Location>();
+		this.staged = new HashMap<String, Location>();
+		this.segments = new TreeMap<Long, Segment>();
+		
+		// make output dir if it doesn't exist
+		if(! this.directory.exists()){
+			this.directory.mkdir();
+		}
+		
+		File[] files = this.directory.listFiles();
+		if(files != null){
+			for(File f : files){
+				Matcher m = SEGMENT_NAME.matcher(f.getName());
+				if(m.matches()){
+					long id = Long.parseLong(m.group(1));
+					segments.put(id, new Segment(id, f));
+				}
+			}
+		}
+		
+		for(Segment segment : segments.values()){
+			recover(segment);
+		}
+		
+		if(segments.isEmpty()){
+			active = newSegment();
+		} else{
+			active = segments.lastEntry().getValue();
+		}
+		
+		SimpleLogger.info("Log store opened with "+index.size()+" objects in "+
+				segments.size()+" segments.");
+		
+		compactor = new Compactor();
+		Thread t = new Thread(compactor);
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * Indexes the committed records of a segment, discarding anything after
+	 * the last complete record.
+	 */
+	private void recover(Segment segment) throws IOException {
+		long size = segment.channel.size();
+		long position = 0;
+		
+		// every record is longer than the fixed fields of a current record
+		ByteBuffer fixed = ByteBuffer.allocate(28);
+		while(position + 28 <= size){
+			fixed.clear();
+			readFully(segment.channel, fixed, position);
+			fixed.flip();
+			int magic = fixed.getInt();
+			if(magic != RECORD_MAGIC && magic != LEGACY_RECORD_MAGIC){
+				break;
+			}
+			int state = fixed.getInt();
+			long sequence = fixed.getLong();
+			long totalSectors = fixed.getLong();
+			
+			int sectorSize = LEGACY_SECTOR_SIZE;
+			long fieldsStart = position + 24;
+			if(magic == RECORD_MAGIC){
+				sectorSize = fixed.getInt();
+				fieldsStart += 4;
+				if(sectorSize <= 0){
+					break;
+				}
+			}
+			
+			ByteBuffer lengths = ByteBuffer.allocate(4);
+			byte[] nameBytes = readField(segment.channel, lengths, fieldsStart);
+			String name = new String(nameBytes);
+			long fieldsEnd = fieldsStart + 4 + nameBytes.length;
+			byte[] policy = readField(segment.channel, lengths, fieldsEnd);
+			fieldsEnd += 4 + policy.length;
+			byte[] encryptedKey = readField(segment.channel, lengths, fieldsEnd);
+			fieldsEnd += 4 + encryptedKey.length;
+			
+			long length = (fieldsEnd - position) + totalSectors * sectorSize;
+			if(totalSectors < 0 || position + length > size){
+				break;
+			}
+			
+			Location current = index.get(name);
+			if(state == STATE_COMMITTED && (current == null || current.version < sequence)){
+				publish(new Location(name, segment, position, length, fieldsEnd, totalSectors,
+						sectorSize, policy, encryptedKey, sequence));
+			}
+			generation = Math.max(generation, sequence);
+			position += length;
+		}
+		
+		if(position < size){
+			SimpleLogger.error("Discarding "+(size - position)+" bytes of incomplete records "+
+					"from "+segment.file.getName()+".");
+			segment.channel.truncate(position);
+		}
+		segment.size = position;
+	}
+	
+	private static byte[] readField(FileChannel channel, ByteBuffer length, long position)
+			throws IOException {
+		length.clear();
+		readFully(channel, length, position);
+		length.flip();
+		int n = length.getInt();
+		if(n < 0 || position + 4 + n > channel.size()){
+			throw new IOException("Corrupt record at "+position+".");
+		}
+		
+		byte[] field = new byte[n];
+		readFully(channel, ByteBuffer.wrap(field), position + 4);
+		return field;
+	}
+	
+	/**
+	 * Starts a new active segment.  Must be called with the store locked.
+	 */
+	private Segment newSegment() throws IOException {
+		long id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		Segment segment = new Segment(id, new File(directory,
+				String.format("segment-%08d.log", id)));
+		segments.put(id, segment);
+		return segment;
+	}
+	
+	/**
+	 * Points the index at a committed record, marking any record it replaces
+	 * as dead.  Must be called with the store locked.
+	 */
+	private void publish(Location location){
+		Location old = index.put(location.name, location);
+		location.segment.liveBytes += location.length;
+		if(old != null){
+			old.segment.liveBytes -= old.length;
+		}
+	}
+	
+	/**
+	 * Commits a record, giving it the next sequence number.  Must be called
+	 * with the store locked.
+	 */
+	private void commit(Location location) throws IOException {
+		long sequence = generation + 1;
+		
+		ByteBuffer state = ByteBuffer.allocate(12);
+		state.putInt(STATE_COMMITTED).putLong(sequence).flip();
+		writeFully(location.segment.channel, state, location.offset + 4);
+		
+		generation = sequence;
+		location.version = sequence;
+	}
+	
+	/**
+	 * Reserves space for a pending record at the end of the active segment
+	 * and writes its header.  Must be called with the store locked.
+	 */
+	private Location reserve(String name, byte[] policy, byte[] encryptedKey,
+			long totalSectors, int sectorSize) throws IOException {
+		byte[] nameBytes = name.getBytes();
+		int headerLength = 40 + nameBytes.length + policy.length + encryptedKey.length;
+		long length = headerLength + totalSectors * sectorSize;
+		
+		if(active.size > 0 && active.size + length > SEGMENT_SIZE){
+			active = newSegment();
+		}
+		
+		long position = active.size;
+		active.size += length;
+		active.raf.setLength(active.size);
+		active.pending++;
+		
+		ByteBuffer header = ByteBuffer.allocate(headerLength);
+		header.putInt(RECORD_MAGIC).putInt(STATE_PENDING).putLong(0).putLong(totalSectors);
+		header.putInt(sectorSize);
+		header.putInt(nameBytes.length).put(nameBytes);
+		header.putInt(policy.length).put(policy);
+		header.putInt(encryptedKey.length).put(encryptedKey);
+		header.flip();
+		writeFully(active.channel, header, position);
+		
+		return new Location(name, active, position, length, position + headerLength,
+				totalSectors, sectorSize, policy, encryptedKey, 0);
+	}
+	
+	@Override
+	public StoredObject open(String name) throws IOException {
+		Location location;
+		synchronized(this){
+			location = index.get(name);
+			if(location == null){
+				return null;
+			}
+			location.segment.refs++;
+		}
+		return new LogStoredObject(location);
+	}
+	
+	@Override
+	public synchronized StoredObjectWriter create(String name, byte[] policy,
+			byte[] encryptedKey, long totalSectors, int sectorSize) throws IOException {
+		Location location = reserve(name, policy, encryptedKey, totalSectors, sectorSize);
+		location.writers++;
+		location.segment.refs++;
+		return new LogObjectWriter(location, false);
+	}
+	
+	@Override
+	public synchronized StoredObjectWriter stage(String name, long transfer, byte[] policy,
+			byte[] encryptedKey, long totalSectors, int sectorSize) throws IOException {
+		// Writers of parts of the same transfer write into one pending record,
+		// which is only committed once published.
+		String key = name+"-"+transfer;
+		Location location = staged.get(key);
+		if(location == null){
+			location = reserve(name, policy, encryptedKey, totalSectors, sectorSize);
+			staged.put(key, location);
+		} else if(location.totalSectors != totalSectors || location.sectorSize != sectorSize ||
+				!Arrays.equals(location.policy, policy) ||
+				!Arrays.equals(location.encryptedKey, encryptedKey)){
+			throw new IOException("Part of "+name+" does not match its transfer.");
+		}
+		
+		location.writers++;
+		location.segment.refs++;
+		LogObjectWriter writer = new LogObjectWriter(location, false);
+		writer.staged = true;
+		return writer;
+	}
+	
+	@Override
+	public long publish(String name, long transfer) throws IOException {
+		Location location;
+		synchronized(this){
+			location = staged.get(name+"-"+transfer);
+			if(location == null){
+				throw new IOException("No copy of "+name+" staged for transfer.");
+			}
+			if(location.writers > 0){
+				throw new IOException("Staged copy of "+name+" is still being written.");
+			}
+			
+			staged.remove(name+"-"+transfer);
+			location.segment.pending--;
+			commit(location);
+			publish(location);
+		}
+		
+		// the parts' sectors were forced as each was closed
+		if(groupCommit != null){
+			groupCommit.force(location.segment.channel);
+		}
+		return location.version;
+	}
+	
+	@Override
+	public synchronized void discard(String name, long transfer){
+		Location location = staged.remove(name+"-"+transfer);
+		if(location != null){
+			location.segment.pending--;
+		}
+	}
+	
+	@Override
+	public StoredObjectWriter update(String name, long version, long totalSectors) 
+			throws IOException {
+		Location existing;
+		Location grown;
+		synchronized(this){
+			existing = index.get(name);
+			if(existing == null || existing.version != version){
+				return null;
+			}
+			if(existing.growing){
+				throw new IOException("Stored object "+name+" is being extended.");
+			}
+			
+			if(totalSectors <= existing.totalSectors){
+				existing.writers++;
+				existing.segment.refs++;
+				return new LogObjectWriter(existing, true);
+			}
+			
+			// Records cannot grow in place, so the object's sectors are carried
+			// forward into a larger record, which is indexed once written.  Other
+			// writers are kept off the old record meanwhile, lest their writes be
+			// lost.
+			if(existing.writers > 0){
+				throw new IOException("Stored object "+name+" is being written.");
+			}
+			existing.growing = true;
+			existing.writers++;
+			existing.segment.refs++;
+			
+			grown = reserve(name, existing.policy, existing.encryptedKey, totalSectors,
+					existing.sectorSize);
+			grown.writers++;
+			grown.segment.refs++;
+		}
+		
+		LogObjectWriter writer = new LogObjectWriter(grown, false);
+		writer.source = existing;
+		try{
+			copySectors(existing, grown, existing.totalSectors);
+		} catch(IOException e){
+			writer.abort();
+			throw e;
+		}
+		return writer;
+	}
+	
+	/**
+	 * Copies the leading sectors of one record into another.
+	 */
+	private static void copySectors(Location from, Location to, long count) 
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+		long position = 0;
+		long end = count * from.sectorSize;
+		while(position < end){
+			buffer.clear();
+			if(end - position < buffer.capacity()){
+				buffer.limit((int) (end - position));
+			}
+			readFully(from.segment.channel, buffer, from.payloadOffset + position);
+			buffer.flip();
+			writeFully(to.segment.channel, buffer, to.payloadOffset + position);
+			position += buffer.limit();
+		}
+	}
+	
+	/**
+	 * Releases a reference to a segment, deleting it if it has been retired.
+	 */
+	private synchronized void release(Segment segment){
+		segment.refs--;
+		if(segment.retired && segment.refs == 0){
+			segment.delete();
+		}
+	}
+	
+	/**
+	 * Copies the live records of mostly dead segments to the active segment
+	 * and deletes the segments once they hold no live records.
+	 * @return number of bytes reclaimed
+	 */
+	public long compact(){
+		synchronized(compactionLock){
+			return compactSegments();
+		}
+	}
+	
+	private long compactSegments(){
+		List<Segment> candidates = new ArrayList<Segment>();
+		synchronized(this){
+			for(Segment segment : segments.values()){
+				if(segment != active && !segment.retired && segment.pending == 0 &&
+						segment.liveBytes <= segment.size * COMPACTION_THRESHOLD){
+					candidates.add(segment);
+				}
+			}
+		}
+		
+		long reclaimed = 0;
+		for(Segment segment : candidates){
+			try{
+				reclaimed += compact(segment);
+			} catch(IOException e){
+				SimpleLogger.error("Unable to compact "+segment.file.getName()+": "+
+						e.getMessage());
+			}
+		}
+		return reclaimed;
+	}
+	
+	private long compact(Segment segment) throws IOException {
+		List<Location> live = new ArrayList<Location>();
+		synchronized(this){
+			for(Location location : index.values()){
+				if(location.segment == segment){
+					live.add(location);
+				}
+			}
+		}
+		
+		List<FileChannel> targets = new ArrayList<FileChannel>();
+		for(Location location : live){
+			Location copy;
+			long writes;
+			synchronized(this){
+				if(index.get(location.name) != location || location.writers > 0){
+					continue;
+				}
+				writes = location.writes;
+				copy = reserve(location.name, location.policy, location.encryptedKey,
+						location.totalSectors, location.sectorSize);
+				copy.segment.refs++;
+				segment.refs++;
+			}
+			
+			try{
+				// copy the sectors outside of the lock
+				copySectors(location, copy, location.totalSectors);
+				copy.segment.channel.force(false);
+				
+				synchronized(this){
+					// abandon the copy if the record was written or replaced meanwhile
+					if(index.get(location.name) == location && location.writers == 0 &&
+							location.writes == writes){
+						commit(copy);
+						publish(copy);
+						// The copy holds the same contents, so keeps the version by
+						// which readers and updates know them.
+						copy.version = location.version;
+						if(!targets.contains(copy.segment.channel)){
+							targets.add(copy.segment.channel);
+						}
+					}
+				}
+			} finally{
+				synchronized(this){
+					copy.segment.pending--;
+				}
+				release(copy.segment);
+				release(segment);
+			}
+		}
+		
+		// the copies' commits must be on disk before the originals are deleted
+		for(FileChannel channel : targets){
+			channel.force(false);
+		}
+		
+		synchronized(this){
+			if(segment.liveBytes > 0 || segment.pending > 0){
+				return 0;
+			}
+			
+			segments.remove(segment.id);
+			segment.retired = true;
+			if(segment.refs == 0){
+				segment.delete();
+			}
+			return segment.size;
+		}
+	}
+	
+	/**
+	 * Returns the number of objects in the store.
+	 */
+	public synchronized int size(){
+		return index.size();
+	}
+	
+	/**
+	 * Returns the number of segments held by the store.
+	 */
+	public synchronized int getSegmentCount(){
+		return segments.size();
+	}
+	
+	@Override
+	public void close(){
+		compactor.stop();
+		
+		synchronized(this){
+			for(Segment segment : segments.values()){
+				try{
+					segment.channel.force(true);
+				} catch(IOException e){ }
+			}
+		}
+	}
+	
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		while(buffer.hasRemaining()){
+			position += channel.write(buffer, position);
+		}
+	}
+	
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		while(buffer.hasRemaining()){
+			int n = channel.read(buffer, position);
+			if(n < 0){
+				throw new IOException("Segment truncated.");
+			}
+			position += n;
+		}
+	}
+	
+	/**
+	 * A segment file.  Segments are only deleted once retired by the compactor
+	 * and no longer read or written.
+	 */
+	private static class Segment{
+		
+		public long id;
+		public File file;
+		public RandomAccessFile raf;
+		public FileChannel channel;
+		
+		// bytes allocated to records and bytes held by indexed records
+		public long size = 0;
+		public long liveBytes = 0;
+		
+		// records reserved but not yet committed or abandoned
+		public int pending = 0;
+		
+		public int refs = 0;
+		public boolean retired = false;
+		
+		public Segment(long id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			this.channel = raf.getChannel();
+		}
+		
+		public void delete(){
+			try{
+				raf.close();
+			} catch(IOException e){ }
+			file.delete();
+		}
+	}
+	
+	/**
+	 * A record in a segment.
+	 */
+	private static class Location{
+		
+		public String name;
+		public Segment segment;
+		public long offset;
+		public long length;
+		public long payloadOffset;
+		public long totalSectors;
+		public int sectorSize;
+		public byte[] policy;
+		public byte[] encryptedKey;
+		public long version;
+		
+		// writers open on the record and writes completed in place
+		public int writers = 0;
+		public long writes = 0;
+		
+		// set while the record's sectors are carried into a larger record
+		public boolean growing = false;
+		
+		public Location(String name, Segment segment, long offset, long length,
+				long payloadOffset, long totalSectors, int sectorSize, byte[] policy, 
+					byte[] encryptedKey, long version){
+			this.name = name;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.payloadOffset = payloadOffset;
+			this.totalSectors = totalSectors;
+			this.sectorSize = sectorSize;
+			this.policy = policy;
+			this.encryptedKey = encryptedKey;
+			this.version = version;
+		}
+	}
+	
+	/**
+	 * A view of an object's record.
+	 */
+	private class LogStoredObject extends StoredObject {
+		
+		private Location location;
+		private boolean closed = false;
+		
+		public LogStoredObject(Location location){
+			this.location = location;
+		}
+		
+		@Override
+		public byte[] getPolicy(){
+			return location.policy;
+		}
+		
+		@Override
+		public byte[] getEncryptedKey(){
+			return location.encryptedKey;
+		}
+		
+		@Override
+		public long getSectorCount(){
+			return location.totalSectors;
+		}
+		
+		@Override
+		public int getSectorSize(){
+			return location.sectorSize;
+		}
+		
+		@Override
+		public long getVersion(){
+			return location.version;
+		}
+		
+		@Override
+		public void readSectors(long first, byte[] into, int count) throws IOException {
+			checkRange(first, count);
+			readFully(location.segment.channel, 
+					ByteBuffer.wrap(into, 0, count * location.sectorSize),
+					location.payloadOffset + first * location.sectorSize);
+		}
+		
+		@Override
+		public void transferSectors(long first, long count, WritableByteChannel target)
+				throws IOException {
+			checkRange(first, count);
+			
+			FileChannel channel = location.segment.channel;
+			long position = location.payloadOffset + first * location.sectorSize;
+			long end = position + count * location.sectorSize;
+			while(position < end){
+				position += channel.transferTo(position, end - position, target);
+			}
+		}
+		
+		private void checkRange(long first, long count) throws IOException {
+			if(closed){
+				throw new IOException("Stored object "+location.name+" is closed.");
+			}
+			if(first < 0 || count < 0 || first + count > location.totalSectors){
+				throw new IOException("Sectors out of range of "+location.name+".");
+			}
+		}
+		
+		@Override
+		public void close(){
+			if(!closed){
+				closed = true;
+				release(location.segment);
+			}
+		}
+	}
+	
+	/**
+	 * Writes sectors into a record, either a newly reserved record which is
+	 * committed and indexed on close, or an indexed record written in place.
+	 */
+	private class LogObjectWriter extends StoredObjectWriter {
+		
+		private Location location;
+		private boolean inPlace;
+		private ByteBuffer sectorBuffer;
+		private boolean closed = false;
+		
+		// record carried forward into this writer's record, if any
+		public Location source;
+		
+		// true if writing part of a staged record, which closing leaves pending
+		public boolean staged = false;
+		
+		public LogObjectWriter(Location location, boolean inPlace){
+			this.location = location;
+			this.inPlace = inPlace;
+		}
+		
+		@Override
+		public void writeSector(long index, byte[] sector) throws IOException {
+			if(index < 0 || index >= location.totalSectors){
+				throw new IOException("Sector out of range of "+location.name+".");
+			}
+			if(sector.length != location.sectorSize){
+				throw new IOException("Sector of "+sector.length+" bytes written to "+
+						location.name+", which has "+location.sectorSize+"-byte sectors.");
+			}
+			if(sectorBuffer == null || sectorBuffer.array() != sector){
+				sectorBuffer = ByteBuffer.wrap(sector);
+			}
+			sectorBuffer.clear();
+			writeFully(location.segment.channel, sectorBuffer,
+					location.payloadOffset + index * location.sectorSize);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if(closed) return;
+			
+			if(staged){
+				closed = true;
+				try{
+					if(groupCommit != null){
+						groupCommit.force(location.segment.channel);
+					}
+				} finally{
+					synchronized(LogSectorStore.this){
+						location.writers--;
+					}
+					release(location.segment);
+				}
+				return;
+			}
+			
+			// A new record's sectors must be on disk before its commit is, lest
+			// recovery index a record whose sectors were lost.
+			if(!inPlace && groupCommit != null){
+				try{
+					groupCommit.force(location.segment.channel);
+				} catch(IOException e){
+					abort();
+					throw e;
+				}
+			}
+			closed = true;
+			
+			try{
+				synchronized(LogSectorStore.this){
+					location.writers--;
+					location.writes++;
+					if(inPlace){
+						location.version = ++generation;
+					} else{
+						location.segment.pending--;
+						commit(location);
+						publish(location);
+					}
+				}
+				
+				if(groupCommit != null){
+					groupCommit.force(location.segment.channel);
+				}
+			} finally{
+				release(location.segment);
+				releaseSource();
+			}
+		}
+		
+		@Override
+		public void abort(){
+			if(closed) return;
+			closed = true;
+			
+			synchronized(LogSectorStore.this){
+				location.writers--;
+				// a staged record is left pending until its transfer is discarded
+				if(!inPlace && !staged){
+					location.segment.pending--;
+				} else if(inPlace){
+					// the record may have been partly written over
+					location.writes++;
+					location.version = ++generation;
+				}
+			}
+			release(location.segment);
+			releaseSource();
+		}
+		
+		private void releaseSource(){
+			if(source == null) return;
+			
+			synchronized(LogSectorStore.this){
+				source.writers--;
+				source.growing = false;
+			}
+			release(source.segment);
+			source = null;
+		}
+		
+		@Override
+		public long getVersion(){
+			return location.version;
+		}
+	}
+	
+	/**
+	 * Periodically compacts the store.
+	 */
+	private class Compactor implements Runnable {
+		
+		private volatile boolean stopped = false;
+		
+		@Override
+		public void run(){
+			while(!stopped){
+				try{
+					Thread.sleep(COMPACTION_INTERVAL);
+				} catch(InterruptedException e){
+					return;
+				}
+				
+				long reclaimed = compact();
+				if(reclaimed > 0){
+					SimpleLogger.info("Log store compaction reclaimed "+reclaimed+" bytes.");
+				}
+			}
+		}
+		
+		public void stop(){
+			stopped = true;
+		}
+	}
+
+}
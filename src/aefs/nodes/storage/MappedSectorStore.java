@@ -0,0 +1,382 @@
+package aefs.nodes.storage;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import misc.logging.SimpleLogger;
+
+/**
+ * File store which serves sectors from read-only mappings of the objects'
+ * files, so that reads of recently used objects are copies out of the page
+ * cache rather than system calls.
+ *
+ * Mappings are kept in a cache bounded by the total number of bytes mapped
+ * and evicted least recently used first.  A mapping is shared by every open
+ * view of its object and is unmapped once it has been evicted (or its object
+ * rewritten) and its last view closed.  Objects too large for the cache are
+ * read from their files.
+ */
+public class MappedSectorStore extends FileSectorStore {
+	
+	// Files are mapped in chunks of whole sectors, each within the 2GB limit
+	// of a single mapping.  Sector sizes are powers of two no larger than a
+	// chunk, so no sector spans chunks.
+	public static final long CHUNK_SIZE = 1L << 30;
+	
+	private long maxMappedBytes;
+	private long mappedBytes = 0;
+	
+	private LinkedHashMap<String, Mapping> mappings;
+	
+	private long hits = 0;
+	private long misses = 0;
+	
+	/**
+	 * Creates a mapped store.
+	 * @param directory directory holding the objects' files
+	 * @param maxMappedBytes number of bytes which may be mapped at once
+	 */
+	public MappedSectorStore(String directory, long maxMappedBytes){
+		super(directory);
+		
+		this.maxMappedBytes = maxMappedBytes;
+		this.mappings = new LinkedHashMap<String, Mapping>(16, 0.75f, true);
+	}
+	
+	@Override
+	public StoredObject open(String name) throws IOException {
+		long version = versionOf(name);
+		
+		synchronized(this){
+			Mapping mapping = mappings.get(name);
+			if(mapping != null && mapping.version == version && fileFor(name).exists()){
+				++hits;
+				mapping.refs++;
+				return new MappedStoredObject(mapping);
+			}
+			
+			if(mapping != null){
+				mappings.remove(name);
+				retire(mapping);
+			}
+			++misses;
+		}
+		
+		// map the file outside of the lock
+		FileStoredObject object = (FileStoredObject) super.open(name);
+		if(object == null){
+			return null;
+		}
+		
+		long payloadLength = object.getSectorCount() * object.getSectorSize();
+		if(payloadLength > maxMappedBytes){
+			return object;
+		}
+		
+		Mapping mapping;
+		try{
+			mapping = new Mapping(name, object, payloadLength);
+		} finally{
+			// mappings remain valid once their file is closed
+			object.close();
+		}
+		
+		synchronized(this){
+			Mapping existing = mappings.get(name);
+			if(existing != null){
+				if(existing.version == mapping.version){
+					// mapped concurrently; use the cached mapping
+					existing.refs++;
+					mapping.unmap();
+					return new MappedStoredObject(existing);
+				}
+				mappings.remove(name);
+				retire(existing);
+			}
+			
+			mapping.refs++;
+			mappings.put(name, mapping);
+			mappedBytes += mapping.length;
+			
+			// evict least recently used mappings until within bounds
+			Iterator<Mapping> it = mappings.values().iterator();
+			while(mappedBytes > maxMappedBytes && it.hasNext()){
+				Mapping lru = it.next();
+				if(lru == mapping) continue;
+				it.remove();
+				retire(lru);
+			}
+			
+			return new MappedStoredObject(mapping);
+		}
+	}
+	
+	/**
+	 * Removes a mapping from the cache's accounting and unmaps it once unused.
+	 * Must be called with the store locked, after removing the mapping.
+	 */
+	private void retire(Mapping mapping){
+		mapping.retired = true;
+		mappedBytes -= mapping.length;
+		if(mapping.refs == 0){
+			mapping.unmap();
+		}
+	}
+	
+	/**
+	 * Releases a view of a mapping.
+	 */
+	private synchronized void release(Mapping mapping){
+		mapping.refs--;
+		if(mapping.retired && mapping.refs == 0){
+			mapping.unmap();
+		}
+	}
+	
+	/**
+	 * Returns the number of opens served by a cached mapping.
+	 */
+	public synchronized long getHits(){
+		return hits;
+	}
+	
+	/**
+	 * Returns the number of opens which were not served by a cached mapping.
+	 */
+	public synchronized long getMisses(){
+		return misses;
+	}
+	
+	/**
+	 * Returns the number of bytes currently mapped by the cache.
+	 */
+	public synchronized long getMappedBytes(){
+		return mappedBytes;
+	}
+	
+	@Override
+	public synchronized void close(){
+		Iterator<Mapping> it = mappings.values().iterator();
+		while(it.hasNext()){
+			Mapping mapping = it.next();
+			it.remove();
+			retire(mapping);
+		}
+	}
+	
+	/**
+	 * The mapped payload of an object, with the header read when it was mapped.
+	 */
+	private static class Mapping{
+		
+		public String name;
+		public long version;
+		public byte[] policy;
+		public byte[] encryptedKey;
+		public int sectorSize;
+		public long sectorCount;
+		public long length;
+		public MappedByteBuffer[] chunks;
+		
+		// views open on the mapping and whether it has left the cache
+		public int refs = 0;
+		public boolean retired = false;
+		
+		public Mapping(String name, FileStoredObject object, long length) throws IOException {
+			this.name = name;
+			this.version = object.getVersion();
+			this.policy = object.getPolicy();
+			this.encryptedKey = object.getEncryptedKey();
+			this.sectorSize = object.getSectorSize();
+			this.sectorCount = object.getSectorCount();
+			this.length = length;
+			
+			FileChannel channel = object.channel;
+			chunks = new MappedByteBuffer[(int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+			for(int i = 0; i < chunks.length; ++i){
+				long start = i * CHUNK_SIZE;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, 
+						object.getPayloadOffset() + start, Math.min(CHUNK_SIZE, length - start));
+			}
+		}
+		
+		/**
+		 * Returns a view of consecutive sectors within a single chunk, or null if
+		 * the sectors span chunks.
+		 */
+		public ByteBuffer slice(long first, int count){
+			if(count == 0){
+				return ByteBuffer.allocate(0);
+			}
+			
+			long start = first * sectorSize;
+			int chunk = (int) (start / CHUNK_SIZE);
+			int offset = (int) (start % CHUNK_SIZE);
+			int bytes = count * sectorSize;
+			if(offset + bytes > chunks[chunk].capacity()){
+				return null;
+			}
+			
+			ByteBuffer view = chunks[chunk].duplicate();
+			view.position(offset);
+			view.limit(offset + bytes);
+			return view.slice();
+		}
+		
+		public void unmap(){
+			for(MappedByteBuffer chunk : chunks){
+				Unmapper.unmap(chunk);
+			}
+			chunks = new MappedByteBuffer[0];
+		}
+	}
+	
+	/**
+	 * A view of an object served from its mapping.
+	 */
+	private class MappedStoredObject extends StoredObject {
+		
+		private Mapping mapping;
+		private boolean closed = false;
+		
+		public MappedStoredObject(Mapping mapping){
+			this.mapping = mapping;
+		}
+		
+		@Override
+		public byte[] getPolicy(){
+			return mapping.policy;
+		}
+		
+		@Override
+		public byte[] getEncryptedKey(){
+			return mapping.encryptedKey;
+		}
+		
+		@Override
+		public long getSectorCount(){
+			return mapping.sectorCount;
+		}
+		
+		@Override
+		public int getSectorSize(){
+			return mapping.sectorSize;
+		}
+		
+		@Override
+		public long getVersion(){
+			return mapping.version;
+		}
+		
+		@Override
+		public void readSectors(long first, byte[] into, int count) throws IOException {
+			checkRange(first, count);
+			for(int i = 0; i < count; ++i){
+				mapping.slice(first + i, 1).get(into, i * mapping.sectorSize, 
+						mapping.sectorSize);
+			}
+		}
+		
+		@Override
+		public ByteBuffer getSectors(long first, int count) throws IOException {
+			checkRange(first, count);
+			ByteBuffer view = mapping.slice(first, count);
+			if(view == null){
+				return super.getSectors(first, count);
+			}
+			return view.asReadOnlyBuffer();
+		}
+		
+		@Override
+		public void transferSectors(long first, long count, WritableByteChannel target)
+				throws IOException {
+			checkRange(first, count);
+			
+			// send at most one chunk's worth of sectors at a time
+			int perSlice = (int) (CHUNK_SIZE / mapping.sectorSize);
+			while(count > 0){
+				int n = (int) Math.min(count, perSlice - first % perSlice);
+				ByteBuffer view = mapping.slice(first, n);
+				while(view.hasRemaining()){
+					target.write(view);
+				}
+				first += n;
+				count -= n;
+			}
+		}
+		
+		private void checkRange(long first, long count) throws IOException {
+			if(closed){
+				throw new IOException("Stored object "+mapping.name+" is closed.");
+			}
+			if(first < 0 || count < 0 || first + count > mapping.sectorCount){
+				throw new IOException("Sectors out of range of "+mapping.name+".");
+			}
+		}
+		
+		@Override
+		public void close(){
+			if(!closed){
+				closed = true;
+				release(mapping);
+			}
+		}
+	}
+	
+	/**
+	 * Unmaps buffers ahead of garbage collection using whichever cleaner the
+	 * running JVM exposes.  If none is available, buffers are left for the
+	 * garbage collector to unmap.
+	 */
+	private static class Unmapper{
+		
+		private static Object unsafe;
+		private static Method invokeCleaner;
+		private static boolean legacyCleaner = false;
+		
+		static{
+			try{
+				// Java 9 and later
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				Field f = unsafeClass.getDeclaredField("theUnsafe");
+				f.setAccessible(true);
+				unsafe = f.get(null);
+			} catch(Exception e){
+				// Java 8: DirectByteBuffer.cleaner().clean()
+				invokeCleaner = null;
+				legacyCleaner = true;
+			}
+		}
+		
+		public static void unmap(MappedByteBuffer buffer){
+			try{
+				if(invokeCleaner != null){
+					invokeCleaner.invoke(unsafe, buffer);
+				} else if(legacyCleaner){
+					Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+					cleanerMethod.setAccessible(true);
+					Object cleaner = cleanerMethod.invoke(buffer);
+					if(cleaner != null){
+						Method clean = cleaner.getClass().getMethod("clean");
+						clean.setAccessible(true);
+						clean.invoke(cleaner);
+					}
+				}
+			} catch(Exception e){
+				SimpleLogger.error("Unable to unmap stored object; leaving it to the "+
+						"garbage collector.");
+				legacyCleaner = false;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+package aefs.nodes.storage;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Storage backend for the objects held by a master.  A stored object is the
+ * advertised access policy and attribute-encrypted key of a file, followed
+ * by the file's encrypted sectors, which are addressed by index.  Sectors are
+ * all of the size chosen when the object was put.
+ */
+public abstract class SectorStore {
+	
+	// size of the sectors of objects stored before sizes were recorded
+	public static final int LEGACY_SECTOR_SIZE = 4096;
+	
+	// when set, writers do not finish until their writes are on disk
+	protected GroupCommit groupCommit;
+	
+	// locks held while objects are replaced or rewritten, by name
+	private ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+	
+	/**
+	 * Opens a stored object for reading.
+	 * @param name AEFS file name
+	 * @return the stored object or null if there is none by that name
+	 * @throws IOException if the object exists but cannot be read
+	 */
+	public abstract StoredObject open(String name) throws IOException;
+	
+	/**
+	 * Opens a new object for writing.  The object replaces any existing 
+	 * object by that name once the writer is closed.
+	 * @param name AEFS file name
+	 * @param policy advertised access policy
+	 * @param encryptedKey serialized attribute-encrypted file key
+	 * @param totalSectors total number of sectors in the object
+	 * @param sectorSize size of each sector in bytes
+	 * @throws IOException if the object cannot be created
+	 */
+	public abstract StoredObjectWriter create(String name, byte[] policy, 
+			byte[] encryptedKey, long totalSectors, int sectorSize) throws IOException;
+	
+	/**
+	 * Opens the copy of an object staged for a transfer, creating it if
+	 * necessary.  A file put over several connections is written by several
+	 * writers into the same staged copy, each writing a disjoint range of
+	 * sectors.  Readers never see the staged copy; it replaces the object
+	 * only once published.
+	 * @param name AEFS file name
+	 * @param transfer id of the transfer, chosen by the client
+	 * @param policy advertised access policy
+	 * @param encryptedKey serialized attribute-encrypted file key
+	 * @param totalSectors total number of sectors in the object
+	 * @param sectorSize size of each sector in bytes
+	 * @throws IOException if the copy cannot be created, or was staged with
+	 * another header
+	 */
+	public abstract StoredObjectWriter stage(String name, long transfer, byte[] policy,
+			byte[] encryptedKey, long totalSectors, int sectorSize) throws IOException;
+	
+	/**
+	 * Replaces an object with the copy staged for a transfer, once every
+	 * writer of the copy has been closed.
+	 * @param name AEFS file name
+	 * @param transfer id of the transfer
+	 * @return the version of the object as published
+	 * @throws IOException if there is no such staged copy or it cannot be
+	 * published
+	 */
+	public abstract long publish(String name, long transfer) throws IOException;
+	
+	/**
+	 * Discards the copy of an object staged for a transfer, if any.
+	 * @param name AEFS file name
+	 * @param transfer id of the transfer
+	 */
+	public abstract void discard(String name, long transfer);
+	
+	/**
+	 * Opens an existing object for rewriting sectors in place, extending it if
+	 * it holds fewer than the passed number of sectors.  Objects never shrink.
+	 * The caller must hold the object's lock from opening the writer until it
+	 * is closed, so that the object cannot be replaced or rewritten meanwhile.
+	 * @param name AEFS file name
+	 * @param version version of the object the update was prepared against
+	 * @param totalSectors number of sectors the object must hold
+	 * @return writer or null if there is no object by that name, or it is no
+	 * longer of the passed version
+	 * @throws IOException if the object cannot be written
+	 */
+	public abstract StoredObjectWriter update(String name, long version, long totalSectors) 
+			throws IOException;
+	
+	/**
+	 * Returns the lock held while the named object is replaced or rewritten.
+	 * Writers replacing an object hold it from closing until the object's tree
+	 * is committed, so that an update sees the object and its tree together.
+	 * @param name AEFS file name
+	 */
+	public Object lockFor(String name){
+		Object lock = locks.get(name);
+		if(lock == null){
+			Object created = new Object();
+			lock = locks.putIfAbsent(name, created);
+			if(lock == null) lock = created;
+		}
+		return lock;
+	}
+	
+	/**
+	 * Makes writes durable before writers finish, flushing concurrent writers
+	 * together through the passed group commit.
+	 * @param groupCommit group commit through which to flush; null to leave
+	 * flushing to the operating system
+	 */
+	public void setGroupCommit(GroupCommit groupCommit){
+		this.groupCommit = groupCommit;
+	}
+	
+	/**
+	 * Releases any resources held by the store.
+	 */
+	public void close(){ }
+}
@@ -0,0 +1,706 @@
+package aefs.nodes.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import aefs.encryption.SectorTree;
+
+/**
+ * Keeps the sector tree of each stored file in a file of its own, next to the
+ * store.  A tree file holds:
+ *   [long sectors][byte hasMAC][32-byte root MAC][32-byte key digest]
+ * followed by each level of the tree, leaves first.  Only the nodes touched by
+ * a request are read or written, so ranges are proven and trees updated
+ * without reading every hash.
+ *
+ * A tree replaced by a new one, or rebuilt larger, is written aside and
+ * renamed over the old tree only once committed, so that readers of the old
+ * tree are unaffected and a failed put leaves it in place.  The tree of a 
+ * file put in parts is staged for its transfer and published with the file.  Each tree records
+ * the digest of the encrypted key of the object it covers, so that a tree 
+ * left over from an object's previous contents is recognized and ignored.
+ * Trees are locked by file name, so that work on one file's tree never waits
+ * on another's.
+ */
+public class SectorTreeStore {
+	
+	private static final int HEADER_SIZE = 9 + 2 * SectorTree.HASH_LENGTH;
+	private static final int KEY_DIGEST_OFFSET = 9 + SectorTree.HASH_LENGTH;
+	
+	// bytes of sectors hashed at a time when verifying
+	private static final int VERIFY_BYTES = 256 * 1024;
+	
+	// leaves written to a tree at a time
+	private static final int LEAF_BATCH = 2048;
+	
+	private File directory;
+	
+	// per-name locks, taken while a tree is opened, replaced or rebuilt
+	private ConcurrentHashMap<String, Object> locks;
+	
+	// when set, committed trees are forced to disk through it
+	private GroupCommit groupCommit;
+	private FileChannel directoryChannel;
+	private AtomicLong generation;
+	
+	public SectorTreeStore(String directory){
+		this.directory = new File(directory);
+		this.locks = new ConcurrentHashMap<String, Object>();
+		this.generation = new AtomicLong();
+		
+		// trees left aside by a crash were never committed
+		File[] files = this.directory.listFiles();
+		if(files != null){
+			for(File file : files){
+				if(file.getName().indexOf('-') >= 0 && file.getName().endsWith(".tmp")){
+					file.delete();
+				}
+			}
+		}
+	}
+	
+	private File fileFor(String name){
+		return new File(directory, name);
+	}
+	
+	private Object lockFor(String name){
+		Object lock = locks.get(name);
+		if(lock == null){
+			Object created = new Object();
+			lock = locks.putIfAbsent(name, created);
+			if(lock == null) lock = created;
+		}
+		return lock;
+	}
+	
+	/**
+	 * Makes committed trees durable before commit() returns, flushing
+	 * concurrent writers together through the passed group commit.
+	 * @param groupCommit group commit through which to flush; null to leave
+	 * flushing to the operating system
+	 */
+	public void setGroupCommit(GroupCommit groupCommit){
+		this.groupCommit = groupCommit;
+	}
+	
+	/**
+	 * Waits until the entries of the tree directory are on disk.
+	 */
+	private void forceDirectory() throws IOException {
+		FileChannel channel;
+		synchronized(this){
+			if(directoryChannel == null){
+				directoryChannel = FileChannel.open(directory.toPath(), 
+						StandardOpenOption.READ);
+			}
+			channel = directoryChannel;
+		}
+		groupCommit.force(channel);
+	}
+	
+	/**
+	 * Releases any resources held by the store.
+	 */
+	public synchronized void close(){
+		if(directoryChannel != null){
+			try{
+				directoryChannel.close();
+			} catch(IOException e){ }
+			directoryChannel = null;
+		}
+	}
+	
+	/**
+	 * Opens the tree of a stored file.
+	 * @param name AEFS file name
+	 * @return the tree or null if the file has none
+	 */
+	public Tree open(String name) throws IOException {
+		synchronized(lockFor(name)){
+			File f = fileFor(name);
+			if(! f.exists()){
+				return null;
+			}
+			
+			RandomAccessFile file = new RandomAccessFile(f, "rw");
+			try{
+				return new Tree(name, file, file.readLong(), null, false);
+			} catch(IOException e){
+				file.close();
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Creates the tree of a file being put whole, written aside until
+	 * committed.
+	 * @param name AEFS file name
+	 * @param sectors number of sectors in the file
+	 */
+	public Tree create(String name, long sectors) throws IOException {
+		synchronized(lockFor(name)){
+			return newTree(name, sectors, null, 0, asideFileFor(name), true);
+		}
+	}
+	
+	/**
+	 * Opens the tree staged for a transfer of a file put in parts, creating it
+	 * if necessary.  Each part writes its leaves and commits the tree, which
+	 * leaves it staged; the nodes above the leaves are built when the tree is
+	 * published.
+	 * @param name AEFS file name
+	 * @param transfer id of the transfer
+	 * @param sectors number of sectors in the file
+	 */
+	public Tree stage(String name, long transfer, long sectors) throws IOException {
+		synchronized(lockFor(name)){
+			File f = stagedFileFor(name, transfer);
+			if(! f.exists()){
+				return newTree(name, sectors, null, 0, f, false);
+			}
+			
+			RandomAccessFile file = new RandomAccessFile(f, "rw");
+			try{
+				Tree tree = new Tree(name, file, file.readLong(), null, false);
+				if(tree.sectors != sectors){
+					throw new IOException("Part of "+name+" does not match its transfer.");
+				}
+				return tree;
+			} catch(IOException e){
+				file.close();
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Builds the tree staged for a transfer and renames it over the file's
+	 * tree.  Every part's tree must have been committed.
+	 * @param name AEFS file name
+	 * @param transfer id of the transfer
+	 */
+	public void publish(String name, long transfer) throws IOException {
+		synchronized(lockFor(name)){
+			File f = stagedFileFor(name, transfer);
+			RandomAccessFile file = new RandomAccessFile(f, "rw");
+			Tree tree;
+			try{
+				tree = new Tree(name, file, file.readLong(), f, true);
+			} catch(IOException e){
+				file.close();
+				throw e;
+			}
+			
+			try{
+				tree.rebuild(0, tree.sectors);
+			} catch(IOException e){
+				tree.abort();
+				throw e;
+			}
+			tree.commit();
+		}
+	}
+	
+	/**
+	 * Discards the tree staged for a transfer, if any.
+	 * @param name AEFS file name
+	 * @param transfer id of the transfer
+	 */
+	public void discard(String name, long transfer){
+		stagedFileFor(name, transfer).delete();
+	}
+	
+	private File stagedFileFor(String name, long transfer){
+		return new File(directory, name+"-t"+Long.toHexString(transfer)+".tmp");
+	}
+	
+	/**
+	 * Extends the tree of a file to the passed number of sectors, carrying its
+	 * leaves and the digest of its object's key into a new tree written aside.
+	 * The caller must write the new leaves, rebuild the whole tree and commit
+	 * it.
+	 * @param name AEFS file name
+	 * @param sectors new number of sectors
+	 * @return the new tree or null if the file has no tree
+	 */
+	public Tree extend(String name, long sectors) throws IOException {
+		synchronized(lockFor(name)){
+			Tree existing = open(name);
+			if(existing == null){
+				return null;
+			}
+			
+			try{
+				Tree tree = newTree(name, sectors, existing.channel, existing.sectors,
+						asideFileFor(name), true);
+				try{
+					writeFully(tree.channel, ByteBuffer.wrap(existing.readHeader(),
+							KEY_DIGEST_OFFSET, SectorTree.HASH_LENGTH), KEY_DIGEST_OFFSET);
+				} catch(IOException e){
+					tree.abort();
+					throw e;
+				}
+				return tree;
+			} finally{
+				existing.close();
+			}
+		}
+	}
+	
+	/**
+	 * Returns a new file in which to write a tree aside.  Names never contain
+	 * '-', so a tree written aside cannot be taken for the tree of a file.
+	 */
+	private File asideFileFor(String name){
+		return new File(directory, name+"-"+generation.incrementAndGet()+".tmp");
+	}
+	
+	/**
+	 * Creates a tree in the passed file.
+	 * @param aside true if the file is renamed over the file's tree when the
+	 * tree is committed; otherwise the tree is staged and left in place
+	 */
+	private Tree newTree(String name, long sectors, FileChannel leavesFrom, long leafCount,
+			File f, boolean aside) throws IOException {
+		// make tree dir if it doesn't exist
+		if(! directory.exists()){
+			directory.mkdir();
+		}
+		
+		RandomAccessFile file = new RandomAccessFile(f, "rw");
+		try{
+			Tree tree = new Tree(name, file, sectors, aside ? f : null, aside);
+			file.setLength(tree.levelOffset(SectorTree.height(sectors) + 1));
+			
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putLong(sectors);
+			header.flip();
+			writeFully(tree.channel, header, 0);
+			
+			if(leavesFrom != null){
+				ByteBuffer leaves = ByteBuffer.allocate((int) Math.min(65536,
+						leafCount * SectorTree.HASH_LENGTH));
+				long position = 0;
+				long end = leafCount * SectorTree.HASH_LENGTH;
+				while(position < end){
+					leaves.clear();
+					leaves.limit((int) Math.min(leaves.capacity(), end - position));
+					readFully(leavesFrom, leaves, HEADER_SIZE + position);
+					leaves.flip();
+					writeFully(tree.channel, leaves, HEADER_SIZE + position);
+					position += leaves.limit();
+				}
+			}
+			return tree;
+		} catch(IOException e){
+			file.close();
+			f.delete();
+			throw e;
+		}
+	}
+	
+	private static byte[] keyDigest(byte[] encryptedKey) throws IOException {
+		try{
+			return SectorTree.newDigest().digest(encryptedKey);
+		} catch(NoSuchAlgorithmException e){
+			throw new IOException(e);
+		}
+	}
+	
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		while(buffer.hasRemaining()){
+			position += channel.write(buffer, position);
+		}
+	}
+	
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		while(buffer.hasRemaining()){
+			int n = channel.read(buffer, position);
+			if(n < 0){
+				throw new IOException("Sector tree truncated.");
+			}
+			position += n;
+		}
+	}
+	
+	/**
+	 * The tree of a stored file.
+	 */
+	public class Tree extends SectorTree.NodeSource {
+		
+		private String name;
+		private RandomAccessFile file;
+		private FileChannel channel;
+		private long sectors;
+		private Object lock;
+		
+		// file renamed over the tree on commit, or null if written in place
+		private File temp;
+		// true if committing adds an entry to the tree directory
+		private boolean created;
+		
+		// leaves waiting to be written, for consecutive sectors from pendingFirst
+		private byte[] pending;
+		private long pendingFirst;
+		private int pendingCount;
+		
+		private Tree(String name, RandomAccessFile file, long sectors, File temp,
+				boolean created){
+			this.name = name;
+			this.file = file;
+			this.channel = file.getChannel();
+			this.sectors = sectors;
+			this.lock = lockFor(name);
+			this.temp = temp;
+			this.created = created;
+		}
+		
+		/**
+		 * Returns the number of sectors covered by the tree.
+		 */
+		public long getSectorCount(){
+			return sectors;
+		}
+		
+		private long levelOffset(int level){
+			long offset = HEADER_SIZE;
+			for(int i = 0; i < level; ++i){
+				offset += SectorTree.levelSize(sectors, i) * SectorTree.HASH_LENGTH;
+			}
+			return offset;
+		}
+		
+		private byte[] readNodes(int level, long index, int count) throws IOException {
+			byte[] nodes = new byte[count * SectorTree.HASH_LENGTH];
+			readFully(channel, ByteBuffer.wrap(nodes),
+					levelOffset(level) + index * SectorTree.HASH_LENGTH);
+			return nodes;
+		}
+		
+		@Override
+		public byte[] get(int level, long index) throws IOException {
+			return readNodes(level, index, 1);
+		}
+		
+		/**
+		 * Sets the leaf of a sector.  Leaves of consecutive sectors are written
+		 * in batches; the nodes above them are updated by rebuild().
+		 * @param index index of the sector
+		 * @param leaf leaf of the sector
+		 */
+		public void setLeaf(long index, byte[] leaf) throws IOException {
+			if(pendingCount > 0 && (pendingCount == LEAF_BATCH || 
+					index != pendingFirst + pendingCount)){
+				flushLeaves();
+			}
+			if(pending == null){
+				pending = new byte[LEAF_BATCH * SectorTree.HASH_LENGTH];
+			}
+			if(pendingCount == 0){
+				pendingFirst = index;
+			}
+			System.arraycopy(leaf, 0, pending, pendingCount * SectorTree.HASH_LENGTH,
+					SectorTree.HASH_LENGTH);
+			++pendingCount;
+		}
+		
+		private void flushLeaves() throws IOException {
+			if(pendingCount == 0) return;
+			
+			writeFully(channel, ByteBuffer.wrap(pending, 0, 
+					pendingCount * SectorTree.HASH_LENGTH),
+					HEADER_SIZE + pendingFirst * SectorTree.HASH_LENGTH);
+			pendingCount = 0;
+		}
+		
+		/**
+		 * Returns the root of the tree.
+		 */
+		public byte[] getRoot() throws IOException {
+			if(sectors == 0){
+				return new byte[SectorTree.HASH_LENGTH];
+			}
+			return get(SectorTree.height(sectors), 0);
+		}
+		
+		private byte[] readHeader() throws IOException {
+			byte[] header = new byte[HEADER_SIZE];
+			readFully(channel, ByteBuffer.wrap(header), 0);
+			return header;
+		}
+		
+		/**
+		 * Returns the MAC of the root recorded by the client which wrote the
+		 * file, or null if there is none.
+		 */
+		public byte[] getRootMAC() throws IOException {
+			byte[] header = readHeader();
+			if(header[8] == 0){
+				return null;
+			}
+			return Arrays.copyOfRange(header, 9, KEY_DIGEST_OFFSET);
+		}
+		
+		/**
+		 * Binds the tree to the object whose encrypted key is passed.
+		 * @param encryptedKey serialized attribute-encrypted key of the object
+		 */
+		public void setObjectKey(byte[] encryptedKey) throws IOException {
+			writeFully(channel, ByteBuffer.wrap(keyDigest(encryptedKey)), KEY_DIGEST_OFFSET);
+		}
+		
+		/**
+		 * Returns true if the tree covers the passed stored object, rather than
+		 * earlier contents of its file.
+		 */
+		public boolean covers(StoredObject stored) throws IOException {
+			if(sectors != stored.getSectorCount()){
+				return false;
+			}
+			byte[] header = readHeader();
+			return MessageDigest.isEqual(keyDigest(stored.getEncryptedKey()),
+					Arrays.copyOfRange(header, KEY_DIGEST_OFFSET, HEADER_SIZE));
+		}
+		
+		/**
+		 * Records the MAC of the root.
+		 * @param mac MAC or null to clear it
+		 */
+		public void setRootMAC(byte[] mac) throws IOException {
+			ByteBuffer field = ByteBuffer.allocate(1 + SectorTree.HASH_LENGTH);
+			field.put((byte) (mac == null ? 0 : 1));
+			field.put(mac == null ? new byte[SectorTree.HASH_LENGTH] : mac);
+			field.flip();
+			writeFully(channel, field, 8);
+		}
+		
+		/**
+		 * Recomputes the nodes above a range of leaves.  Parts of a file put
+		 * concurrently rebuild one at a time, so that the last to finish sees
+		 * the leaves of all.
+		 * @param first index of the first sector changed
+		 * @param count number of sectors changed
+		 */
+		public void rebuild(long first, long count) throws IOException {
+			flushLeaves();
+			if(count <= 0) return;
+			
+			MessageDigest md;
+			try{
+				md = SectorTree.newDigest();
+			} catch(NoSuchAlgorithmException e){
+				throw new IOException(e);
+			}
+			
+			synchronized(lock){
+				long from = first;
+				long to = first + count - 1;
+				int height = SectorTree.height(sectors);
+				for(int level = 1; level <= height; ++level){
+					long below = SectorTree.levelSize(sectors, level - 1);
+					from >>= 1;
+					to >>= 1;
+					
+					// rebuild in batches to bound memory
+					for(long i = from; i <= to; i += 1024){
+						int n = (int) Math.min(1024, to - i + 1);
+						int childCount = (int) Math.min(2L * n, below - 2 * i);
+						byte[] children = readNodes(level - 1, 2 * i, childCount);
+						byte[] parents = new byte[n * SectorTree.HASH_LENGTH];
+						
+						for(int j = 0; j < n; ++j){
+							byte[] left = Arrays.copyOfRange(children, 2 * j * SectorTree.HASH_LENGTH,
+									(2 * j + 1) * SectorTree.HASH_LENGTH);
+							byte[] parent = left;
+							if(2 * j + 1 < childCount){
+								byte[] right = Arrays.copyOfRange(children,
+										(2 * j + 1) * SectorTree.HASH_LENGTH,
+										(2 * j + 2) * SectorTree.HASH_LENGTH);
+								parent = SectorTree.node(md, left, right);
+							}
+							System.arraycopy(parent, 0, parents, j * SectorTree.HASH_LENGTH,
+									SectorTree.HASH_LENGTH);
+						}
+						writeFully(channel, ByteBuffer.wrap(parents),
+								levelOffset(level) + i * SectorTree.HASH_LENGTH);
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Computes the digest of the stored leaves of a range of sectors, which
+		 * stands for the range's sectors without reading them.
+		 * @see SectorTree#rangeDigest(MessageDigest, List)
+		 */
+		public byte[] rangeDigest(long first, long count) throws IOException {
+			MessageDigest md;
+			try{
+				md = SectorTree.newDigest();
+			} catch(NoSuchAlgorithmException e){
+				throw new IOException(e);
+			}
+			
+			for(long i = 0; i < count; i += LEAF_BATCH){
+				int n = (int) Math.min(LEAF_BATCH, count - i);
+				md.update(readNodes(0, first + i, n));
+			}
+			return md.digest();
+		}
+		
+		/**
+		 * Lists the nodes needed to verify a range of sectors against the root.
+		 */
+		public List<byte[]> proof(long first, long count) throws IOException {
+			return SectorTree.proof(sectors, first, count, this);
+		}
+		
+		/**
+		 * Checks a range of stored sectors against the tree's leaves, hashing
+		 * parts of the range in parallel.
+		 * @param stored stored file
+		 * @param first index of the first sector
+		 * @param count number of sectors
+		 * @param pool pool on which to hash; parts are hashed by the calling
+		 * thread if the pool is full
+		 * @param parallelism number of parts to hash at once
+		 * @return true if every sector matches its leaf
+		 */
+		public boolean verify(final StoredObject stored, long first, long count,
+				ExecutorService pool, int parallelism) throws IOException {
+			int batch = Math.max(1, VERIFY_BYTES / stored.getSectorSize());
+			long perPart = Math.max(batch, (count + parallelism - 1) / parallelism);
+			
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			List<Callable<Boolean>> inline = new ArrayList<Callable<Boolean>>();
+			for(long start = first; start < first + count; start += perPart){
+				final long partFirst = start;
+				final long partCount = Math.min(perPart, first + count - start);
+				Callable<Boolean> part = new Callable<Boolean>(){
+					public Boolean call() throws IOException {
+						return verifyPart(stored, partFirst, partCount);
+					}
+				};
+				
+				try{
+					results.add(pool.submit(part));
+				} catch(RejectedExecutionException e){
+					inline.add(part);
+				}
+			}
+			
+			boolean valid = true;
+			try{
+				for(Callable<Boolean> part : inline){
+					valid &= part.call();
+				}
+				for(Future<Boolean> result : results){
+					valid &= result.get();
+				}
+			} catch(ExecutionException e){
+				throw new IOException("Unable to verify stored sectors.", e.getCause());
+			} catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while verifying stored sectors.");
+			} catch(Exception e){
+				throw new IOException("Unable to verify stored sectors.", e);
+			}
+			return valid;
+		}
+		
+		private boolean verifyPart(StoredObject stored, long first, long count)
+				throws IOException {
+			MessageDigest md;
+			try{
+				md = SectorTree.newDigest();
+			} catch(NoSuchAlgorithmException e){
+				throw new IOException(e);
+			}
+			
+			int sectorSize = stored.getSectorSize();
+			int batch = Math.max(1, VERIFY_BYTES / sectorSize);
+			byte[] sectors = new byte[batch * sectorSize];
+			for(long i = 0; i < count; i += batch){
+				int n = (int) Math.min(batch, count - i);
+				stored.readSectors(first + i, sectors, n);
+				byte[] leaves = readNodes(0, first + i, n);
+				
+				for(int j = 0; j < n; ++j){
+					byte[] leaf = SectorTree.leaf(md, sectors, j * sectorSize, sectorSize);
+					if(!MessageDigest.isEqual(leaf, Arrays.copyOfRange(leaves,
+							j * SectorTree.HASH_LENGTH, (j + 1) * SectorTree.HASH_LENGTH))){
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * Finishes writing the tree and closes it.  A tree written aside
+		 * replaces the file's tree only now.  If the store is durable, the tree
+		 * and its directory entry are on disk once this returns.
+		 */
+		public void commit() throws IOException {
+			boolean written = false;
+			try{
+				flushLeaves();
+				if(groupCommit != null){
+					groupCommit.force(channel);
+				}
+				written = true;
+			} finally{
+				close();
+				if(!written && temp != null) temp.delete();
+			}
+			
+			if(temp != null){
+				synchronized(lock){
+					Files.move(temp.toPath(), fileFor(name).toPath(), 
+							StandardCopyOption.ATOMIC_MOVE);
+				}
+			}
+			if(created && groupCommit != null){
+				forceDirectory();
+			}
+		}
+		
+		/**
+		 * Abandons writing the tree.  A tree written aside is discarded, 
+		 * leaving the file's tree as it was; leaves already written in place
+		 * are kept.
+		 */
+		public void abort(){
+			close();
+			if(temp != null) temp.delete();
+		}
+		
+		public void close(){
+			try{
+				file.close();
+			} catch(IOException e){ }
+		}
+	}
+
+}
@@ -0,0 +1,83 @@
+package aefs.nodes.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Read-only view of a stored object.  Must be closed once no longer needed.
+ */
+public abstract class StoredObject {
+	
+	/**
+	 * Returns the advertised access policy of the object.
+	 */
+	public abstract byte[] getPolicy();
+	
+	/**
+	 * Returns the serialized attribute-encrypted key of the object.
+	 */
+	public abstract byte[] getEncryptedKey();
+	
+	/**
+	 * Returns the number of sectors in the object.
+	 */
+	public abstract long getSectorCount();
+	
+	/**
+	 * Returns the size of each of the object's sectors in bytes.
+	 */
+	public abstract int getSectorSize();
+	
+	/**
+	 * Returns a number which changes whenever the object is rewritten, so that
+	 * values derived from its contents may be cached.
+	 */
+	public abstract long getVersion();
+	
+	/**
+	 * Reads consecutive sectors.
+	 * @param first index of the first sector to read
+	 * @param into array into which sectors are read, starting at 0
+	 * @param count number of sectors to read
+	 * @throws IOException if the sectors cannot be read
+	 */
+	public abstract void readSectors(long first, byte[] into, int count) throws IOException;
+	
+	/**
+	 * Reads a single sector.
+	 * @param index index of the sector
+	 * @param into array of at least one sector into which the sector is read
+	 */
+	public void readSector(long index, byte[] into) throws IOException {
+		readSectors(index, into, 1);
+	}
+	
+	/**
+	 * Returns consecutive sectors as a read-only buffer.  The buffer may be a
+	 * view of the object's storage, in which case it is valid only until the
+	 * object is closed.
+	 * @param first index of the first sector
+	 * @param count number of sectors
+	 */
+	public ByteBuffer getSectors(long first, int count) throws IOException {
+		byte[] sectors = new byte[count * getSectorSize()];
+		readSectors(first, sectors, count);
+		return ByteBuffer.wrap(sectors).asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Writes consecutive sectors to a channel without passing them through
+	 * the JVM where the platform allows.
+	 * @param first index of the first sector to send
+	 * @param count number of sectors to send
+	 * @param target channel to which the sectors are written
+	 */
+	public abstract void transferSectors(long first, long count, WritableByteChannel target)
+			throws IOException;
+	
+	/**
+	 * Releases this view of the object.
+	 */
+	public abstract void close();
+}
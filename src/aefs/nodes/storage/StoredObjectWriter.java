@@ -0,0 +1,39 @@
+package aefs.nodes.storage;
+
+import java.io.IOException;
+
+/**
+ * Writes sectors of a stored object.  Must be closed once all of its sectors
+ * have been written.
+ */
+public abstract class StoredObjectWriter {
+	
+	/**
+	 * Writes a sector in place.
+	 * @param index index of the sector
+	 * @param sector encrypted sector, of the object's sector size
+	 */
+	public abstract void writeSector(long index, byte[] sector) throws IOException;
+	
+	/**
+	 * Finishes writing.  The written sectors are visible to readers opening
+	 * the object afterwards and, if the store is durable, are on disk.
+	 */
+	public abstract void close() throws IOException;
+	
+	/**
+	 * Abandons writing after a failure.  Stores which can do so leave the
+	 * object as it was; others keep whatever sectors were written.
+	 */
+	public void abort(){
+		try{
+			close();
+		} catch(IOException e){ }
+	}
+	
+	/**
+	 * Returns the version of the object as left by this writer.  Valid once
+	 * the writer has been closed.
+	 */
+	public abstract long getVersion();
+}
@@ -1,15 +1,15 @@
 package aefs.protocols;
 
-import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Abstraction for a request made by a client.
  *
  * @author Aubrey Alston (ada2145@columbia.edu)
  */
-public class ControlMessage implements Serializable {
+public class ControlMessage {
 	
 	private Map<String, String> content;
 	
@@ -33,4 +33,11 @@ public class ControlMessage implements Serializable {
 	public String getValue(String parameter){
 		return content.get(parameter);
 	}
+	
+	/**
+	 * Returns the names of all registered parameters.
+	 */
+	public Set<String> getParameters(){
+		return content.keySet();
+	}
 }
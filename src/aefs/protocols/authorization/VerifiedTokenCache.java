@@ -0,0 +1,146 @@
+package aefs.protocols.authorization;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import abe.MasterPublicParameters;
+import abe.PrivateKey;
+import aefs.encryption.rsa.GenericRSAKey;
+import aefs.protocols.authorization.MasterSessionToken.TokenDetails;
+
+/**
+ * Bounded, thread-safe cache of verified session tokens.  Tokens are keyed
+ * by a SHA-256 digest of their serialized form, so a client presenting the
+ * same token again within its lifetime skips signature verification and
+ * attribute-based decryption.  Entries are dropped once their token expires.
+ */
+public class VerifiedTokenCache {
+	
+	private ConcurrentHashMap<ByteBuffer, TokenDetails> entries;
+	private int capacity;
+	
+	private AtomicLong hits;
+	private AtomicLong misses;
+	
+	/**
+	 * Creates a token cache.
+	 * @param capacity maximum number of verified tokens to hold
+	 */
+	public VerifiedTokenCache(int capacity){
+		this.entries = new ConcurrentHashMap<ByteBuffer, TokenDetails>();
+		this.capacity = capacity;
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+	}
+	
+	/**
+	 * Returns the details of the passed token if it has already been verified
+	 * and has not expired.
+	 * @param token token of interest
+	 * @return token details or null if the token is not cached
+	 */
+	public TokenDetails lookup(MasterSessionToken token){
+		TokenDetails details;
+		try{
+			details = entries.get(digest(token));
+		} catch(IOException | NoSuchAlgorithmException e){
+			return null;
+		}
+		
+		if(details == null || details.expiration < System.currentTimeMillis()){
+			return null;
+		}
+		
+		hits.incrementAndGet();
+		return details;
+	}
+	
+	/**
+	 * Returns the details of the passed token, verifying it fully only if it
+	 * has not already been verified.  Parameters are as those of
+	 * MasterSessionToken.verifyFully.
+	 * @return token details or null if the token is invalid
+	 */
+	public TokenDetails verify(MasterSessionToken token, String source,
+			Set<GenericRSAKey> trustedVerifiers, MasterPublicParameters context,
+				PrivateKey serverABEKey){
+		ByteBuffer digest;
+		try{
+			digest = digest(token);
+		} catch(IOException | NoSuchAlgorithmException e){
+			misses.incrementAndGet();
+			return token.verifyFully(source, trustedVerifiers, context, serverABEKey);
+		}
+		
+		long now = System.currentTimeMillis();
+		TokenDetails details = entries.get(digest);
+		if(details != null){
+			if(details.expiration >= now){
+				hits.incrementAndGet();
+				return details;
+			}
+			entries.remove(digest, details);
+		}
+		
+		misses.incrementAndGet();
+		details = token.verifyFully(source, trustedVerifiers, context, serverABEKey);
+		if(details != null){
+			if(entries.size() >= capacity){
+				evictExpired(now);
+			}
+			// a full cache of live tokens is left as is
+			if(entries.size() < capacity){
+				entries.put(digest, details);
+			}
+		}
+		
+		return details;
+	}
+	
+	/**
+	 * Removes all entries whose tokens have expired.
+	 * @param now current time in milliseconds
+	 */
+	public void evictExpired(long now){
+		Iterator<Map.Entry<ByteBuffer, TokenDetails>> it = entries.entrySet().iterator();
+		while(it.hasNext()){
+			if(it.next().getValue().expiration < now){
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of requests answered from the cache.
+	 */
+	public long getHits(){
+		return hits.get();
+	}
+	
+	/**
+	 * Returns the number of requests requiring full verification.
+	 */
+	public long getMisses(){
+		return misses.get();
+	}
+	
+	/**
+	 * Returns the number of tokens currently cached.
+	 */
+	public int size(){
+		return entries.size();
+	}
+	
+	private static ByteBuffer digest(MasterSessionToken token)
+			throws IOException, NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		return ByteBuffer.wrap(md.digest(token.serialize()));
+	}
+}
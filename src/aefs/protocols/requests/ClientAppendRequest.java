@@ -0,0 +1,35 @@
+package aefs.protocols.requests;
+
+import java.io.File;
+
+/**
+ * Appends the contents of a local file to an AEFS file.
+ */
+public class ClientAppendRequest extends ClientUpdateRequest {
+	
+	public ClientAppendRequest(){
+		super();
+	}
+	
+	public ClientAppendRequest(String destName, String localPath){
+		super(destName, localPath, -1);
+	}
+	
+	@Override
+	protected void initializeFromArguments(String[] args) throws InvalidCommandException{
+		if(args.length != 3){
+			throw new InvalidCommandException("Invalid append syntax.  "+
+					"Usage: append <AEFS file name> <local path>");
+		}
+		
+		this.destName = args[1];
+		this.localPath = args[2];
+		this.offset = -1;
+		
+		// check to see if file exists
+		if(!new File(this.localPath).exists()){
+			throw new InvalidCommandException("Specified file does not exist.");
+		}
+	}
+	
+}
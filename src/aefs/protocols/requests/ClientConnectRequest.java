@@ -0,0 +1,76 @@
+package aefs.protocols.requests;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+
+import aefs.client.AEFSClient;
+import aefs.encryption.EncryptedChannel;
+import aefs.encryption.RandomlyPaddedDecryptionStream;
+import aefs.encryption.RandomlyPaddedEncryptionStream;
+
+/**
+ * Request opening a persistent connection to the master.  The session token
+ * is sent and verified once; afterwards the connection carries any number of
+ * session-capable requests over a single record-framed encrypted channel.
+ */
+public class ClientConnectRequest extends ClientRequest {
+	
+	private RandomlyPaddedDecryptionStream channelIn;
+	private RandomlyPaddedEncryptionStream channelOut;
+	
+	public ClientConnectRequest(){
+		super("connect");
+	}
+	
+	@Override
+	protected void initializeFromArguments(String[] args) throws InvalidCommandException{
+		throw new InvalidCommandException("Persistent connections are opened with the "+
+				"'-persistent' client option.");
+	}
+	
+	@Override
+	public void doRequest(AEFSClient fromClient, OutputStream out, InputStream in)
+			throws IOException {
+		// send token
+		out.write(fromClient.sessionToken.serialize());
+		
+		byte[] key = fromClient.sessionKey.sessionKey;
+		byte[] iv = fromClient.sessionKey.sessionIV;
+		
+		byte[] encPad = new byte[16];
+		new SecureRandom().nextBytes(encPad);
+		
+		channelIn = EncryptedChannel.startAES256DecryptionChannel(in, key, iv);
+		channelOut = EncryptedChannel.startAES256EncryptionChannel(out, key, iv, encPad);
+		if(channelIn == null || channelOut == null){
+			throw new IOException("Unable to establish encrypted channel.");
+		}
+		
+		// receive expected pad
+		byte[] pad = new byte[16];
+		channelIn.discardBlock();
+		new DataInputStream(channelIn).readFully(pad);
+		
+		// write the requested pad
+		channelOut.write(pad);
+		channelOut.buffer();
+	}
+	
+	/**
+	 * Returns the stream from the master established by this request.
+	 */
+	public RandomlyPaddedDecryptionStream getChannelIn(){
+		return channelIn;
+	}
+	
+	/**
+	 * Returns the stream to the master established by this request.
+	 */
+	public RandomlyPaddedEncryptionStream getChannelOut(){
+		return channelOut;
+	}
+
+}
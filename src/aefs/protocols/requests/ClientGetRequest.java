@@ -2,18 +2,23 @@ package aefs.protocols.requests;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
-
-import javax.crypto.Cipher;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import misc.io.ArrayUtils;
 import misc.io.StreamUtils;
+import misc.io.WriteBehindChannel;
 import misc.logging.SimpleLogger;
 import abe.Ciphertext;
 import abe.schemes.waters08.Waters08ABEScheme;
@@ -21,11 +26,36 @@ import abe.schemes.waters08.Waters08Ciphertext;
 import aefs.client.AEFSClient;
 import aefs.encryption.EncryptedChannel;
 import aefs.encryption.EncryptedChannel.ChannelRoutine;
+import aefs.encryption.EncryptedFileSector;
+import aefs.encryption.ParallelSectorCodec;
+import aefs.encryption.PayloadMAC;
+import aefs.encryption.RandomlyPaddedDecryptionStream;
+import aefs.encryption.RandomlyPaddedEncryptionStream;
+import aefs.encryption.SectorTree;
 
 public class ClientGetRequest extends ClientRequest {
 	
+	// number of batches of decrypted sectors which may wait to be written
+	private static final int WRITE_BUFFERS = 4;
+	
 	private String destName;
 	
+	// requested byte range; a negative length requests the remainder of the file
+	private long rangeOffset = 0;
+	private long rangeLength = -1;
+	
+	// Where the requested range is written; by default the range is written
+	// to a file of the requested name starting at position 0.
+	private FileChannel output;
+	private long outputPosition = 0;
+	
+	// file key material, when already known from an earlier request
+	private byte[] keyMaterial;
+	
+	private long totalSectors = -1;
+	private int sectorSize = -1;
+	private boolean complete = false;
+	
 	public ClientGetRequest(){ 
 		super("get");
 	}
@@ -36,14 +66,89 @@ public class ClientGetRequest extends ClientRequest {
 		this.destName = destName;
 	}
 	
+	/**
+	 * Creates a request for a byte range of a file's contents.
+	 * @param destName AEFS file name
+	 * @param rangeOffset offset of the first byte requested
+	 * @param rangeLength number of bytes requested
+	 */
+	public ClientGetRequest(String destName, long rangeOffset, long rangeLength){
+		this(destName);
+		
+		this.rangeOffset = rangeOffset;
+		this.rangeLength = rangeLength;
+	}
+	
+	/**
+	 * Directs the requested range to be written to the passed channel at the
+	 * passed position rather than to a file of the requested name.
+	 * @param output channel to which the range should be written
+	 * @param position position of the first byte of the range in the channel
+	 */
+	public void setOutput(FileChannel output, long position){
+		this.output = output;
+		this.outputPosition = position;
+	}
+	
+	/**
+	 * Supplies the file key material so that it need not be decrypted again.
+	 * @param keyMaterial file key material
+	 */
+	public void setKeyMaterial(byte[] keyMaterial){
+		this.keyMaterial = keyMaterial;
+	}
+	
+	/**
+	 * Returns the file key material once decrypted.
+	 */
+	public byte[] getKeyMaterial(){
+		return keyMaterial;
+	}
+	
+	/**
+	 * Returns the total number of sectors in the file, as reported by the
+	 * master, or -1 before the master has answered.
+	 */
+	public long getTotalSectors(){
+		return totalSectors;
+	}
+	
+	/**
+	 * Returns the size of the file's sectors, as reported by the master, or -1
+	 * before the master has answered.
+	 */
+	public int getSectorSize(){
+		return sectorSize;
+	}
+	
+	/**
+	 * Returns true once the requested range has been received and written.
+	 */
+	public boolean isComplete(){
+		return complete;
+	}
+	
 	@Override
 	protected void initializeFromArguments(String[] args) throws InvalidCommandException{
-		if(args.length < 2){
-			throw new InvalidCommandException("Invalid put syntax.  "+
-					"Usage: put <AEFS file name>");
+		if(args.length != 2 && args.length != 4){
+			throw new InvalidCommandException("Invalid get syntax.  "+
+					"Usage: get <AEFS file name> [<offset> <length>]");
 		}
 		
 		this.destName = args[1];
+		
+		if(args.length == 4){
+			try{
+				this.rangeOffset = Long.parseLong(args[2]);
+				this.rangeLength = Long.parseLong(args[3]);
+			} catch(NumberFormatException e){
+				throw new InvalidCommandException("Get offset and length must be numeric.");
+			}
+			if(rangeOffset < 0 || rangeLength < 0){
+				throw new InvalidCommandException("Get offset and length must be "+
+						"non-negative.");
+			}
+		}
 	}
 	
 	@Override
@@ -74,55 +179,9 @@ public class ClientGetRequest extends ClientRequest {
 					// write the requested pad
 					this.out.write(pad); this.out.buffer();
 					
-					DataOutputStream dout = new DataOutputStream(this.out);
-					DataInputStream din = new DataInputStream(this.in);
-					
-					// send name
-					StreamUtils.writeAdvertisedBytes(dout, destName.getBytes());
-					this.out.buffer();
-					
-					this.in.discardBuffer();
-					
-					// receive encrypted key
-					Ciphertext encryptedKey = new Waters08Ciphertext();
-					encryptedKey.deserialize(this.in, fromClient.publicParams);
-					
-					FileOutputStream fout = new FileOutputStream(destName);
-					
-					byte[] keyMaterial = null;
-					try{
-						Waters08ABEScheme s = new Waters08ABEScheme();
-						s.setPublicParameters(fromClient.publicParams);
-						keyMaterial = s.decrypt(encryptedKey, fromClient.privateKey);
-						
-						Cipher decryptor = Cipher.getInstance("AES/CBC/NoPadding");
-						
-						decryptor.init(Cipher.DECRYPT_MODE, new SecretKeySpec(
-								ArrayUtils.copyOfRange(keyMaterial, 0, 32), 0, key.length, "AES"), 
-								new IvParameterSpec(ArrayUtils.copyOfRange(keyMaterial, 32, 48)));
-						
-						byte[] sector = new byte[4096];
-						try{
-							while(true){
-								din.readFully(sector);
-								byte[] decrypted = decryptor.doFinal(sector);
-								byte[] data = ArrayUtils.copyOfRange(decrypted, 16, 4096);
-								fout.write(data);
-							}
-						} catch(Exception e){ }
-						
-					} catch(Exception e){
-						SimpleLogger.error("Unable to decrypt file.");
-						e.printStackTrace();
-					} finally{
-						try{
-							fout.close();
-						} catch(Exception e){ }
-					}
-					
-				
+					doRequestInSession(fromClient, this.in, this.out);
 				} catch(IOException e){
-					SimpleLogger.error("Unable to negotiate put request.");
+					SimpleLogger.error("Unable to negotiate get request.");
 				}
 			}
 		};
@@ -131,4 +190,253 @@ public class ClientGetRequest extends ClientRequest {
 				fromClient.sessionKey.sessionIV, null, out, new SecureRandom(), null);
 	}
 	
+	@Override
+	public boolean isSessionCapable(){
+		return true;
+	}
+	
+	@Override
+	public void doRequestInSession(AEFSClient fromClient, RandomlyPaddedDecryptionStream in,
+			RandomlyPaddedEncryptionStream out) throws IOException {
+		DataOutputStream dout = new DataOutputStream(out);
+		DataInputStream din = new DataInputStream(in);
+		
+		// send name and whether sectors should be sent directly from disk
+		StreamUtils.writeAdvertisedBytes(dout, destName.getBytes());
+		dout.writeBoolean(fromClient.directTransfers && fromClient.connection != null &&
+				in.isFramed());
+		dout.writeLong(rangeOffset);
+		dout.writeLong(rangeLength);
+		out.buffer();
+		
+		in.discardBuffer();
+		
+		// receive response
+		if(!din.readBoolean()){
+			String response = new String(StreamUtils.readAdvertisedBytes(din));
+			SimpleLogger.error("Get request rejected by server.  Message from server: \n\t"+
+					response);
+			return;
+		}
+		
+		// receive encrypted key
+		Ciphertext encryptedKey = new Waters08Ciphertext();
+		encryptedKey.deserialize(in, fromClient.publicParams);
+		long firstSector = din.readLong();
+		long sectorCount = din.readLong();
+		totalSectors = din.readLong();
+		sectorSize = din.readInt();
+		if(!EncryptedFileSector.isValidSectorSize(sectorSize)){
+			throw new IOException("Invalid sector size from server.");
+		}
+		
+		// root of the file's tree, its MAC if the file was written whole, and
+		// the nodes needed to check the range against it
+		byte[] treeRoot = null;
+		byte[] rootMAC = null;
+		List<byte[]> proof = new ArrayList<byte[]>();
+		if(din.readBoolean()){
+			treeRoot = new byte[SectorTree.HASH_LENGTH];
+			din.readFully(treeRoot);
+			if(din.readBoolean()){
+				rootMAC = new byte[SectorTree.HASH_LENGTH];
+				din.readFully(rootMAC);
+			}
+			int proofCount = din.readInt();
+			for(int i = 0; i < proofCount; ++i){
+				byte[] node = new byte[SectorTree.HASH_LENGTH];
+				din.readFully(node);
+				proof.add(node);
+			}
+		}
+		boolean direct = din.readBoolean();
+		
+		final long rangeEnd = rangeLength < 0 ? Long.MAX_VALUE : rangeOffset + rangeLength;
+		
+		// sectors are decrypted on the client's pool
+		ParallelSectorCodec codec = null;
+		try{
+			if(keyMaterial == null){
+				Waters08ABEScheme s = new Waters08ABEScheme();
+				s.setPublicParameters(fromClient.publicParams);
+				s.setPairingPool(fromClient.pairingPool);
+				keyMaterial = s.decrypt(encryptedKey, fromClient.privateKey);
+			}
+			
+			codec = new ParallelSectorCodec(sectorSize, ArrayUtils.copyOfRange(keyMaterial, 0, 32),
+					ArrayUtils.copyOfRange(keyMaterial, 32, 48), fromClient.sectorPool);
+		} catch(Exception e){
+			SimpleLogger.error("Unable to decrypt file.");
+			e.printStackTrace();
+		}
+		
+		// Direct sectors arrive on the raw socket once the client has sent a nonce
+		// for the MAC covering them.  The MAC of a range of a file with a tree
+		// covers the digest of the range's leaves rather than of its sectors.
+		DataInputStream sectorIn = din;
+		MessageDigest md = null;
+		byte[] nonce = null;
+		boolean leafMAC = treeRoot != null && 
+				!(firstSector == 0 && sectorCount == totalSectors);
+		if(direct){
+			in.discardBuffer();
+			
+			nonce = new byte[16];
+			new SecureRandom().nextBytes(nonce);
+			out.write(nonce);
+			out.buffer();
+			
+			try{
+				md = leafMAC ? SectorTree.newDigest() : PayloadMAC.newDigest();
+			} catch(GeneralSecurityException e){
+				throw new IOException(e);
+			}
+			sectorIn = new DataInputStream(fromClient.connection.getRawInputStream());
+		}
+		
+		// sectors are only digested when their own digest is MACed
+		MessageDigest sectorDigest = leafMAC ? null : md;
+		
+		MessageDigest leafDigest = null;
+		List<byte[]> leaves = new ArrayList<byte[]>();
+		if(treeRoot != null){
+			try{
+				leafDigest = SectorTree.newDigest();
+			} catch(GeneralSecurityException e){
+				throw new IOException(e);
+			}
+		}
+		
+		FileOutputStream fout = null;
+		FileChannel target = output;
+		if(target == null && codec != null){
+			fout = new FileOutputStream(destName);
+			target = fout.getChannel();
+		}
+		
+		// each batch's contents within the requested range are gathered into a
+		// buffer and written behind, where they belong, by a thread of their own,
+		// in whatever order the batches are decrypted
+		ParallelSectorCodec.Decoder decoder = null;
+		WriteBehindChannel writeBehind = null;
+		if(codec != null && target != null){
+			final int capacity = EncryptedFileSector.getCapacity(sectorSize);
+			final WriteBehindChannel sectorTarget = new WriteBehindChannel(target, 
+					codec.getBatchSectors() * capacity, WRITE_BUFFERS);
+			writeBehind = sectorTarget;
+			decoder = codec.newDecoder(firstSector, leafDigest != null ? leaves : null, 
+					new ParallelSectorCodec.DecryptedSectorSink(){
+				public void sectors(long first, int count, byte[] decrypted) throws IOException {
+					ByteBuffer data = sectorTarget.takeBuffer();
+					long position = -1;
+					for(int i = 0; i < count; ++i){
+						int offset = i * sectorSize;
+						long sectorStart = (first + i) * capacity;
+						long from = Math.max(0, rangeOffset - sectorStart);
+						long to = Math.min(EncryptedFileSector.getDataLength(decrypted, offset,
+								sectorSize), rangeEnd - sectorStart);
+						if(to > from){
+							if(position < 0){
+								position = outputPosition + sectorStart + from - rangeOffset;
+							}
+							data.put(decrypted, offset + 16 + (int) from, (int) (to - from));
+						}
+					}
+					
+					// the range is contiguous, so a batch's part of it is too
+					if(position < 0){
+						sectorTarget.returnBuffer(data);
+					} else{
+						sectorTarget.write(data, position);
+					}
+				}
+			});
+		}
+		try{
+			// sectors are always read in full so that the channel stays usable;
+			// sectors sent in the channel arrive without their trailing zeros
+			byte[] sector = new byte[sectorSize];
+			for(long i = 0; i < sectorCount; ++i){
+				int used = sector.length;
+				if(!direct){
+					used = din.readInt();
+					if(used < 0 || used > sector.length){
+						throw new IOException("Invalid sector length from server.");
+					}
+				}
+				if(decoder != null){
+					decoder.readSector(sectorIn, used, sectorDigest);
+					continue;
+				}
+				
+				sectorIn.readFully(sector, 0, used);
+				Arrays.fill(sector, used, sector.length, (byte) 0);
+				if(sectorDigest != null) sectorDigest.update(sector);
+				if(leafDigest != null){
+					leaves.add(SectorTree.leaf(leafDigest, sector, 0, sector.length));
+				}
+			}
+			if(decoder != null) decoder.finish();
+			if(writeBehind != null) writeBehind.finish();
+		} finally{
+			if(decoder != null) decoder.close();
+			if(writeBehind != null) writeBehind.close();
+			try{
+				fout.close();
+			} catch(Exception e){ }
+		}
+		
+		if(direct){
+			byte[] mac = new byte[PayloadMAC.MAC_LENGTH];
+			din.readFully(mac);
+			
+			byte[] digest = leafMAC ? SectorTree.rangeDigest(md, leaves) : md.digest();
+			
+			boolean valid;
+			try{
+				valid = PayloadMAC.matches(PayloadMAC.compute(fromClient.sessionKey.sessionKey,
+						nonce, destName, firstSector, sectorCount, digest), mac);
+			} catch(GeneralSecurityException e){
+				valid = false;
+			}
+			
+			if(!valid){
+				if(output == null) new File(destName).delete();
+				SimpleLogger.error("Integrity check failed for "+destName+".  File discarded.");
+				return;
+			}
+		}
+		
+		if(treeRoot != null && !verifyTree(firstSector, leaves, proof, treeRoot, rootMAC)){
+			if(output == null) new File(destName).delete();
+			SimpleLogger.error("Sector tree check failed for "+destName+".  File discarded.");
+			return;
+		}
+		
+		complete = codec != null;
+	}
+	
+	/**
+	 * Checks the leaves of the received sectors against the root of the file's
+	 * tree, and the root against its MAC when the master holds one.
+	 */
+	private boolean verifyTree(long firstSector, List<byte[]> leaves, List<byte[]> proof,
+			byte[] treeRoot, byte[] rootMAC){
+		try{
+			byte[] root = SectorTree.root(SectorTree.newDigest(), totalSectors, firstSector,
+					leaves, proof);
+			if(root == null || !MessageDigest.isEqual(root, treeRoot)){
+				return false;
+			}
+			
+			if(rootMAC != null && keyMaterial != null){
+				return MessageDigest.isEqual(rootMAC, SectorTree.rootMAC(
+						ArrayUtils.copyOfRange(keyMaterial, 0, 32), destName, totalSectors, root));
+			}
+			return true;
+		} catch(GeneralSecurityException e){
+			return false;
+		}
+	}
+	
 }
@@ -48,6 +48,7 @@ public class ClientMasterSessionRequest extends ClientRequest {
 			Waters08ABEScheme s = new Waters08ABEScheme();
 			try{
 				s.setPublicParameters(fromClient.publicParams);
+				s.setPairingPool(fromClient.pairingPool);
 				byte[] o = s.decrypt(sessionKey.encrypted, fromClient.privateKey);
 			
 				// session key
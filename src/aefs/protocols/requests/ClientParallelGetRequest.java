@@ -0,0 +1,95 @@
+package aefs.protocols.requests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import misc.logging.SimpleLogger;
+import aefs.client.AEFSClient;
+import aefs.encryption.EncryptedFileSector;
+
+/**
+ * Gets a file over several concurrent connections.  A first, empty ranged
+ * get learns the file's size and key; each connection then carries a
+ * ranged get of one contiguous sector range, written in place into the
+ * output file.
+ */
+public class ClientParallelGetRequest extends ClientParallelRequest {
+	
+	private String destName;
+	
+	public ClientParallelGetRequest(){
+		super("pget");
+	}
+	
+	@Override
+	protected void initializeFromArguments(String[] args) throws InvalidCommandException{
+		if(args.length != 3){
+			throw new InvalidCommandException("Invalid pget syntax.  "+
+					"Usage: pget <streams> <AEFS file name>");
+		}
+		
+		parseStreams(args[1]);
+		this.destName = args[2];
+	}
+	
+	@Override
+	public void initiateRequest(AEFSClient fromClient) throws MalformedRequestException{
+		RandomAccessFile file = null;
+		boolean complete = false;
+		try{
+			file = new RandomAccessFile(destName, "rw");
+			file.setLength(0);
+			FileChannel output = file.getChannel();
+			
+			// learn the size of the file and its key
+			ClientGetRequest probe = new ClientGetRequest(destName, 0, 0);
+			probe.setOutput(output, 0);
+			probe.initiateRequest(fromClient);
+			if(probe.getTotalSectors() < 0 || probe.getKeyMaterial() == null){
+				return;
+			}
+			
+			long totalSectors = probe.getTotalSectors();
+			long perStream = Math.max(1, (totalSectors + streams - 1) / streams);
+			long sectorData = EncryptedFileSector.getCapacity(probe.getSectorSize());
+			
+			List<ClientGetRequest> parts = new ArrayList<ClientGetRequest>();
+			for(long first = 0; first < totalSectors; first += perStream){
+				long count = Math.min(perStream, totalSectors - first);
+				ClientGetRequest part = new ClientGetRequest(destName, first * sectorData,
+						count * sectorData);
+				part.setOutput(output, first * sectorData);
+				part.setKeyMaterial(probe.getKeyMaterial());
+				parts.add(part);
+			}
+			
+			runInParallel(fromClient, parts);
+			
+			for(ClientGetRequest part : parts){
+				if(!part.isComplete()){
+					SimpleLogger.error("Parallel get of "+destName+" incomplete.");
+					return;
+				}
+			}
+			
+			complete = true;
+			SimpleLogger.info("Parallel get of "+destName+" complete over "+parts.size()+
+					" streams.");
+		} catch(IOException e){
+			throw new MalformedRequestException("Unable to write "+destName+".");
+		} finally{
+			try{
+				file.close();
+			} catch(Exception e){ }
+			
+			if(!complete){
+				new File(destName).delete();
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,114 @@
+package aefs.protocols.requests;
+
+import java.io.File;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import misc.logging.SimpleLogger;
+import abe.ABEScheme.InvalidPublicParametersException;
+import abe.Ciphertext;
+import abe.lsss.LSSSNode;
+import abe.policy.AccessPolicyInterpreter;
+import abe.policy.AccessPolicyNode;
+import abe.policy.NoSuchAttributeException;
+import abe.schemes.waters08.Waters08ABEScheme;
+import abe.schemes.waters08.Waters08MasterPublicParameters;
+import aefs.client.AEFSClient;
+import aefs.encryption.StreamedFileEncryptor;
+import aefs.protocols.authorization.MasterSessionKey;
+
+/**
+ * Puts a file over several concurrent connections.  The file key is chosen
+ * and attribute-encrypted once; each connection then carries a put of one
+ * contiguous sector range under that key.  The ranges share a random
+ * transfer id, under which the master stages them until all have arrived
+ * intact, and only then replaces the stored file.
+ */
+public class ClientParallelPutRequest extends ClientParallelRequest {
+	
+	private String destName;
+	private String localPath;
+	private String accessPolicy;
+	
+	public ClientParallelPutRequest(){
+		super("pput");
+	}
+	
+	@Override
+	protected void initializeFromArguments(String[] args) throws InvalidCommandException{
+		if(args.length < 5){
+			throw new InvalidCommandException("Invalid pput syntax.  "+
+					"Usage: pput <streams> <AEFS file name> <local path> "+
+					"<attribute access policy>");
+		}
+		
+		parseStreams(args[1]);
+		this.destName = args[2];
+		this.localPath = args[3];
+		
+		this.accessPolicy = "";
+		for(int i = 4; i < args.length; ++i) {
+			this.accessPolicy += args[i]+(i < args.length - 1 ? " " : "");
+		}
+		
+		// check to see if file exists
+		if(!new File(this.localPath).exists()){
+			throw new InvalidCommandException("Specified file does not exist.");
+		}
+	}
+	
+	@Override
+	public void initiateRequest(AEFSClient fromClient) throws MalformedRequestException{
+		// Encrypt key under CP-ABE
+		AccessPolicyNode p = AccessPolicyInterpreter.parsePolicy(accessPolicy);
+		LSSSNode n = null;
+		try{
+			n = p.toLSSSNode(fromClient.publicParams);
+		} catch(NoSuchAttributeException e){
+			SimpleLogger.error("Access policy contains invalid attributes.");
+			return;
+		}
+		
+		Waters08ABEScheme scheme = new Waters08ABEScheme();
+		try{
+			scheme.setPublicParameters(fromClient.publicParams);
+		} catch(InvalidPublicParametersException e){
+			SimpleLogger.error("Unable to initialize ABE scheme given public parameters.");
+			return;
+		}
+		
+		SecureRandom rng = new SecureRandom();
+		byte[] keyMaterial = MasterSessionKey.generateRandom(64, ((Waters08MasterPublicParameters)
+				fromClient.publicParams).getMappingGroup(), rng);
+		Ciphertext encryptedFileKey = scheme.encrypt(n.getMatrix(), keyMaterial, rng);
+		
+		// split the file into one contiguous sector range per stream
+		long totalSectors = StreamedFileEncryptor.sectorCount(new File(localPath).length(),
+				fromClient.sectorSize);
+		long perStream = Math.max(1, (totalSectors + streams - 1) / streams);
+		
+		long transfer = rng.nextLong();
+		
+		List<ClientPutRequest> parts = new ArrayList<ClientPutRequest>();
+		long first = 0;
+		do{
+			long count = Math.min(perStream, totalSectors - first);
+			parts.add(new ClientPutRequest(destName, localPath, accessPolicy, keyMaterial,
+					encryptedFileKey, first, count, transfer));
+			first += count;
+		} while(first < totalSectors);
+		
+		runInParallel(fromClient, parts);
+		
+		for(ClientPutRequest part : parts){
+			if(!part.isComplete()){
+				SimpleLogger.error("Parallel put of "+destName+" incomplete.");
+				return;
+			}
+		}
+		SimpleLogger.info("Parallel put of "+destName+" complete over "+parts.size()+
+				" streams.");
+	}
+	
+}
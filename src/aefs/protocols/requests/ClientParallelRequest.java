@@ -0,0 +1,85 @@
+package aefs.protocols.requests;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import misc.logging.SimpleLogger;
+import aefs.client.AEFSClient;
+
+/**
+ * Request which moves a single file over several concurrent connections to
+ * the master, each carrying a disjoint range of the file's sectors.  Sectors
+ * are encrypted independently, so the ranges may be transferred in any order;
+ * the master stages the ranges of a put until all of them have arrived.
+ *
+ * Each stream counts against the master's per-client connection limit.
+ */
+public abstract class ClientParallelRequest extends ClientRequest {
+	
+	protected int streams;
+	
+	public ClientParallelRequest(String requestType){
+		super(requestType);
+	}
+	
+	/**
+	 * Parses the number of streams from a command argument.
+	 * @param arg command argument
+	 * @throws InvalidCommandException if the argument is not a positive number
+	 */
+	protected void parseStreams(String arg) throws InvalidCommandException {
+		try{
+			streams = Integer.parseInt(arg);
+		} catch(NumberFormatException e){
+			streams = 0;
+		}
+		
+		if(streams < 1){
+			throw new InvalidCommandException("Number of streams must be a positive number.");
+		}
+	}
+	
+	/**
+	 * Issues each of the passed requests over a connection of its own, all at
+	 * once, and waits for them to finish.
+	 * @param fromClient client issuing the requests
+	 * @param parts requests to issue
+	 */
+	protected void runInParallel(final AEFSClient fromClient,
+			List<? extends ClientRequest> parts){
+		List<Thread> threads = new ArrayList<Thread>();
+		
+		for(final ClientRequest part : parts){
+			Thread t = new Thread(){
+				public void run(){
+					try{
+						part.initiateOnNewConnection(fromClient);
+					} catch(MalformedRequestException e){
+						SimpleLogger.error(e.getMessage());
+					}
+				}
+			};
+			t.start();
+			threads.add(t);
+		}
+		
+		for(Thread t : threads){
+			try{
+				t.join();
+			} catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+	
+	@Override
+	public void doRequest(AEFSClient fromClient, OutputStream out, InputStream in)
+			throws IOException {
+		throw new IOException("Parallel requests open a connection per stream.");
+	}
+	
+}
@@ -6,7 +6,12 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import misc.io.ArrayUtils;
 import misc.io.StreamUtils;
@@ -23,7 +28,10 @@ import abe.schemes.waters08.Waters08MasterPublicParameters;
 import aefs.client.AEFSClient;
 import aefs.encryption.EncryptedChannel;
 import aefs.encryption.EncryptedChannel.ChannelRoutine;
-import aefs.encryption.FileEncryptionException;
+import aefs.encryption.ParallelSectorCodec;
+import aefs.encryption.RandomlyPaddedDecryptionStream;
+import aefs.encryption.RandomlyPaddedEncryptionStream;
+import aefs.encryption.SectorTree;
 import aefs.encryption.StreamedFileEncryptor;
 import aefs.protocols.authorization.MasterSessionKey;
 
@@ -33,6 +41,17 @@ public class ClientPutRequest extends ClientRequest {
 	private String localPath;
 	private String accessPolicy;
 	
+	// Set when this request carries one range of a file sent over several
+	// connections; the file key is then chosen and encrypted once for all,
+	// and the master stages the ranges under the transfer's id.
+	private long firstSector = 0;
+	private long sectorCount = -1;
+	private long transfer = 0;
+	private byte[] keyMaterial;
+	private Ciphertext encryptedFileKey;
+	
+	private boolean complete = false;
+	
 	public ClientPutRequest(){ 
 		super("put");
 	}
@@ -45,6 +64,40 @@ public class ClientPutRequest extends ClientRequest {
 		this.accessPolicy = accessPolicy;
 	}
 	
+	/**
+	 * Creates a request carrying one sector range of a file whose key has
+	 * already been chosen.
+	 * @param destName AEFS file name
+	 * @param localPath path of the local file
+	 * @param accessPolicy attribute access policy
+	 * @param keyMaterial file key material
+	 * @param encryptedFileKey attribute-encrypted file key material
+	 * @param firstSector index of the first sector to send
+	 * @param sectorCount number of sectors to send
+	 * @param transfer id shared by the requests carrying the file's ranges
+	 */
+	public ClientPutRequest(String destName, String localPath, String accessPolicy,
+			byte[] keyMaterial, Ciphertext encryptedFileKey, long firstSector, 
+				long sectorCount, long transfer){
+		this(destName, localPath, accessPolicy);
+		
+		this.keyMaterial = keyMaterial;
+		this.encryptedFileKey = encryptedFileKey;
+		this.firstSector = firstSector;
+		this.sectorCount = sectorCount;
+		this.transfer = transfer;
+	}
+	
+	/**
+	 * Returns true once the master has acknowledged the full request.  The 
+	 * master acknowledges a range of a file sent over several connections
+	 * once it has stored the range aside; the file is only replaced once 
+	 * every range has been acknowledged.
+	 */
+	public boolean isComplete(){
+		return complete;
+	}
+	
 	@Override
 	protected void initializeFromArguments(String[] args) throws InvalidCommandException{
 		if(args.length < 4){
@@ -95,70 +148,7 @@ public class ClientPutRequest extends ClientRequest {
 					// write the requested pad
 					this.out.write(pad); this.out.buffer();
 					
-					DataOutputStream dout = new DataOutputStream(this.out);
-					DataInputStream din = new DataInputStream(this.in);
-					
-					// send name and access policy
-					StreamUtils.writeAdvertisedBytes(dout, destName.getBytes());
-					StreamUtils.writeAdvertisedBytes(dout, accessPolicy.getBytes());
-					
-					this.out.buffer();
-					
-					this.in.discardBuffer(); // discard buffer
-					// receive response
-					if(!din.readBoolean()){
-						String response = new String(StreamUtils.readAdvertisedBytes(din));
-						SimpleLogger.error("Put request rejected by server.  Message from server: \n\t"+
-								response);
-					}
-					
-					// Choose key material
-					SecureRandom rng = new SecureRandom();
-					byte[] keyMaterial = MasterSessionKey.generateRandom(64, ((Waters08MasterPublicParameters)
-							fromClient.publicParams).getMappingGroup(), rng);
-					
-					// Encrypt key under CP-ABE
-					AccessPolicyNode p = AccessPolicyInterpreter.parsePolicy(accessPolicy);
-					LSSSNode n = null;
-					try{
-						n = p.toLSSSNode(fromClient.publicParams);
-					} catch(NoSuchAttributeException e){
-						SimpleLogger.error("Access policy contains invalid attributes.");
-						return;
-					}
-					
-					ShareGeneratingMatrix m = n.getMatrix();
-					
-					// Encrypt the generated key
-					Waters08ABEScheme scheme = new Waters08ABEScheme();
-					try{
-						scheme.setPublicParameters(fromClient.publicParams);
-					} catch(InvalidPublicParametersException e){
-						SimpleLogger.error("Unable to initialize ABE scheme given public parameters.");
-						return;
-					}
-					
-					// Send encrypted file key
-					Ciphertext encryptedFileKey = scheme.encrypt(m, keyMaterial, rng);
-					this.out.write(encryptedFileKey.serialize());
-					
-					StreamedFileEncryptor fEnc = null;
-					try{
-						// send encrypted file
-						fEnc = new StreamedFileEncryptor(localPath, 4096, 
-								ArrayUtils.copyOfRange(keyMaterial, 0, 32),
-								ArrayUtils.copyOfRange(keyMaterial, 32, 48));
-						while(fEnc.hasNext()){
-							this.out.write(fEnc.encryptNextSector().getBytes());
-						}
-					} catch(FileEncryptionException e){
-						SimpleLogger.error("Unable to send encrypted file.");
-						return;
-					} finally{
-						fEnc.close();
-					}
-					
-					// TODO integrity check
+					doRequestInSession(fromClient, this.in, this.out);
 				} catch(IOException e){
 					SimpleLogger.error("Unable to negotiate put request.");
 				}
@@ -169,4 +159,121 @@ public class ClientPutRequest extends ClientRequest {
 				fromClient.sessionKey.sessionIV, null, out, new SecureRandom(), null);
 	}
 	
+	@Override
+	public boolean isSessionCapable(){
+		return true;
+	}
+	
+	@Override
+	public void doRequestInSession(AEFSClient fromClient, RandomlyPaddedDecryptionStream in,
+			RandomlyPaddedEncryptionStream out) throws IOException {
+		// Encrypt key under CP-ABE
+		AccessPolicyNode p = AccessPolicyInterpreter.parsePolicy(accessPolicy);
+		LSSSNode n = null;
+		try{
+			n = p.toLSSSNode(fromClient.publicParams);
+		} catch(NoSuchAttributeException e){
+			SimpleLogger.error("Access policy contains invalid attributes.");
+			return;
+		}
+		
+		ShareGeneratingMatrix m = n.getMatrix();
+		
+		Waters08ABEScheme scheme = new Waters08ABEScheme();
+		try{
+			scheme.setPublicParameters(fromClient.publicParams);
+		} catch(InvalidPublicParametersException e){
+			SimpleLogger.error("Unable to initialize ABE scheme given public parameters.");
+			return;
+		}
+		
+		DataOutputStream dout = new DataOutputStream(out);
+		DataInputStream din = new DataInputStream(in);
+		
+		// send name and access policy
+		StreamUtils.writeAdvertisedBytes(dout, destName.getBytes());
+		StreamUtils.writeAdvertisedBytes(dout, accessPolicy.getBytes());
+		
+		out.buffer();
+		
+		in.discardBuffer(); // discard buffer
+		// receive response
+		if(!din.readBoolean()){
+			String response = new String(StreamUtils.readAdvertisedBytes(din));
+			SimpleLogger.error("Put request rejected by server.  Message from server: \n\t"+
+					response);
+			return;
+		}
+		
+		if(keyMaterial == null){
+			// Choose key material
+			SecureRandom rng = new SecureRandom();
+			keyMaterial = MasterSessionKey.generateRandom(64, ((Waters08MasterPublicParameters)
+					fromClient.publicParams).getMappingGroup(), rng);
+			
+			// Encrypt the generated key
+			encryptedFileKey = scheme.encrypt(m, keyMaterial, rng);
+		}
+		
+		// send the encrypted key
+		out.write(encryptedFileKey.serialize());
+		
+		try{
+			// send encrypted file, encrypting its sectors on the client's pool
+			ParallelSectorCodec codec = new ParallelSectorCodec(fromClient.sectorSize,
+					ArrayUtils.copyOfRange(keyMaterial, 0, 32),
+					ArrayUtils.copyOfRange(keyMaterial, 32, 48), fromClient.sectorPool);
+			long totalSectors = StreamedFileEncryptor.sectorCount(new File(localPath).length(),
+					fromClient.sectorSize);
+			long count = sectorCount < 0 ? totalSectors - firstSector : sectorCount;
+			
+			dout.writeLong(firstSector);
+			dout.writeLong(count);
+			dout.writeLong(totalSectors);
+			dout.writeInt(fromClient.sectorSize);
+			dout.writeLong(transfer);
+			
+			// hash the sectors sent so the master can check what it stored; a
+			// whole file is also hashed into its tree, whose root is MACed
+			final boolean wholeFile = firstSector == 0 && count == totalSectors;
+			MessageDigest leafDigest = SectorTree.newDigest();
+			final MessageDigest rangeDigest = SectorTree.newDigest();
+			final List<byte[]> leaves = new ArrayList<byte[]>();
+			
+			codec.encrypt(localPath, fromClient.compressSectors, firstSector, count, true,
+					new ParallelSectorCodec.EncryptedSectorSink(){
+				public void sector(byte[] sectors, int offset, int used, byte[] leaf)
+						throws IOException {
+					// sectors are sent without their trailing blocks of zeros
+					dout.writeInt(used);
+					out.write(sectors, offset, used);
+					
+					rangeDigest.update(leaf);
+					if(wholeFile) leaves.add(leaf);
+				}
+			});
+			
+			dout.write(rangeDigest.digest());
+			dout.writeBoolean(wholeFile);
+			if(wholeFile){
+				byte[] root = SectorTree.root(leafDigest, totalSectors, 0, leaves,
+						Collections.<byte[]>emptyList());
+				dout.write(SectorTree.rootMAC(ArrayUtils.copyOfRange(keyMaterial, 0, 32), 
+						destName, totalSectors, root));
+			}
+			out.buffer();
+		} catch(GeneralSecurityException e){
+			throw new IOException("Unable to encrypt file.", e);
+		}
+		
+		// wait for the server to acknowledge the full file
+		in.discardBuffer();
+		if(!din.readBoolean()){
+			SimpleLogger.error("Put request not acknowledged by server.");
+			return;
+		}
+		
+		complete = true;
+	}
+	
 }
@@ -3,12 +3,13 @@ package aefs.protocols.requests;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
 
 import aefs.client.AEFSClient;
+import aefs.encryption.RandomlyPaddedDecryptionStream;
+import aefs.encryption.RandomlyPaddedEncryptionStream;
 import aefs.protocols.ControlMessage;
 import aefs.protocols.authorization.MasterSessionKey;
 
@@ -49,11 +50,47 @@ public abstract class ClientRequest{
 	public abstract void doRequest(AEFSClient fromClient, OutputStream out, InputStream in) 
 			throws IOException;
 	
+	/**
+	 * Returns true if this request may be issued over the encrypted channel of
+	 * a persistent connection.
+	 */
+	public boolean isSessionCapable(){
+		return false;
+	}
+	
+	/**
+	 * Performs the primary request action over the encrypted channel of an
+	 * established persistent connection.
+	 * @param fromClient client originating the request
+	 * @param in decryption stream from the master
+	 * @param out encryption stream to the master
+	 */
+	public void doRequestInSession(AEFSClient fromClient, RandomlyPaddedDecryptionStream in,
+			RandomlyPaddedEncryptionStream out) throws IOException {
+		throw new IOException("Request type not supported over a persistent connection.");
+	}
+	
 	/**
 	 * Method to be called when a client issues a request.
 	 * @param fromClient client issuing request
 	 */
 	public void initiateRequest(AEFSClient fromClient) throws MalformedRequestException{
+		// reuse the client's persistent connection if one is open
+		if(fromClient.connection != null && isSessionCapable()){
+			fromClient.connection.submit(this);
+			return;
+		}
+		
+		initiateOnNewConnection(fromClient);
+	}
+	
+	/**
+	 * Issues this request over a connection of its own, even if the client
+	 * holds a persistent connection.
+	 * @param fromClient client issuing request
+	 */
+	public void initiateOnNewConnection(AEFSClient fromClient) 
+			throws MalformedRequestException{
 		String address = fromClient.masterAddress;
 		Integer port = fromClient.masterPort;
 		
@@ -65,11 +102,16 @@ public abstract class ClientRequest{
 			InputStream in = s.getInputStream();
 			
 			// Send request body
-			new ObjectOutputStream(out).writeObject(this.getContent());
+			ControlMessageCodec codec = new ControlMessageCodec();
+			codec.write(this.getContent(), out);
+			codec.readStatus(in);
 			
 			doRequest(fromClient, out, in);
 		} catch(UnknownHostException e){
 			throw new MalformedRequestException("Master hostname cannot be resolved.");
+		} catch(MasterRejectedException e){
+			throw new MalformedRequestException("AEFS master rejected the request ("+
+					e.getMessage()+").  Try again later.");
 		} catch(IOException e){
 			throw new MalformedRequestException("Cannot communicate with AEFS master.");
 		} finally{
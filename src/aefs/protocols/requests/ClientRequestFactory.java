@@ -15,6 +15,16 @@ public class ClientRequestFactory {
 			registerRequestType("get", ClientGetRequest.class);
 	private static Class masterSessionType = 
 			registerRequestType("master-session", ClientPutRequest.class);
+	private static Class connectType = 
+			registerRequestType("connect", ClientConnectRequest.class);
+	private static Class parallelPutType = 
+			registerRequestType("pput", ClientParallelPutRequest.class);
+	private static Class parallelGetType = 
+			registerRequestType("pget", ClientParallelGetRequest.class);
+	private static Class updateType = 
+			registerRequestType("update", ClientUpdateRequest.class);
+	private static Class appendType = 
+			registerRequestType("append", ClientAppendRequest.class);
 	
 	/**
 	 * Internally registers a client request type.
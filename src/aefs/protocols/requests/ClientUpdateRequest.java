@@ -0,0 +1,365 @@
+package aefs.protocols.requests;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import misc.io.ArrayUtils;
+import misc.io.StreamUtils;
+import misc.logging.SimpleLogger;
+import abe.Ciphertext;
+import abe.schemes.waters08.Waters08ABEScheme;
+import abe.schemes.waters08.Waters08Ciphertext;
+import aefs.client.AEFSClient;
+import aefs.encryption.EncryptedChannel;
+import aefs.encryption.EncryptedChannel.ChannelRoutine;
+import aefs.encryption.EncryptedFileSector;
+import aefs.encryption.RandomlyPaddedDecryptionStream;
+import aefs.encryption.RandomlyPaddedEncryptionStream;
+import aefs.encryption.SectorTree;
+
+/**
+ * Writes the contents of a local file into an AEFS file at a given offset,
+ * rewriting only the sectors the contents fall in.  The file's existing key is
+ * reused; each rewritten sector is given the next revision of the sector it
+ * replaces.
+ */
+public class ClientUpdateRequest extends ClientRequest {
+	
+	protected String destName;
+	protected String localPath;
+	
+	// offset at which the local file is written; -1 to append to the file
+	protected long offset = -1;
+	
+	private boolean complete = false;
+	
+	public ClientUpdateRequest(){
+		super("update");
+	}
+	
+	/**
+	 * Creates a request writing a local file into an AEFS file.
+	 * @param destName AEFS file name
+	 * @param localPath path of the local file
+	 * @param offset offset at which to write the local file; -1 to append it
+	 */
+	public ClientUpdateRequest(String destName, String localPath, long offset){
+		super("update");
+		
+		this.destName = destName;
+		this.localPath = localPath;
+		this.offset = offset;
+	}
+	
+	/**
+	 * Returns true once the master has acknowledged the update.
+	 */
+	public boolean isComplete(){
+		return complete;
+	}
+	
+	@Override
+	protected void initializeFromArguments(String[] args) throws InvalidCommandException{
+		if(args.length != 4){
+			throw new InvalidCommandException("Invalid update syntax.  "+
+					"Usage: update <AEFS file name> <offset> <local path>");
+		}
+		
+		this.destName = args[1];
+		this.localPath = args[3];
+		
+		try{
+			this.offset = Long.parseLong(args[2]);
+		} catch(NumberFormatException e){
+			throw new InvalidCommandException("Update offset must be numeric.");
+		}
+		if(offset < 0){
+			throw new InvalidCommandException("Update offset must be non-negative.");
+		}
+		
+		// check to see if file exists
+		if(!new File(this.localPath).exists()){
+			throw new InvalidCommandException("Specified file does not exist.");
+		}
+	}
+	
+	@Override
+	public void doRequest(AEFSClient fromClient, OutputStream out, InputStream in){
+		// send token 
+		try{
+			out.write(fromClient.sessionToken.serialize());
+		} catch(IOException e){
+			SimpleLogger.error("Unable to send session token to AEFS server.");
+			return;
+		}
+		
+		final InputStream eIn = in;
+		ChannelRoutine r = new ChannelRoutine(){
+			public void run(){
+				try{
+					// receive expected pad
+					this.in = EncryptedChannel.startAES256DecryptionChannel(eIn, 
+							fromClient.sessionKey.sessionKey, 
+							fromClient.sessionKey.sessionIV);
+					
+					byte[] pad = new byte[16];
+					this.in.discardBlock(); this.in.read(pad); //random, pad
+					
+					// write the requested pad
+					this.out.write(pad); this.out.buffer();
+					
+					doRequestInSession(fromClient, this.in, this.out);
+				} catch(IOException e){
+					SimpleLogger.error("Unable to negotiate update request.");
+				}
+			}
+		};
+		
+		EncryptedChannel.withAES256Channel(r, fromClient.sessionKey.sessionKey, 
+				fromClient.sessionKey.sessionIV, null, out, new SecureRandom(), null);
+	}
+	
+	@Override
+	public boolean isSessionCapable(){
+		return true;
+	}
+	
+	@Override
+	public void doRequestInSession(AEFSClient fromClient, RandomlyPaddedDecryptionStream in,
+			RandomlyPaddedEncryptionStream out) throws IOException {
+		DataOutputStream dout = new DataOutputStream(out);
+		DataInputStream din = new DataInputStream(in);
+		
+		// send name
+		StreamUtils.writeAdvertisedBytes(dout, destName.getBytes());
+		out.buffer();
+		
+		in.discardBuffer();
+		
+		// receive response
+		if(!din.readBoolean()){
+			String response = new String(StreamUtils.readAdvertisedBytes(din));
+			SimpleLogger.error("Update request rejected by server.  Message from server: \n\t"+
+					response);
+			return;
+		}
+		
+		// receive the file's encrypted key, its size, and the leading block of
+		// its last sector
+		Ciphertext encryptedKey = new Waters08Ciphertext();
+		encryptedKey.deserialize(in, fromClient.publicParams);
+		long storedSectors = din.readLong();
+		int sectorSize = din.readInt();
+		if(!EncryptedFileSector.isValidSectorSize(sectorSize)){
+			throw new IOException("Invalid sector size from server.");
+		}
+		long sectorData = EncryptedFileSector.getCapacity(sectorSize);
+		byte[] lastHead = new byte[16];
+		if(storedSectors > 0){
+			din.readFully(lastHead);
+		}
+		
+		Cipher decryptor = null;
+		Cipher encryptor = null;
+		byte[] fileKey = null;
+		long fileLength = 0;
+		try{
+			Waters08ABEScheme s = new Waters08ABEScheme();
+			s.setPublicParameters(fromClient.publicParams);
+			s.setPairingPool(fromClient.pairingPool);
+			byte[] keyMaterial = s.decrypt(encryptedKey, fromClient.privateKey);
+			
+			fileKey = ArrayUtils.copyOfRange(keyMaterial, 0, 32);
+			SecretKeySpec key = new SecretKeySpec(fileKey, 0, 32, "AES");
+			IvParameterSpec iv = new IvParameterSpec(ArrayUtils.copyOfRange(keyMaterial, 
+					32, 48));
+			decryptor = Cipher.getInstance("AES/CBC/NoPadding");
+			decryptor.init(Cipher.DECRYPT_MODE, key, iv);
+			encryptor = Cipher.getInstance("AES/CBC/NoPadding");
+			encryptor.init(Cipher.ENCRYPT_MODE, key, iv);
+			
+			if(storedSectors > 0){
+				fileLength = (storedSectors - 1) * sectorData + EncryptedFileSector.getDataLength(
+						decryptor.doFinal(lastHead), sectorSize);
+			}
+		} catch(Exception e){
+			SimpleLogger.error("Unable to decrypt file key.");
+			cancel(din, dout, in, out);
+			return;
+		}
+		
+		long start = offset < 0 ? fileLength : offset;
+		long length = new File(localPath).length();
+		if(start > fileLength){
+			SimpleLogger.error("Update offset lies beyond the end of "+destName+" ("+
+					fileLength+" bytes).");
+			cancel(din, dout, in, out);
+			return;
+		}
+		if(length == 0){
+			SimpleLogger.info("Nothing to write to "+destName+".");
+			cancel(din, dout, in, out);
+			return;
+		}
+		
+		// send the range of sectors to be rewritten
+		long end = start + length;
+		long firstSector = start / sectorData;
+		long lastSector = (end - 1) / sectorData;
+		long sectorCount = lastSector - firstSector + 1;
+		long totalSectors = Math.max(storedSectors, lastSector + 1);
+		dout.writeLong(firstSector);
+		dout.writeLong(sectorCount);
+		dout.writeLong(totalSectors);
+		out.buffer();
+		
+		in.discardBuffer();
+		if(!din.readBoolean()){
+			String response = new String(StreamUtils.readAdvertisedBytes(din));
+			SimpleLogger.error("Update request rejected by server.  Message from server: \n\t"+
+					response);
+			return;
+		}
+		
+		// nodes of the updated file's tree beside the range, if it has a tree
+		List<byte[]> proof = null;
+		if(din.readBoolean()){
+			proof = new ArrayList<byte[]>();
+			int proofCount = din.readInt();
+			for(int i = 0; i < proofCount; ++i){
+				byte[] node = new byte[SectorTree.HASH_LENGTH];
+				din.readFully(node);
+				proof.add(node);
+			}
+		}
+		
+		RandomAccessFile local = new RandomAccessFile(localPath, "r");
+		Inflater inflater = new Inflater();
+		try{
+			// receive the sectors being replaced
+			long replaced = Math.max(0, Math.min(lastSector + 1, storedSectors) - firstSector);
+			long[] revisions = new long[(int) replaced];
+			byte[] firstPlain = null;
+			byte[] lastPlain = null;
+			
+			byte[] sector = new byte[sectorSize];
+			for(int i = 0; i < replaced; ++i){
+				long index = firstSector + i;
+				boolean whole = index == firstSector || index == lastSector;
+				din.readFully(sector, 0, whole ? sector.length : 16);
+				
+				byte[] plain = decryptor.doFinal(sector, 0, whole ? sector.length : 16);
+				if(whole){
+					plain = EncryptedFileSector.expand(plain, sectorSize, inflater);
+				}
+				revisions[i] = EncryptedFileSector.getRevision(plain).longValue();
+				if(index == firstSector) firstPlain = plain;
+				if(index == lastSector) lastPlain = plain;
+			}
+			
+			MessageDigest leafDigest = SectorTree.newDigest();
+			MessageDigest rangeDigest = SectorTree.newDigest();
+			List<byte[]> leaves = new ArrayList<byte[]>();
+			
+			// rewrite each sector in the range with the next revision
+			for(long index = firstSector; index <= lastSector; ++index){
+				int i = (int) (index - firstSector);
+				boolean exists = i < replaced;
+				
+				EncryptedFileSector updated = new EncryptedFileSector(sectorSize, 
+						BigInteger.valueOf(index), 
+						BigInteger.valueOf(exists ? revisions[i] + 1 : 0));
+				byte[] bytes = updated.getBytes();
+				
+				// keep the existing contents of partly rewritten sectors
+				int dataLength = 0;
+				byte[] existing = index == firstSector ? firstPlain : 
+						(index == lastSector ? lastPlain : null);
+				if(existing != null){
+					dataLength = EncryptedFileSector.getDataLength(existing, sectorSize);
+					System.arraycopy(existing, 16, bytes, 16, dataLength);
+				}
+				
+				long sectorStart = index * sectorData;
+				long from = Math.max(start, sectorStart);
+				long to = Math.min(end, sectorStart + sectorData);
+				local.seek(from - start);
+				local.readFully(bytes, 16 + (int) (from - sectorStart), (int) (to - from));
+				
+				updated.setDataLength(Math.max(dataLength, (int) (to - sectorStart)));
+				byte[] encrypted = encryptor.doFinal(bytes);
+				out.write(encrypted);
+				
+				byte[] leaf = SectorTree.leaf(leafDigest, encrypted, 0, encrypted.length);
+				rangeDigest.update(leaf);
+				leaves.add(leaf);
+			}
+			
+			// send the hash of the sectors and the MAC of the tree's new root
+			dout.write(rangeDigest.digest());
+			byte[] root = proof == null ? null : 
+					SectorTree.root(leafDigest, totalSectors, firstSector, leaves, proof);
+			dout.writeBoolean(root != null);
+			if(root != null){
+				dout.write(SectorTree.rootMAC(fileKey, destName, totalSectors, root));
+			}
+			out.buffer();
+		} catch(GeneralSecurityException e){
+			// the server is still expecting sectors; the channel cannot be reused
+			throw new IOException("Unable to encrypt updated sectors.", e);
+		} catch(DataFormatException e){
+			throw new IOException("Unable to decompress sectors being updated.", e);
+		} finally{
+			inflater.end();
+			local.close();
+		}
+		
+		// wait for the server to acknowledge the update
+		in.discardBuffer();
+		if(!din.readBoolean()){
+			String response = new String(StreamUtils.readAdvertisedBytes(din));
+			SimpleLogger.error("Update request not acknowledged by server.  Message from "+
+					"server: \n\t"+response);
+			return;
+		}
+		
+		complete = true;
+		SimpleLogger.info("Wrote "+length+" bytes to "+destName+" at offset "+start+".");
+	}
+	
+	/**
+	 * Abandons the update after the master has sent the file's key, sending an
+	 * empty range which the master rejects.
+	 */
+	private void cancel(DataInputStream din, DataOutputStream dout, 
+			RandomlyPaddedDecryptionStream in, RandomlyPaddedEncryptionStream out)
+				throws IOException {
+		dout.writeLong(-1);
+		dout.writeLong(0);
+		dout.writeLong(0);
+		out.buffer();
+		
+		in.discardBuffer();
+		if(!din.readBoolean()){
+			StreamUtils.readAdvertisedBytes(din);
+		}
+	}
+	
+}
@@ -0,0 +1,235 @@
+package aefs.protocols.requests;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import aefs.protocols.ControlMessage;
+
+/**
+ * Encodes and decodes control messages as versioned, length-prefixed binary
+ * frames.  Well-known parameter names are registered with one-byte
+ * identifiers; any other parameter is sent with its name inline.
+ * 
+ * Frame layout (big-endian):
+ * 		[int frame length][byte version][byte parameter count]
+ * 		then per parameter:
+ * 		[byte id]([byte name length][name] if id == 0)[short value length][value]
+ * 
+ * A codec keeps its frame buffer between messages and is therefore not 
+ * thread-safe; a connection should own one codec.
+ */
+public class ControlMessageCodec {
+	
+	public static final int VERSION = 1;
+	public static final int MAX_FRAME_LENGTH = 65536;
+	
+	// admission status sent by the master on each new connection
+	public static final String STATUS_ADMITTED = "admitted";
+	public static final String STATUS_REJECTED = "rejected";
+	
+	private static HashMap<String, Integer> parameterIds = 
+			new HashMap<String, Integer>();
+	private static String[] parameterNames = new String[256];
+	
+	private static int requestTypeParameter = 
+			registerParameter("client-request-type", 1);
+	private static int attributesParameter = 
+			registerParameter("attributes", 2);
+	private static int ttlParameter = 
+			registerParameter("ttl", 3);
+	private static int statusParameter = 
+			registerParameter("status", 4);
+	private static int reasonParameter = 
+			registerParameter("reason", 5);
+	
+	private byte[] buffer = new byte[256];
+	
+	/**
+	 * Internally registers a well-known control message parameter.
+	 * @param parameter parameter name
+	 * @param id one-byte identifier to be sent in place of the name
+	 */
+	private static int registerParameter(String parameter, int id){
+		
+		parameterIds.put(parameter, id);
+		parameterNames[id] = parameter;
+		
+		return id;
+	
+	}
+	
+	/**
+	 * Writes a control message as a single frame.
+	 * @param message message to write
+	 * @param out stream to which the frame is written
+	 * @throws IOException if unable to write or if the message is too large
+	 */
+	public void write(ControlMessage message, OutputStream out) throws IOException {
+		int pos = 4;
+		
+		if(message.getParameters().size() > 255){
+			throw new IOException("Too many control message parameters.");
+		}
+		
+		ensureCapacity(pos + 2);
+		buffer[pos++] = (byte) VERSION;
+		buffer[pos++] = (byte) message.getParameters().size();
+		
+		for(String parameter : message.getParameters()){
+			byte[] value = message.getValue(parameter).getBytes(StandardCharsets.UTF_8);
+			Integer id = parameterIds.get(parameter);
+			
+			if(id != null){
+				ensureCapacity(pos + 3 + value.length);
+				buffer[pos++] = (byte) id.intValue();
+			} else{
+				byte[] name = parameter.getBytes(StandardCharsets.UTF_8);
+				if(name.length > 255){
+					throw new IOException("Control message parameter name too long.");
+				}
+				ensureCapacity(pos + 5 + name.length + value.length);
+				buffer[pos++] = 0;
+				buffer[pos++] = (byte) name.length;
+				System.arraycopy(name, 0, buffer, pos, name.length);
+				pos += name.length;
+			}
+			
+			if(value.length > 0xFFFF){
+				throw new IOException("Control message parameter value too long.");
+			}
+			buffer[pos++] = (byte) (value.length >>> 8);
+			buffer[pos++] = (byte) value.length;
+			System.arraycopy(value, 0, buffer, pos, value.length);
+			pos += value.length;
+		}
+		
+		int length = pos - 4;
+		if(length > MAX_FRAME_LENGTH){
+			throw new IOException("Control message too large.");
+		}
+		buffer[0] = (byte) (length >>> 24);
+		buffer[1] = (byte) (length >>> 16);
+		buffer[2] = (byte) (length >>> 8);
+		buffer[3] = (byte) length;
+		
+		out.write(buffer, 0, pos);
+		out.flush();
+	}
+	
+	/**
+	 * Writes the master's admission status for a new connection.
+	 * @param status STATUS_ADMITTED or STATUS_REJECTED
+	 * @param reason reason for a rejection; may be null
+	 * @param out stream to which the frame is written
+	 * @throws IOException if unable to write
+	 */
+	public void writeStatus(String status, String reason, OutputStream out) 
+			throws IOException {
+		ControlMessage message = new ControlMessage();
+		message.registerParameter(parameterNames[statusParameter], status);
+		if(reason != null){
+			message.registerParameter(parameterNames[reasonParameter], reason);
+		}
+		write(message, out);
+	}
+	
+	/**
+	 * Reads the master's admission status for a new connection.
+	 * @param in stream from which to read
+	 * @throws MasterRejectedException if the master rejected the connection
+	 * @throws IOException if unable to read or if the frame is not a status
+	 */
+	public void readStatus(InputStream in) throws IOException {
+		ControlMessage message = read(in);
+		String status = message.getValue(parameterNames[statusParameter]);
+		
+		if(STATUS_REJECTED.equals(status)){
+			String reason = message.getValue(parameterNames[reasonParameter]);
+			throw new MasterRejectedException(reason == null ? "unspecified" : reason);
+		} else if(!STATUS_ADMITTED.equals(status)){
+			throw new IOException("Invalid admission status from master.");
+		}
+	}
+	
+	/**
+	 * Reads a single control message frame.
+	 * @param in stream from which to read
+	 * @return decoded control message
+	 * @throws EOFException if the stream ends before a frame begins
+	 * @throws IOException if unable to read or if the frame is malformed
+	 */
+	public ControlMessage read(InputStream in) throws IOException {
+		readFully(in, 0, 4);
+		int length = ((buffer[0] & 0xFF) << 24) | ((buffer[1] & 0xFF) << 16) |
+				((buffer[2] & 0xFF) << 8) | (buffer[3] & 0xFF);
+		if(length < 2 || length > MAX_FRAME_LENGTH){
+			throw new IOException("Invalid control message length.");
+		}
+		
+		ensureCapacity(length);
+		readFully(in, 0, length);
+		
+		if(buffer[0] != VERSION){
+			throw new IOException("Unsupported control message version "+buffer[0]+".");
+		}
+		
+		ControlMessage message = new ControlMessage();
+		int count = buffer[1] & 0xFF;
+		int pos = 2;
+		try{
+			for(int i = 0; i < count; ++i){
+				int id = buffer[pos++] & 0xFF;
+				String parameter;
+				if(id == 0){
+					int nameLength = buffer[pos++] & 0xFF;
+					checkBounds(pos + nameLength, length);
+					parameter = new String(buffer, pos, nameLength, StandardCharsets.UTF_8);
+					pos += nameLength;
+				} else{
+					parameter = parameterNames[id];
+					if(parameter == null){
+						throw new IOException("Unknown control message parameter "+id+".");
+					}
+				}
+				
+				int valueLength = ((buffer[pos] & 0xFF) << 8) | (buffer[pos + 1] & 0xFF);
+				pos += 2;
+				checkBounds(pos + valueLength, length);
+				message.registerParameter(parameter, 
+						new String(buffer, pos, valueLength, StandardCharsets.UTF_8));
+				pos += valueLength;
+			}
+		} catch(ArrayIndexOutOfBoundsException e){
+			throw new IOException("Truncated control message.");
+		}
+		
+		return message;
+	}
+	
+	private static void checkBounds(int end, int length) throws IOException {
+		if(end > length){
+			throw new IOException("Truncated control message.");
+		}
+	}
+	
+	private void ensureCapacity(int size){
+		if(buffer.length < size){
+			byte[] larger = new byte[Math.max(size, buffer.length * 2)];
+			System.arraycopy(buffer, 0, larger, 0, buffer.length);
+			buffer = larger;
+		}
+	}
+	
+	private void readFully(InputStream in, int off, int len) throws IOException {
+		while(len > 0){
+			int n = in.read(buffer, off, len);
+			if(n < 0) throw new EOFException();
+			off += n;
+			len -= n;
+		}
+	}
+}
@@ -0,0 +1,11 @@
+package aefs.protocols.requests;
+
+import java.io.IOException;
+
+/**
+ * Exception to be thrown when the master refuses a new connection, e.g.
+ * because it is at capacity.
+ */
+public class MasterRejectedException extends IOException {
+	public MasterRejectedException(String reason){ super(reason); }
+}
@@ -0,0 +1,79 @@
+package aefs.protocols.requests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+
+import aefs.protocols.ControlMessage;
+
+/**
+ * Round-trips a master session request through the control message codec and
+ * through Java serialization, and compares their throughput.  Control messages
+ * were serialized as a ControlMessage wrapping a HashMap; the map is
+ * serialized here in its place.
+ */
+public class Test2 {
+	
+	private static final int ROUNDS = 5;
+	private static final int MESSAGES = 100000;
+	
+	public static void main(String[] args) throws Exception{
+		ControlMessage message = new ControlMessage();
+		message.registerParameter("client-request-type", "master-session");
+		message.registerParameter("attributes", "attribute_1;attribute_2;attribute_3");
+		message.registerParameter("ttl", "3600");
+		
+		// round trip through the codec
+		ControlMessageCodec codec = new ControlMessageCodec();
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		codec.write(message, bo);
+		int frameLength = bo.size();
+		ControlMessage decoded = codec.read(new ByteArrayInputStream(bo.toByteArray()));
+		for(String parameter : message.getParameters()){
+			if(!message.getValue(parameter).equals(decoded.getValue(parameter))){
+				throw new IllegalStateException("Codec changed parameter "+parameter+".");
+			}
+		}
+		if(decoded.getParameters().size() != message.getParameters().size()){
+			throw new IllegalStateException("Codec changed the parameter count.");
+		}
+		
+		HashMap<String, String> map = new HashMap<String, String>();
+		for(String parameter : message.getParameters()){
+			map.put(parameter, message.getValue(parameter));
+		}
+		bo.reset();
+		new ObjectOutputStream(bo).writeObject(map);
+		int serializedLength = bo.size();
+		
+		System.out.println("codec frame "+frameLength+" bytes, serialized "+
+				serializedLength+" bytes");
+		
+		for(int round = 0; round < ROUNDS; ++round){
+			// the first rounds warm up the JIT
+			long t = System.nanoTime();
+			for(int i = 0; i < MESSAGES; ++i){
+				bo.reset();
+				codec.write(message, bo);
+				codec.read(new ByteArrayInputStream(bo.toByteArray()));
+			}
+			long codecTime = System.nanoTime() - t;
+			
+			t = System.nanoTime();
+			for(int i = 0; i < MESSAGES; ++i){
+				bo.reset();
+				ObjectOutputStream out = new ObjectOutputStream(bo);
+				out.writeObject(map);
+				out.flush();
+				new ObjectInputStream(new ByteArrayInputStream(bo.toByteArray())).readObject();
+			}
+			long serializationTime = System.nanoTime() - t;
+			
+			System.out.println(String.format("round %d: codec %.0f messages/s, "+
+					"serialization %.0f messages/s", round, MESSAGES / (codecTime / 1e9),
+					MESSAGES / (serializationTime / 1e9)));
+		}
+	}
+}
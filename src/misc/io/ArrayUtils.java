@@ -19,7 +19,7 @@ public class ArrayUtils {
 		int n = 0;
 		for(int i = segStart; i < segEnd; ++i){
 			byte value = i < 0 ? 0 : from[i];
-			into[n] = value;
+			into[copyStart + n] = value;
 			++n;
 		}
 	}
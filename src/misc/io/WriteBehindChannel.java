@@ -0,0 +1,202 @@
+package misc.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Writes buffers to positions of a file on a thread of its own, so that the
+ * threads producing the data need not wait on the disk.  A fixed number of
+ * buffers circulate between producers and the writer; a producer taking a
+ * buffer waits while all of them are queued for writing, which bounds the
+ * data held in memory.
+ *
+ * Errors met by the writer are reported to the next producer to take a
+ * buffer, and by finish().
+ */
+public class WriteBehindChannel {
+	
+	private FileChannel channel;
+	
+	private ArrayBlockingQueue<ByteBuffer> free;
+	private ArrayBlockingQueue<Write> queue;
+	
+	private Thread writer;
+	private volatile IOException error;
+	private boolean finished = false;
+	
+	/**
+	 * Starts writing behind a file.
+	 * @param channel file to write
+	 * @param bufferSize size of each buffer
+	 * @param buffers number of buffers
+	 */
+	public WriteBehindChannel(FileChannel channel, int bufferSize, int buffers){
+		this.channel = channel;
+		
+		this.free = new ArrayBlockingQueue<ByteBuffer>(buffers);
+		this.queue = new ArrayBlockingQueue<Write>(buffers + 1);
+		for(int i = 0; i < buffers; ++i){
+			free.add(ByteBuffer.allocate(bufferSize));
+		}
+		
+		writer = new Thread(){
+			public void run(){
+				drain();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	/**
+	 * A buffer to be written, or the end of the writes if it has no buffer.
+	 */
+	private static class Write {
+		public ByteBuffer buffer;
+		public long position;
+		
+		public Write(ByteBuffer buffer, long position){
+			this.buffer = buffer;
+			this.position = position;
+		}
+	}
+	
+	private void drain(){
+		while(true){
+			Write write;
+			try{
+				write = queue.take();
+			} catch(InterruptedException e){
+				return;
+			}
+			if(write.buffer == null){
+				return;
+			}
+			
+			// once an error is met, buffers are returned without being written
+			if(error == null){
+				try{
+					long position = write.position;
+					while(write.buffer.hasRemaining()){
+						position += channel.write(write.buffer, position);
+					}
+				} catch(IOException e){
+					error = e;
+				}
+			}
+			write.buffer.clear();
+			free.add(write.buffer);
+		}
+	}
+	
+	/**
+	 * Takes an empty buffer, waiting until one is free.  A producer on a 
+	 * fork-join pool waits as a managed blocker, so that the pool may start
+	 * another thread meanwhile rather than starve its other tasks.
+	 */
+	public ByteBuffer takeBuffer() throws IOException {
+		checkError();
+		BufferWait wait = new BufferWait();
+		try{
+			ForkJoinPool.managedBlock(wait);
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting to write.");
+		}
+		return wait.buffer;
+	}
+	
+	/**
+	 * A wait for a free buffer.
+	 */
+	private class BufferWait implements ForkJoinPool.ManagedBlocker {
+		public ByteBuffer buffer;
+		
+		@Override
+		public boolean isReleasable(){
+			if(buffer == null){
+				buffer = free.poll();
+			}
+			return buffer != null;
+		}
+		
+		@Override
+		public boolean block() throws InterruptedException {
+			if(buffer == null){
+				buffer = free.take();
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * Returns a buffer which will not be written.
+	 */
+	public void returnBuffer(ByteBuffer buffer){
+		buffer.clear();
+		free.add(buffer);
+	}
+	
+	/**
+	 * Queues the contents of a buffer, from its start to its position, to be
+	 * written.  The buffer is returned to the free buffers once written.
+	 * @param buffer buffer taken from this channel
+	 * @param position position in the file at which to write
+	 */
+	public void write(ByteBuffer buffer, long position) throws IOException {
+		buffer.flip();
+		try{
+			queue.put(new Write(buffer, position));
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting to write.");
+		}
+	}
+	
+	/**
+	 * Waits for every queued buffer to be written.
+	 * @throws IOException if any write failed
+	 */
+	public void finish() throws IOException {
+		stop();
+		checkError();
+	}
+	
+	/**
+	 * Stops the writer once the buffers queued are written, without reporting
+	 * errors.
+	 */
+	public void close(){
+		stop();
+	}
+	
+	private synchronized void stop(){
+		if(finished){
+			return;
+		}
+		finished = true;
+		
+		// the queue has room for the end beyond every buffer
+		queue.add(new Write(null, 0));
+		boolean interrupted = false;
+		while(writer.isAlive()){
+			try{
+				writer.join();
+			} catch(InterruptedException e){
+				interrupted = true;
+			}
+		}
+		if(interrupted){
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void checkError() throws IOException {
+		if(error != null){
+			throw new IOException("Unable to write file: "+error.getMessage(), error);
+		}
+	}
+}